@@ -0,0 +1,44 @@
+package org.spoorn.simplebackup.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Sets up the mod outside of Minecraft for the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Replaces the config with the defaults, backing up to a new temporary folder.
+     *
+     * @return The config, to change any settings a benchmark is measuring
+     */
+    static ModConfig configure(int numThreads) throws IOException {
+        ModConfig config = new ModConfig();
+        // Relative backup paths are resolved against the game folder, which doesn't exist here
+        config.backupPath = Files.createTempDirectory("simplebackup-jmh").toString();
+        config.numThreads = numThreads;
+        config.intervalPercentageToLogBackupProgress = 0;
+        ModConfig.INSTANCE = config;
+        return config;
+    }
+
+    /**
+     * Deletes everything in a folder, but not the folder itself.
+     */
+    static void clear(Path folder) throws IOException {
+        try (Stream<Path> children = Files.list(folder)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                SimpleBackupUtil.deleteRecursively(child);
+            }
+        }
+    }
+}
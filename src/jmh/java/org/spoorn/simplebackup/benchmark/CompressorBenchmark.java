@@ -0,0 +1,94 @@
+package org.spoorn.simplebackup.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Time to back up a synthetic world in each backup format.  The world is scanned once per trial, as the scan is
+ * measured in {@link ScanBenchmark}.  Checksums are computed as in a real backup.  Run with {@code -p useZip4j=true}
+ * to compare ZIP backups written by zip4j.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CompressorBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public SyntheticWorld.Size worldSize;
+
+    @Param({"ZIP", "LZ4", "ZSTD", "NBT", "DIRECTORY"})
+    public String backupFormat;
+
+    @Param({"1", "4"})
+    public int numThreads;
+
+    @Param({"8192", "65536"})
+    public int multiThreadBufferSize;
+
+    @Param({"FAST"})
+    public String lz4CompressionMode;
+
+    @Param({"false"})
+    public boolean useZip4j;
+
+    private Compressor compressor;
+    private DirectoryScan scan;
+    private Path backupFolder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path world = SyntheticWorld.get(this.worldSize);
+        ModConfig config = BenchmarkSupport.configure(this.numThreads);
+        config.multiThreadBufferSize = this.multiThreadBufferSize;
+        config.lz4CompressionMode = this.lz4CompressionMode;
+        config.useZip4j = this.useZip4j;
+        Compressors.init();
+        this.compressor = Compressors.get(this.backupFormat);
+        this.scan = DirectoryScan.scan(world);
+        this.backupFolder = Path.of(config.backupPath);
+    }
+
+    @Benchmark
+    public boolean compress() {
+        if (!this.compressor.compress(this.scan, this.backupFolder, "backup", new BackupManifest())) {
+            throw new IllegalStateException(this.backupFormat + " backup failed, check the log");
+        }
+        return true;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteBackup() throws IOException {
+        BenchmarkSupport.clear(this.backupFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BackupExecutors.shutdown();
+        SimpleBackupUtil.deleteRecursively(this.backupFolder);
+    }
+}
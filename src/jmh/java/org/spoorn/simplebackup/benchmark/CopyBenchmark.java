@@ -0,0 +1,71 @@
+package org.spoorn.simplebackup.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Time to copy a synthetic world, as the DIRECTORY format and the snapshot staging copy do.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+
+    @Param({"SMALL", "MEDIUM"})
+    public SyntheticWorld.Size worldSize;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int numThreads;
+
+    private DirectoryScan scan;
+    private Path destination;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path world = SyntheticWorld.get(this.worldSize);
+        ModConfig config = BenchmarkSupport.configure(this.numThreads);
+        this.scan = DirectoryScan.scan(world);
+        this.destination = Path.of(config.backupPath).resolve("copy");
+    }
+
+    @Benchmark
+    public boolean copy() {
+        if (!SimpleBackupUtil.copyDirectoriesFailSafe(this.scan, this.destination, null, null)) {
+            throw new IllegalStateException("Copy failed, check the log");
+        }
+        return true;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCopy() throws IOException {
+        BenchmarkSupport.clear(this.destination.getParent());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BackupExecutors.shutdown();
+        SimpleBackupUtil.deleteRecursively(this.destination.getParent());
+    }
+}
@@ -0,0 +1,64 @@
+package org.spoorn.simplebackup.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spoorn.simplebackup.util.DirectoryScan;
+
+/**
+ * Time to scan a synthetic world, and to split the scan into slices of about equal size for the parallel formats.
+ * The world's files are in the OS file cache after the first iteration, as they usually are on a running server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScanBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticWorld.Size worldSize;
+
+    private Path world;
+    private DirectoryScan scan;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.world = SyntheticWorld.get(this.worldSize);
+        this.scan = DirectoryScan.scan(this.world);
+    }
+
+    @Benchmark
+    public DirectoryScan scan() throws IOException {
+        return DirectoryScan.scan(this.world);
+    }
+
+    @Benchmark
+    public int[] fileCountIntervals(Intervals intervals) {
+        return this.scan.getFileCountIntervalsFromSize(intervals.numIntervals);
+    }
+
+    /**
+     * Only for {@link #fileCountIntervals}, so the scan isn't measured once per interval count.
+     */
+    @State(Scope.Benchmark)
+    public static class Intervals {
+
+        @Param({"2", "8", "32"})
+        public int numIntervals;
+    }
+}
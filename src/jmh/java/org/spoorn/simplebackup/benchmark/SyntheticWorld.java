@@ -0,0 +1,200 @@
+package org.spoorn.simplebackup.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.util.RegionFileHeader;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Generates world folders that look like real Minecraft worlds to the backup formats: Anvil region files with zlib
+ * compressed chunks at sector aligned offsets, gzipped player data, and many small JSON and data files.  Chunks are
+ * mostly repeated block states with some noise, so they compress about as well as real chunks.
+ *
+ * <p>Worlds are generated from a fixed seed, and kept in {@code build/jmh-worlds} (or the folder in the
+ * {@code simplebackup.benchmark.dir} system property) so they are only generated once.
+ */
+public final class SyntheticWorld {
+    private static final long SEED = 0x5EED_BAC_0FFL;
+    // 4096 block states packed 4 bits each
+    private static final int SECTION_BYTES = 4096 / 2;
+
+    private SyntheticWorld() {
+    }
+
+    /**
+     * @param regionFiles Number of overworld region files
+     * @param chunksPerRegion Number of generated chunks in each region file, up to 1024
+     * @param players Number of players with player data, stats and advancements
+     * @param dataFiles Number of small files in the data folder
+     */
+    public enum Size {
+        SMALL(4, 256, 10, 50),
+        MEDIUM(16, 512, 100, 300),
+        LARGE(64, 1024, 500, 1000);
+
+        final int regionFiles;
+        final int chunksPerRegion;
+        final int players;
+        final int dataFiles;
+
+        Size(int regionFiles, int chunksPerRegion, int players, int dataFiles) {
+            this.regionFiles = regionFiles;
+            this.chunksPerRegion = chunksPerRegion;
+            this.players = players;
+            this.dataFiles = dataFiles;
+        }
+    }
+
+    /**
+     * @return The world folder of the given size, generating it if it doesn't exist yet
+     */
+    public static synchronized Path get(Size size) throws IOException {
+        Path dir = Path.of(System.getProperty("simplebackup.benchmark.dir", "build/jmh-worlds")).toAbsolutePath();
+        Path world = dir.resolve(size.name().toLowerCase()).resolve("world");
+        // Marks a fully generated world, kept outside the world so backups don't include it
+        Path complete = dir.resolve(size.name().toLowerCase() + ".complete");
+        if (Files.exists(complete)) {
+            return world;
+        }
+
+        if (Files.exists(world)) {
+            SimpleBackupUtil.deleteRecursively(world);
+        }
+        long start = System.nanoTime();
+        generate(world, size, new Random(SEED + size.ordinal()));
+        Files.createFile(complete);
+        SimpleBackup.LOGGER.info("Generated {} synthetic world at {} in {} ms", size, world, (System.nanoTime() - start) / 1_000_000);
+        return world;
+    }
+
+    private static void generate(Path world, Size size, Random random) throws IOException {
+        Files.createDirectories(world);
+        Files.write(world.resolve("level.dat"), gzip(randomNbt(random, 2048)));
+        Files.writeString(world.resolve("session.lock"), "☃");
+
+        // The overworld has most of the chunks, the other dimensions and the entity and poi files are smaller
+        int side = (int) Math.ceil(Math.sqrt(size.regionFiles));
+        for (int i = 0; i < size.regionFiles; i++) {
+            int x = i % side - side / 2;
+            int z = i / side - side / 2;
+            writeRegionFile(world.resolve("region"), x, z, size.chunksPerRegion, 24, random);
+            writeRegionFile(world.resolve("entities"), x, z, size.chunksPerRegion / 4, 2, random);
+            writeRegionFile(world.resolve("poi"), x, z, size.chunksPerRegion / 8, 1, random);
+        }
+        for (int i = 0; i < Math.max(1, size.regionFiles / 4); i++) {
+            writeRegionFile(world.resolve("DIM-1/region"), i, 0, size.chunksPerRegion / 2, 16, random);
+            writeRegionFile(world.resolve("DIM1/region"), 0, i, size.chunksPerRegion / 4, 16, random);
+        }
+
+        for (int i = 0; i < size.players; i++) {
+            String uuid = new UUID(random.nextLong(), random.nextLong()).toString();
+            Files.createDirectories(world.resolve("playerdata"));
+            Files.write(world.resolve("playerdata/" + uuid + ".dat"), gzip(randomNbt(random, 4096 + random.nextInt(8192))));
+            Files.createDirectories(world.resolve("stats"));
+            Files.writeString(world.resolve("stats/" + uuid + ".json"), randomJson(random, 200 + random.nextInt(400)));
+            Files.createDirectories(world.resolve("advancements"));
+            Files.writeString(world.resolve("advancements/" + uuid + ".json"), randomJson(random, 50 + random.nextInt(150)));
+        }
+
+        Files.createDirectories(world.resolve("data"));
+        for (int i = 0; i < size.dataFiles; i++) {
+            Files.write(world.resolve("data/map_" + i + ".dat"), gzip(randomNbt(random, 512 + random.nextInt(16384))));
+        }
+    }
+
+    /**
+     * Writes a region file with the first {@code chunks} chunks generated, each zlib compressed and padded to whole sectors.
+     *
+     * @param chunkSections Sections per chunk, fewer for smaller chunks such as entity and poi data
+     */
+    private static void writeRegionFile(Path folder, int regionX, int regionZ, int chunks, int chunkSections, Random random) throws IOException {
+        Files.createDirectories(folder);
+        ByteBuffer header = ByteBuffer.allocate(RegionFileHeader.HEADER_SIZE);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int sector = 2;
+        int timestamp = 1_700_000_000;
+        Deflater deflater = new Deflater();
+        byte[] buffer = new byte[1 << 16];
+        for (int i = 0; i < Math.min(chunks, RegionFileHeader.CHUNK_COUNT); i++) {
+            byte[] chunk = randomChunk(random, chunkSections);
+            deflater.reset();
+            deflater.setInput(chunk);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(chunk.length / 4);
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            // Length including the compression type, compression type 2 is zlib
+            int length = compressed.size() + 1;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(5).putInt(length).put((byte) 2);
+            body.write(chunkHeader.array());
+            compressed.writeTo(body);
+            int sectors = (length + 4 + RegionFileHeader.SECTOR_SIZE - 1) / RegionFileHeader.SECTOR_SIZE;
+            body.write(new byte[sectors * RegionFileHeader.SECTOR_SIZE - length - 4]);
+
+            header.putInt(i * 4, (sector << 8) | sectors);
+            header.putInt(RegionFileHeader.SECTOR_SIZE + i * 4, timestamp + random.nextInt(86400));
+            sector += sectors;
+        }
+        deflater.end();
+
+        try (OutputStream out = Files.newOutputStream(folder.resolve("r." + regionX + "." + regionZ + RegionFileHeader.REGION_EXTENSION))) {
+            out.write(header.array());
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * Mostly one block per section with some noise, plus random data like entity UUIDs.
+     */
+    private static byte[] randomChunk(Random random, int sections) {
+        byte[] chunk = new byte[sections * SECTION_BYTES + 512];
+        for (int s = 0; s < sections; s++) {
+            byte base = (byte) ((s % 16) * 0x11);
+            int noise = random.nextInt(20);
+            for (int i = 0; i < SECTION_BYTES; i++) {
+                chunk[s * SECTION_BYTES + i] = random.nextInt(100) < noise ? (byte) random.nextInt(256) : base;
+            }
+        }
+        for (int i = sections * SECTION_BYTES; i < chunk.length; i++) {
+            chunk[i] = (byte) random.nextInt(256);
+        }
+        return chunk;
+    }
+
+    private static byte[] randomNbt(Random random, int length) {
+        byte[] nbt = new byte[length];
+        for (int i = 0; i < length; i++) {
+            // Tag names and small numbers repeat a lot in NBT
+            nbt[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256) : (byte) ('a' + random.nextInt(8));
+        }
+        return nbt;
+    }
+
+    private static String randomJson(Random random, int entries) {
+        StringBuilder json = new StringBuilder("{\"stats\":{");
+        for (int i = 0; i < entries; i++) {
+            json.append(i == 0 ? "" : ",").append("\"minecraft:stat_").append(random.nextInt(1000)).append("\":").append(random.nextInt(100000));
+        }
+        return json.append("}}").toString();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+}
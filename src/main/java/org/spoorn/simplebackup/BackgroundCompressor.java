@@ -0,0 +1,97 @@
+package org.spoorn.simplebackup;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates backups from staging folders one at a time in the background, so compression stays off the backup and
+ * server threads.
+ *
+ * <p>At most one backup is compressed and one more is queued.  If another backup is submitted while the queue is
+ * full, it is compressed on the submitting thread instead once the others are done, which holds back the next
+ * automatic backup rather than piling up staging folders on disk.
+ *
+ * <p>Backups run on the {@link BackupExecutors#getIoExecutor() I/O executor}, so they are stopped along with every
+ * other backup thread.  The compression itself runs on the low priority compression pool, see
+ * {@link BackupExecutors#compute}.  The backups are not submitted to the pool directly, as some compressors submit
+ * their own work to it and wait for it.
+ */
+public final class BackgroundCompressor {
+    private static final AtomicInteger pending = new AtomicInteger();
+    // One backup compressing and one queued
+    private static final Semaphore queued = new Semaphore(2);
+    private static final Semaphore compressing = new Semaphore(1, true);
+    private static volatile boolean awaiting = false;
+
+    private BackgroundCompressor() {
+    }
+
+    public static void submit(Runnable task) {
+        pending.incrementAndGet();
+        if (!queued.tryAcquire()) {
+            run(task);
+            return;
+        }
+        try {
+            BackupExecutors.getIoExecutor().execute(() -> {
+                try {
+                    run(task);
+                } finally {
+                    queued.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.release();
+            run(task);
+        }
+    }
+
+    private static void run(Runnable task) {
+        compressing.acquireUninterruptibly();
+        try {
+            task.run();
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Background compression failed", e);
+        } finally {
+            compressing.release();
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return True if there are backups still being compressed or waiting to be compressed
+     */
+    public static boolean isBusy() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * @return True if a thread is blocked in {@link #awaitPending()}
+     */
+    public static boolean isAwaiting() {
+        return awaiting && isBusy();
+    }
+
+    /**
+     * Waits for all submitted backups to be compressed, so the server doesn't exit with half written backups.
+     */
+    public static void awaitPending() {
+        if (!isBusy()) {
+            return;
+        }
+
+        SimpleBackup.LOGGER.info("Waiting for {} backup(s) to finish compressing...", pending.get());
+        awaiting = true;
+        try {
+            while (isBusy()) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            SimpleBackup.LOGGER.error("Interrupted while waiting for background compression to finish", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            awaiting = false;
+        }
+    }
+}
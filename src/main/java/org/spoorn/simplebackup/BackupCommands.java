@@ -0,0 +1,291 @@
+package org.spoorn.simplebackup;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.spoorn.simplebackup.mixin.MinecraftServerAccessor;
+import org.spoorn.simplebackup.util.BackupCatalog;
+import org.spoorn.simplebackup.util.BackupMetrics;
+import org.spoorn.simplebackup.util.BackupRestorer;
+import org.spoorn.simplebackup.util.BackupVerifier;
+
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.commands.SharedSuggestionProvider;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.Style;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.storage.LevelResource;
+
+/**
+ * Commands that inspect and restore existing backups.  They answer from the {@link BackupCatalog}, so they never touch
+ * the backup folder while a backup is being written to it.  Verifying only reads the backups already in the catalog.
+ */
+public final class BackupCommands {
+    // Number of backups shown by /simplebackup list, newest first
+    private static final int LIST_LIMIT = 20;
+    private static final DateTimeFormatter CREATED_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Style HEADER_STYLE = Style.EMPTY.withColor(13543679);
+    private static final Style ERROR_STYLE = Style.EMPTY.withColor(16754871);
+    private static final AtomicBoolean verifying = new AtomicBoolean(false);
+
+    private BackupCommands() {
+    }
+
+    /**
+     * Adds the "list", "info", "stats", "verify" and "restore" sub commands.
+     */
+    public static void register(LiteralArgumentBuilder<CommandSourceStack> command) {
+        command.then(Commands.literal("list")
+                        .executes(BackupCommands::list))
+                .then(Commands.literal("info")
+                        .then(Commands.argument("backup", StringArgumentType.greedyString())
+                                .suggests((c, builder) -> SharedSuggestionProvider.suggest(getBackupNamesNewestFirst(), builder))
+                                .executes(BackupCommands::info)))
+                .then(Commands.literal("stats")
+                        .executes(BackupCommands::stats))
+                .then(Commands.literal("verify")
+                        .executes(c -> verify(c, null))
+                        .then(Commands.argument("backup", StringArgumentType.greedyString())
+                                .suggests((c, builder) -> SharedSuggestionProvider.suggest(getBackupNamesNewestFirst(), builder))
+                                .executes(c -> verify(c, StringArgumentType.getString(c, "backup")))))
+                // Replaces the world, so only server operators can restore
+                .then(Commands.literal("restore")
+                        .requires(ctx -> ctx.hasPermission(4))
+                        .then(Commands.argument("backup", StringArgumentType.word())
+                                .suggests((c, builder) -> SharedSuggestionProvider.suggest(getBackupNamesNewestFirst(), builder))
+                                .executes(c -> restore(c, List.of()))
+                                .then(Commands.argument("filter", StringArgumentType.greedyString())
+                                        .executes(c -> restore(c, List.of(StringArgumentType.getString(c, "filter").trim().split("\\s+")))))));
+    }
+
+    private static int list(CommandContext<CommandSourceStack> c) {
+        List<BackupCatalog.Entry> backups = BackupCatalog.getBackups();
+        long totalSize = 0;
+        for (BackupCatalog.Entry backup : backups) {
+            totalSize += Math.max(0, backup.sizeBytes());
+        }
+        String header = String.format(Locale.ROOT, "%d backups using %s", backups.size(), formatBytes(totalSize));
+        if (backups.size() > LIST_LIMIT) {
+            header += String.format(Locale.ROOT, ", showing the newest %d", LIST_LIMIT);
+        }
+        String finalHeader = header;
+        c.getSource().sendSuccess(() -> Component.literal(finalHeader).setStyle(HEADER_STYLE), false);
+
+        for (int i = backups.size() - 1; i >= Math.max(0, backups.size() - LIST_LIMIT); i--) {
+            BackupCatalog.Entry backup = backups.get(i);
+            String line = String.format(Locale.ROOT, "%s  %s  %s%s", backup.name(), backup.format(), formatBytes(backup.sizeBytes()),
+                    backup.getCompressionRatio() >= 0 ? String.format(Locale.ROOT, "  %.0f%%", backup.getCompressionRatio() * 100) : "");
+            c.getSource().sendSuccess(() -> Component.literal(line), false);
+        }
+        return 1;
+    }
+
+    private static int info(CommandContext<CommandSourceStack> c) {
+        String name = StringArgumentType.getString(c, "backup");
+        BackupCatalog.Entry backup = BackupCatalog.get(name);
+        if (backup == null) {
+            c.getSource().sendFailure(Component.literal("No backup named " + name + ", see /simplebackup list").setStyle(ERROR_STYLE));
+            return 0;
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Format: " + backup.format());
+        lines.add("Created: " + CREATED_FORMAT.format(Instant.ofEpochMilli(backup.createdMillis()).atZone(ZoneId.systemDefault())));
+        lines.add("Size: " + formatBytes(backup.sizeBytes()));
+        if (backup.worldSizeBytes() != BackupCatalog.UNKNOWN) {
+            lines.add("World size: " + formatBytes(backup.worldSizeBytes()));
+            lines.add(String.format(Locale.ROOT, "Compression ratio: %.1f%%", backup.getCompressionRatio() * 100));
+        }
+        if (backup.fileCount() != BackupCatalog.UNKNOWN) {
+            lines.add("Files: " + backup.fileCount());
+        }
+        if (backup.durationMillis() != BackupCatalog.UNKNOWN) {
+            lines.add(String.format(Locale.ROOT, "Duration: %.1f s", backup.durationMillis() / 1000.0));
+        }
+        if (backup.checksum() != null) {
+            lines.add("Checksum (xxHash64): " + backup.checksum());
+        }
+        if (!backup.isComplete()) {
+            lines.add("Dimensions left out: " + String.join(", ", new TreeSet<>(backup.skippedDimensions())));
+        }
+
+        c.getSource().sendSuccess(() -> Component.literal(backup.name()).setStyle(HEADER_STYLE), false);
+        for (String line : lines) {
+            c.getSource().sendSuccess(() -> Component.literal("  " + line), false);
+        }
+        return 1;
+    }
+
+    private static int stats(CommandContext<CommandSourceStack> c) {
+        BackupMetrics.Totals totals = BackupMetrics.getTotals();
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Backups: %d succeeded, %d failed", totals.backupsSucceeded(), totals.backupsFailed()));
+        if (totals.backupsSucceeded() > 0) {
+            lines.add("Read: " + formatBytes(totals.worldBytes()) + ", written: " + formatBytes(totals.backupBytes()));
+        }
+        BackupMetrics.Run last = totals.lastBackup();
+        if (last != null) {
+            lines.add(String.format(Locale.ROOT, "Last backup: %s (%s) %s in %.1f s", last.getName(), last.getFormat(),
+                    last.isSuccess() ? "succeeded" : "failed", last.getDurationSeconds()));
+            lines.add("  Phases: " + BackupMetrics.describePhases(last));
+            if (last.getWorldBytes() >= 0) {
+                lines.add(String.format(Locale.ROOT, "  World: %s in %d files", formatBytes(last.getWorldBytes()), last.getFileCount()));
+            }
+            if (last.getCompressionRatio() >= 0) {
+                lines.add(String.format(Locale.ROOT, "  Size: %s, compression ratio %.1f%%", formatBytes(last.getBackupBytes()), last.getCompressionRatio() * 100));
+            }
+            if (last.getCompressBytesPerSecond() >= 0) {
+                lines.add("  Throughput: " + formatBytes((long) last.getCompressBytesPerSecond()) + "/s");
+            }
+            lines.add("  Server thread blocked: " + last.getTickStallMillis() + " ms, extra tick time: " + last.getExtraTickMillis() + " ms");
+        }
+        if (totals.prunes() > 0) {
+            lines.add(String.format(Locale.ROOT, "Pruning: %d backups deleted in %d runs, the last took %.1f s", totals.backupsPruned(),
+                    totals.prunes(), totals.lastPruneSeconds()));
+        }
+
+        c.getSource().sendSuccess(() -> Component.literal("Backup stats since the server started").setStyle(HEADER_STYLE), false);
+        for (String line : lines) {
+            c.getSource().sendSuccess(() -> Component.literal("  " + line), false);
+        }
+        return 1;
+    }
+
+    /**
+     * Checks one backup, or every backup and the world against the newest backup, in the background, as it reads them
+     * in full.  The results are sent once they are all done.
+     *
+     * @param name Backup to check, or null for every backup and the world
+     */
+    private static int verify(CommandContext<CommandSourceStack> c, String name) {
+        List<BackupCatalog.Entry> backups;
+        if (name != null) {
+            BackupCatalog.Entry backup = BackupCatalog.get(name);
+            if (backup == null) {
+                c.getSource().sendFailure(Component.literal("No backup named " + name + ", see /simplebackup list").setStyle(ERROR_STYLE));
+                return 0;
+            }
+            backups = List.of(backup);
+        } else {
+            backups = BackupCatalog.getBackups();
+        }
+        if (!verifying.compareAndSet(false, true)) {
+            c.getSource().sendFailure(Component.literal("Backups are already being verified").setStyle(ERROR_STYLE));
+            return 0;
+        }
+
+        CommandSourceStack source = c.getSource();
+        MinecraftServer server = source.getServer();
+        Path worldFolder = name == null ? ((MinecraftServerAccessor) server).getSession().getLevelPath(LevelResource.ROOT).getParent() : null;
+        source.sendSuccess(() -> Component.literal(String.format(Locale.ROOT, "Verifying %d backups%s...", backups.size(),
+                worldFolder != null ? " and the world" : "")).setStyle(HEADER_STYLE), false);
+        BackupExecutors.getIoExecutor().execute(() -> {
+            List<Component> lines = new ArrayList<>();
+            try {
+                long start = System.nanoTime();
+                List<BackupVerifier.BackupResult> results = BackupVerifier.verifyBackups(backups);
+                BackupVerifier.WorldResult world = worldFolder != null ? BackupVerifier.verifyWorld(worldFolder) : null;
+                lines.addAll(describeVerification(results, world, (System.nanoTime() - start) / 1e9));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lines.add(Component.literal("Verification was interrupted").setStyle(ERROR_STYLE));
+            } catch (Exception e) {
+                SimpleBackup.LOGGER.error("Could not verify backups", e);
+                lines.add(Component.literal("Could not verify backups, check the server logs for errors").setStyle(ERROR_STYLE));
+            } finally {
+                verifying.set(false);
+            }
+            server.execute(() -> {
+                for (Component line : lines) {
+                    source.sendSuccess(() -> line, false);
+                }
+            });
+        });
+        return 1;
+    }
+
+    private static List<Component> describeVerification(List<BackupVerifier.BackupResult> results, BackupVerifier.WorldResult world, double seconds) {
+        Map<BackupVerifier.Status, Integer> counts = new EnumMap<>(BackupVerifier.Status.class);
+        List<Component> lines = new ArrayList<>();
+        for (BackupVerifier.BackupResult result : results) {
+            counts.merge(result.status(), 1, Integer::sum);
+            if (result.status() == BackupVerifier.Status.CORRUPT || result.status() == BackupVerifier.Status.MISSING) {
+                SimpleBackup.LOGGER.error("Backup {} {}", result.backup().getPath(), result.detail());
+                lines.add(Component.literal("  " + result.backup().name() + " " + result.detail()).setStyle(ERROR_STYLE));
+            } else if (results.size() == 1 && result.status() == BackupVerifier.Status.UNVERIFIED) {
+                lines.add(Component.literal("  " + result.backup().name() + " can't be verified, " + result.detail()));
+            }
+        }
+        lines.add(0, Component.literal(String.format(Locale.ROOT, "Verified %d backups in %.1f s: %d intact, %d corrupt, %d missing, %d without checksums",
+                results.size(), seconds, counts.getOrDefault(BackupVerifier.Status.INTACT, 0), counts.getOrDefault(BackupVerifier.Status.CORRUPT, 0),
+                counts.getOrDefault(BackupVerifier.Status.MISSING, 0), counts.getOrDefault(BackupVerifier.Status.UNVERIFIED, 0))).setStyle(HEADER_STYLE));
+
+        if (world == null) {
+            return lines;
+        }
+        if (world.backupName() == null) {
+            lines.add(Component.literal("  No backup has file checksums to compare the world against"));
+        } else if (world.corrupt().isEmpty()) {
+            lines.add(Component.literal(String.format(Locale.ROOT, "  World matches %s: %d files unchanged, %d changed since", world.backupName(),
+                    world.matched(), world.changed())));
+        } else {
+            lines.add(Component.literal(String.format(Locale.ROOT, "  %d world files differ from %s even though their size and modified time didn't change, they may be corrupted:",
+                    world.corrupt().size(), world.backupName())).setStyle(ERROR_STYLE));
+            for (int i = 0; i < Math.min(LIST_LIMIT, world.corrupt().size()); i++) {
+                lines.add(Component.literal("    " + world.corrupt().get(i)).setStyle(ERROR_STYLE));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Schedules a restore for when the server stops, as the world can't be replaced while it is loaded.
+     */
+    private static int restore(CommandContext<CommandSourceStack> c, List<String> filterParts) {
+        String name = StringArgumentType.getString(c, "backup");
+        BackupCatalog.Entry backup = BackupCatalog.get(name);
+        if (backup == null) {
+            c.getSource().sendFailure(Component.literal("No backup named " + name + ", see /simplebackup list").setStyle(ERROR_STYLE));
+            return 0;
+        }
+
+        BackupRestorer.schedule(backup.getPath(), filterParts);
+        String restored = filterParts.isEmpty() ? "the world" : String.join(" ", filterParts);
+        c.getSource().sendSuccess(() -> Component.literal("Will restore " + restored + " from " + name
+                + " once the server stops.  Stop the server with /stop to restore it").setStyle(HEADER_STYLE), true);
+        return 1;
+    }
+
+    private static List<String> getBackupNamesNewestFirst() {
+        List<String> names = new ArrayList<>();
+        for (BackupCatalog.Entry backup : BackupCatalog.getBackups()) {
+            names.add(0, backup.name());
+        }
+        return names;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 0) {
+            return "unknown size";
+        }
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format(Locale.ROOT, "%.1f %siB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+    }
+}
@@ -0,0 +1,249 @@
+package org.spoorn.simplebackup;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Threads shared by every backup, instead of each backup starting its own.
+ *
+ * <ul>
+ *     <li>The compression pool is a bounded pool of low priority daemon threads for CPU heavy work, sized by
+ *     {@code numThreads}, so compression gives way to the server thread.  Idle threads exit after a minute, so nothing
+ *     is left running between hourly backups.</li>
+ *     <li>Backups themselves, and any other blocking file I/O, run on virtual threads.  Compression that a backup does
+ *     on one thread is handed to the compression pool with {@link #compute}, rather than run on a virtual thread's
+ *     carrier, which has normal priority and is shared with every other virtual thread.</li>
+ * </ul>
+ *
+ * <p>Both are created lazily and shut down with {@link #shutdown()} when the server stops, so a singleplayer client
+ * that opens another world gets fresh ones.
+ */
+public final class BackupExecutors {
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static ThreadPoolExecutor compressionPool;
+    private static ExecutorService ioExecutor;
+
+    private BackupExecutors() {
+    }
+
+    /**
+     * @return Number of threads in the compression pool, {@code numThreads} capped to number of processors * 4
+     */
+    public static int getCompressionThreads() {
+        return Math.max(1, Math.min(ModConfig.getInstance().numThreads, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * @return Shared pool for compression.  Do not shut it down, tasks that are no longer needed should be cancelled
+     */
+    public static synchronized ExecutorService getCompressionPool() {
+        if (compressionPool == null || compressionPool.isShutdown()) {
+            int numThreads = getCompressionThreads();
+            AtomicInteger threadCount = new AtomicInteger();
+            compressionPool = new ThreadPoolExecutor(numThreads, numThreads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new CompressionThread(r, "SimpleBackup-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            compressionPool.allowCoreThreadTimeOut(true);
+        }
+        return compressionPool;
+    }
+
+    /**
+     * Runs CPU heavy work on a compression pool thread and waits for it.  Runs it on the calling thread if that already
+     * is a compression pool thread.  The work must not submit tasks to the compression pool and wait for them, as the
+     * pool may have no other thread to run them.
+     *
+     * @param task Work to run
+     * @return Result of the work
+     * @throws Exception Thrown by the work
+     */
+    public static <T> T compute(Callable<T> task) throws Exception {
+        if (Thread.currentThread() instanceof CompressionThread) {
+            return task.call();
+        }
+        Future<T> future = getCompressionPool().submit(task);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * For libraries that shut down the executor they are given once they are done with it.
+     *
+     * @return View of the compression pool that can be shut down without affecting the pool itself
+     */
+    public static ExecutorService borrowCompressionPool() {
+        return new BorrowedExecutor(getCompressionPool());
+    }
+
+    /**
+     * @return Executor that runs each task on a new virtual thread, for blocking file I/O
+     */
+    public static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null || ioExecutor.isShutdown()) {
+            ioExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("SimpleBackup-io-", 0).factory());
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Runs a backup off the server thread.
+     *
+     * @param task Backup to run
+     * @return Future to cancel the backup with, which interrupts it
+     */
+    public static Future<?> startBackup(Runnable task) {
+        return getIoExecutor().submit(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                SimpleBackup.LOGGER.error("Backup failed", e);
+            }
+        });
+    }
+
+    /**
+     * Interrupts any backups still running and stops all threads.  Called once the server has stopped and its final
+     * backup is done.
+     */
+    public static void shutdown() {
+        ExecutorService io;
+        ExecutorService compression;
+        synchronized (BackupExecutors.class) {
+            io = ioExecutor;
+            compression = compressionPool;
+            ioExecutor = null;
+            compressionPool = null;
+        }
+
+        if (io != null) {
+            io.shutdownNow();
+        }
+        if (compression != null) {
+            compression.shutdownNow();
+        }
+        try {
+            if (io != null && !io.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    || compression != null && !compression.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                SimpleBackup.LOGGER.warn("Backup threads did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class CompressionThread extends Thread {
+        private CompressionThread(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+
+    /**
+     * Forwards tasks to the shared pool.  Shutting it down only stops it from accepting more tasks, and waiting for
+     * termination waits for the tasks submitted through it.
+     */
+    private static final class BorrowedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Object lock = new Object();
+        private int running = 0;
+        private boolean shutdown = false;
+
+        private BorrowedExecutor(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (lock) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                running++;
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        synchronized (lock) {
+                            running--;
+                            lock.notifyAll();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                synchronized (lock) {
+                    running--;
+                    lock.notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (lock) {
+                shutdown = true;
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            return List.of();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (lock) {
+                return shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (lock) {
+                return shutdown && running == 0;
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (lock) {
+                while (!(shutdown && running == 0)) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        return false;
+                    }
+                    lock.wait(remainingMillis);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package org.spoorn.simplebackup;
 
 import java.nio.file.Path;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spoorn.simplebackup.compressors.LZ4Compressor;
-import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
 import org.spoorn.simplebackup.config.ModConfig;
 import org.spoorn.simplebackup.mixin.MinecraftServerAccessor;
+import org.spoorn.simplebackup.util.BackupCatalog;
+import org.spoorn.simplebackup.util.BackupRestorer;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.RegionWriteTracker;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
 
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
 
 import net.fabricmc.api.ModInitializer;
@@ -31,7 +38,6 @@ public class SimpleBackup implements ModInitializer {
     private static final AtomicReference<SimpleBackupTask> manualBackupTask = new AtomicReference<>();
     public static AtomicReference<SimpleBackupTask> simpleBackupTask = new AtomicReference<>();
     public static AtomicReference<SimpleBackupTask> serverEndBackupTask = new AtomicReference<>();
-    //public static ExecutorService EXECUTOR_SERVICE;
 
     @Override
     public void onInitialize() {
@@ -40,24 +46,29 @@ public class SimpleBackup implements ModInitializer {
         // Config
         ModConfig.load();
 
-        //EXECUTOR_SERVICE = Executors.newFixedThreadPool(ModConfigNew.getInstance().numThreads, new ThreadFactoryBuilder().setNameFormat("SimpleBackup-%d").build());
-
         // Lang for backup broadcast messages
         SimpleBackupTask.init();
 
         // Compressors init
-        LZ4Compressor.init();
-        ZipCompressor.init();
+        Compressors.init();
 
         // Create worlds backup folder
         Path backupsPath = SimpleBackupUtil.getBackupPath();
         SimpleBackupUtil.createDirectoryFailSafe(backupsPath);
         LOGGER.info("Worlds backup folder: {}", backupsPath);
+        BackupCatalog.load();
+
+        // Track region file writes from before the dimensions are loaded
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> RegionWriteTracker.start(
+                ((MinecraftServerAccessor) server).getSession().getLevelPath(LevelResource.ROOT).getParent()));
 
         // Automatic backups
         final boolean enableAutomaticBackups = ModConfig.getInstance().enableAutomaticBackups;
-        final AtomicReference<Thread> automaticBackupThread = new AtomicReference<>();
+        final AtomicReference<Future<?>> automaticBackupThread = new AtomicReference<>();
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+            // Throttle backups while the server is behind on ticks
+            BackupThrottle.setServer(server);
+
             if (enableAutomaticBackups) {
                 LOGGER.info("Automatic backups are enabled");
                 MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
@@ -69,9 +80,7 @@ public class SimpleBackup implements ModInitializer {
                 simpleBackupTask.set(SimpleBackupTask.builder(worldFolderName, worldSavePath, server)
                         .backupIntervalInSeconds(backupIntervals)
                         .build());
-                Thread backupThread = new Thread(simpleBackupTask.get());
-                backupThread.start();
-                automaticBackupThread.set(backupThread);
+                automaticBackupThread.set(BackupExecutors.startBackup(simpleBackupTask.get()));
             }
         });
 
@@ -94,6 +103,9 @@ public class SimpleBackup implements ModInitializer {
             }
         });
 
+        // Nothing left to take time away from once the server stops ticking, so backups can run at full speed
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> BackupThrottle.setServer(null));
+
         // Backup when server is stopped
         ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
             SimpleBackupTask autoBackup;
@@ -101,10 +113,13 @@ public class SimpleBackup implements ModInitializer {
                 LOGGER.info("Terminating automatic backup thread");
                 autoBackup.terminate();
                 if (automaticBackupThread.get() != null) {
-                    automaticBackupThread.get().interrupt();
+                    automaticBackupThread.get().cancel(true);
                 }
             }
 
+            // Let backups still being compressed in the background finish before the server exits
+            BackgroundCompressor.awaitPending();
+
             if (ModConfig.getInstance().enableServerStoppedBackup) {
                 LOGGER.info("Server has stopped - creating a backup");
                 MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
@@ -122,21 +137,35 @@ public class SimpleBackup implements ModInitializer {
                     }
                 }));
             }
+
+            // The world was saved for the last time
+            RegionWriteTracker.stop();
+
+            // A restore scheduled with "/simplebackup restore" runs once the world is no longer in use
+            if (BackupRestorer.getScheduled() != null) {
+                Path worldSavePath = ((MinecraftServerAccessor) server).getSession().getLevelPath(LevelResource.ROOT).getParent();
+                BackupRestorer.runScheduled(worldSavePath, BackupExecutors.getCompressionThreads());
+            }
+
+            // Stop backup threads, they are started again if another world is opened
+            BackupExecutors.shutdown();
         });
 
         // Commands
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
-            dispatcher.register(Commands.literal("simplebackup")
+            LiteralArgumentBuilder<CommandSourceStack> command = Commands.literal("simplebackup")
                     .requires(ctx -> ctx.hasPermission(ModConfig.getInstance().permissionLevelForManualBackups))
                     .then(Commands.literal("start")
-                        .executes(c -> this.triggerManualBackup(c, ModConfig.getInstance().backupFormat)))
-                    .then(Commands.literal("zip")
-                        .executes(c -> this.triggerManualBackup(c, SimpleBackupUtil.ZIP_FORMAT)))
-                    .then(Commands.literal("directory")
-                        .executes(c -> this.triggerManualBackup(c, SimpleBackupUtil.DIRECTORY_FORMAT)))
-                    .then(Commands.literal("lz4")
-                        .executes(c -> this.triggerManualBackup(c, SimpleBackupUtil.LZ4_FORMAT)))
-                    );
+                        .executes(c -> this.triggerManualBackup(c, ModConfig.getInstance().backupFormat)));
+            // One sub command per backup format, such as "/simplebackup zip"
+            for (Compressor compressor : Compressors.getAll()) {
+                String format = compressor.getFormat();
+                command.then(Commands.literal(format.toLowerCase(Locale.ROOT))
+                        .executes(c -> this.triggerManualBackup(c, format)));
+            }
+            // "/simplebackup list", "/simplebackup info <backup>", "/simplebackup stats", "/simplebackup verify [backup]" and "/simplebackup restore <backup>"
+            BackupCommands.register(command);
+            dispatcher.register(command);
         });
     }
 
@@ -182,10 +211,13 @@ public class SimpleBackup implements ModInitializer {
                     SimpleBackupTask serverStopBackup = SimpleBackupTask.builder(worldFolderName, worldSavePath, server, backupFormat)
                             .build();
                     manualBackupTask.set(serverStopBackup);
-                    new Thread(() -> {
-                        serverStopBackup.run();
-                        manualBackupTask.set(null);
-                    }).start();
+                    BackupExecutors.startBackup(() -> {
+                        try {
+                            serverStopBackup.run();
+                        } finally {
+                            manualBackupTask.set(null);
+                        }
+                    });
                 }
             }
             return 1;
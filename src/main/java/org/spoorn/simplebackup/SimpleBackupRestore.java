@@ -0,0 +1,51 @@
+package org.spoorn.simplebackup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spoorn.simplebackup.compressors.Compressors;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupRestorer;
+
+/**
+ * Restores a backup without starting Minecraft, for when the server can't start or the world has to be restored
+ * somewhere else.  Run with the mod jar and its libraries on the classpath:
+ *
+ * <pre>
+ * java -cp simplebackup.jar:libs/* org.spoorn.simplebackup.SimpleBackupRestore &lt;backup&gt; &lt;worldFolder&gt; [--threads N] [dimension or glob...]
+ * </pre>
+ */
+public class SimpleBackupRestore {
+
+    public static void main(String[] args) {
+        List<String> filterParts = new ArrayList<>();
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        for (int i = 2; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else {
+                filterParts.add(args[i]);
+            }
+        }
+        if (args.length < 2) {
+            System.err.println("Usage: SimpleBackupRestore <backup> <worldFolder> [--threads N] [dimension or glob...]");
+            System.err.println("Dimensions are ids such as overworld, minecraft:the_nether or mymod:mining.  Globs are matched");
+            System.err.println("against paths in the world folder, such as \"region/r.0.*.mca\".  Restores the whole world if none are given.");
+            System.exit(2);
+        }
+
+        ModConfig.INSTANCE = new ModConfig();
+        ModConfig.INSTANCE.numThreads = numThreads;
+        // The catalog next to the backup tells which dimensions it left out, to fill them in from other backups
+        ModConfig.INSTANCE.backupPath = Path.of(args[0]).toAbsolutePath().getParent().toString();
+        Compressors.init();
+        boolean restored;
+        try {
+            restored = BackupRestorer.restore(Path.of(args[0]), Path.of(args[1]), BackupRestorer.createFilter(filterParts), numThreads);
+        } finally {
+            BackupExecutors.shutdown();
+        }
+        System.exit(restored ? 0 : 1);
+    }
+}
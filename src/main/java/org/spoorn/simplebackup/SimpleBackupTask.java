@@ -4,11 +4,17 @@ import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
-import org.spoorn.simplebackup.compressors.LZ4Compressor;
-import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
 import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupMetrics;
+import org.spoorn.simplebackup.util.BackupPolicy;
+import org.spoorn.simplebackup.util.BackupPruner;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.WorldSnapshot;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.Style;
 import net.minecraft.server.MinecraftServer;
@@ -24,11 +30,15 @@ public class SimpleBackupTask implements Runnable {
     public final Object lock = new Object();
     public boolean isProcessing = false;
     public Path lastBackupProcessed;
+    // Milliseconds the server thread was blocked to capture the last consistent snapshot
+    public long lastTickStallMillis;
     private final String worldFolderName;
     private final Path worldSavePath;
     private final MinecraftServer server;
     private final long backupIntervalInMillis;
     private final String backupFormat;
+    // Per-dimension schedule, only for automatic backups
+    private final BackupPolicy policy;
 
     private boolean terminated = false;
 
@@ -38,6 +48,7 @@ public class SimpleBackupTask implements Runnable {
         this.server = server;
         this.backupIntervalInMillis = backupIntervalInSeconds * 1000L;
         this.backupFormat = backupFormat;
+        this.policy = this.backupIntervalInMillis > 1000 ? new BackupPolicy(this.backupIntervalInMillis) : null;
     }
 
     public static void init() {
@@ -95,21 +106,68 @@ public class SimpleBackupTask implements Runnable {
         String timeStr = dtf.format(LocalDateTime.now());
         SimpleBackupUtil.broadcastMessage(BROADCAST1, playerManager);
 
+        // Manual and server stopped backups include every dimension
+        long startMillis = System.currentTimeMillis();
+        Set<String> skippedDimensions = this.policy != null ? this.policy.getDimensionsNotDue(startMillis) : Set.of();
+        if (!skippedDimensions.isEmpty()) {
+            SimpleBackup.LOGGER.info("Leaving dimensions {} out of this backup, as their backup interval has not passed", skippedDimensions);
+        }
+        Predicate<String> filter = BackupPolicy.createFilter(skippedDimensions);
+        Runnable onSuccess = this.policy != null ? () -> this.policy.markBackedUp(skippedDimensions, startMillis) : () -> {};
+        BackupMetrics.Run metrics = new BackupMetrics.Run(timeStr, this.backupFormat);
+        metrics.startTickSampling();
+
         String broadcastBackupPath;
-        if (SimpleBackupUtil.ZIP_FORMAT.equals(this.backupFormat)) {
-            broadcastBackupPath = timeStr + ZipCompressor.ZIP_EXTENSION;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(broadcastBackupPath);
-        } else if (SimpleBackupUtil.LZ4_FORMAT.equals(this.backupFormat)) {
-            broadcastBackupPath = timeStr + LZ4Compressor.TAR_LZ4_EXTENSION;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(broadcastBackupPath);
+        Compressor compressor = Compressors.get(this.backupFormat);
+        if (compressor != null) {
+            broadcastBackupPath = compressor.getDisplayPath(timeStr, this.worldFolderName);
+            this.lastBackupProcessed = compressor.getBackupFile(SimpleBackupUtil.getBackupPath(), timeStr);
+        } else {
+            broadcastBackupPath = timeStr;
+            this.lastBackupProcessed = null;
+        }
+
+        // The server stopped backup runs on the server thread after the world is saved, so there is nothing to pause
+        // and it has to finish before the server exits
+        boolean onServerThread = this.server.isSameThread();
+        boolean consistentSnapshot = ModConfig.getInstance().consistentSnapshot && !onServerThread;
+        boolean backgroundCompression = ModConfig.getInstance().backgroundCompression && !onServerThread;
+        if (!consistentSnapshot && !backgroundCompression) {
+            boolean copied = SimpleBackupUtil.backup(this.worldSavePath, this.worldFolderName, timeStr, this.backupFormat, skippedDimensions, metrics);
+            finishBackup(broadcastBackupPath, copied, onSuccess, metrics);
+            return;
+        }
+
+        // Capture stage: copy the world into a staging folder, so the world files are only read for as long as the copy takes
+        long snapshotStart = System.nanoTime();
+        WorldSnapshot snapshot = WorldSnapshot.capture(this.server, this.worldSavePath, timeStr, this.backupFormat, consistentSnapshot, filter);
+        metrics.addPhase(BackupMetrics.Phase.SNAPSHOT, snapshotStart);
+        if (snapshot == null) {
+            finishBackup(broadcastBackupPath, false, onSuccess, metrics);
+            return;
+        }
+        this.lastTickStallMillis = snapshot.tickStallMillis();
+        metrics.setTickStallMillis(snapshot.tickStallMillis());
+
+        // Compress stage: create the backup from the immutable staging folder, then delete it
+        Runnable compress = () -> {
+            boolean copied = SimpleBackupUtil.backup(snapshot.path(), this.worldFolderName, timeStr, this.backupFormat, skippedDimensions, metrics);
+            WorldSnapshot.cleanup(snapshot.path());
+            finishBackup(broadcastBackupPath, copied, onSuccess, metrics);
+        };
+        if (backgroundCompression) {
+            BackgroundCompressor.submit(compress);
         } else {
-            broadcastBackupPath = timeStr + "/" + this.worldFolderName;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(timeStr);
+            compress.run();
         }
-        boolean copied = SimpleBackupUtil.backup(this.worldSavePath, this.worldFolderName, timeStr, this.backupFormat)
-                && SimpleBackupUtil.deleteStaleBackupFiles();
+    }
+
+    private void finishBackup(String broadcastBackupPath, boolean copied, Runnable onSuccess, BackupMetrics.Run metrics) {
+        PlayerList playerManager = this.server.getPlayerList();
         Component relFolderPath = Component.literal(broadcastBackupPath);
+        BackupMetrics.finish(metrics, copied);
         if (copied) {
+            onSuccess.run();
             SimpleBackup.LOGGER.info("Successfully backed up world [{}] to [{}]", this.worldFolderName, broadcastBackupPath);
             SimpleBackupUtil.broadcastMessage(SUCCESS_BROADCAST.plainCopy().append(relFolderPath).setStyle(Style.EMPTY.withColor(8060843)), playerManager);
         } else {
@@ -117,6 +175,15 @@ public class SimpleBackupTask implements Runnable {
             SimpleBackupUtil.broadcastMessage(FAILED_BROADCAST1.plainCopy().append(relFolderPath).append(FAILED_BROADCAST2).setStyle(Style.EMPTY.withColor(16754871)), playerManager);
         }
         this.isProcessing = false;
+
+        // Delete old backups after reporting this one, in the background unless the server is stopping
+        if (copied) {
+            if (this.server.isSameThread()) {
+                BackupPruner.prune();
+            } else {
+                BackupPruner.pruneAsync();
+            }
+        }
     }
 
     // This doesn't account for spurious wakeups!
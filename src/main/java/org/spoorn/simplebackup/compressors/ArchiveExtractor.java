@@ -0,0 +1,216 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+
+/**
+ * Extracts ZIP and tar backups for restores, using several threads.
+ *
+ * <p>ZIP entries can be read independently, so each worker opens the archive and inflates entries from a shared
+ * queue, largest first.  Tar streams can only be decompressed in order, so one thread decompresses while small files
+ * are handed off to be written in parallel.  Files are written in large blocks, small files with a single write.
+ *
+ * <p>Archive entries start with the world folder name, which is stripped so files are restored relative to the
+ * destination folder.
+ */
+public class ArchiveExtractor {
+    // Files up to this size are read into memory and written by another thread, larger files are streamed
+    static final int MAX_BUFFERED_FILE_SIZE = 16 << 20;
+    // Limit on the memory used by files waiting to be written
+    static final int MAX_BUFFERED_BYTES = 256 << 20;
+    static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * @param zipFile ZIP backup
+     * @param destination Folder to extract the world files into
+     * @param filter Which files to extract, by path relative to the world folder
+     * @param numThreads Number of files to inflate at once
+     * @return Number of files extracted
+     * @throws Exception If the archive can't be read or a file can't be written
+     */
+    public static long extractZip(Path zipFile, Path destination, Predicate<String> filter, int numThreads) throws Exception {
+        List<ZipEntry> queue = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String relPath = stripRoot(entry.getName());
+                if (!entry.isDirectory() && relPath != null && filter.test(relPath)) {
+                    queue.add(entry);
+                }
+            }
+        }
+        queue.sort(Comparator.comparingLong(ZipEntry::getSize).reversed());
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong extracted = new AtomicLong();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, Math.min(numThreads, queue.size())); i++) {
+            workers.add(BackupExecutors.getCompressionPool().submit(() -> {
+                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+                try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+                    int index;
+                    while ((index = next.getAndIncrement()) < queue.size()) {
+                        ZipEntry entry = queue.get(index);
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            writeStream(in, resolve(destination, stripRoot(entry.getName())), entry.getLastModifiedTime(), buffer);
+                        }
+                        logProgress(extracted.incrementAndGet(), queue.size());
+                    }
+                }
+                return null;
+            }));
+        }
+        awaitAll(workers);
+        return extracted.get();
+    }
+
+    /**
+     * Extracts a decompressed tar stream.  Several tar archives one after another, as written by multi-threaded
+     * compressors, are extracted as one.
+     *
+     * @param tarStream Decompressed tar stream
+     * @param destination Folder to extract the world files into
+     * @param filter Which files to extract, by path relative to the world folder
+     * @return Number of files extracted
+     * @throws Exception If the archive can't be read or a file can't be written
+     */
+    public static long extractTar(InputStream tarStream, Path destination, Predicate<String> filter) throws Exception {
+        Semaphore bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+        List<Future<?>> writes = new ArrayList<>();
+        long extracted = 0;
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        try {
+            boolean foundEntries = true;
+            while (foundEntries) {
+                foundEntries = false;
+                TarArchiveInputStream tar = new TarArchiveInputStream(tarStream);
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextEntry()) != null) {
+                    foundEntries = true;
+                    String relPath = stripRoot(entry.getName());
+                    if (entry.isDirectory() || relPath == null || !filter.test(relPath)) {
+                        continue;
+                    }
+
+                    Path dest = resolve(destination, relPath);
+                    FileTime lastModified = entry.getLastModifiedTime();
+                    if (entry.getSize() > MAX_BUFFERED_FILE_SIZE) {
+                        writeStream(tar, dest, lastModified, buffer);
+                    } else {
+                        int size = (int) entry.getSize();
+                        byte[] data = tar.readNBytes(size);
+                        bufferedBytes.acquire(Math.max(1, size));
+                        writes.add(BackupExecutors.getIoExecutor().submit(() -> {
+                            try {
+                                writeBytes(data, dest, lastModified);
+                            } finally {
+                                bufferedBytes.release(Math.max(1, size));
+                            }
+                            return null;
+                        }));
+                    }
+                    logProgress(++extracted, -1);
+                }
+            }
+            awaitAll(writes);
+        } finally {
+            for (Future<?> write : writes) {
+                write.cancel(true);
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * @return Path relative to the world folder, or null for the world folder itself
+     */
+    private static String stripRoot(String entryName) {
+        String name = entryName.replace('\\', '/');
+        int slash = name.indexOf('/');
+        if (slash < 0 || slash == name.length() - 1) {
+            return null;
+        }
+        return name.substring(slash + 1);
+    }
+
+    /**
+     * Resolves an archive path in the destination, refusing paths that would escape it.
+     */
+    static Path resolve(Path destination, String relPath) throws IOException {
+        Path dest = destination.resolve(relPath).normalize();
+        if (!dest.startsWith(destination.normalize())) {
+            throw new IOException("Archive entry " + relPath + " is outside the world folder");
+        }
+        Files.createDirectories(dest.getParent());
+        return dest;
+    }
+
+    private static void writeStream(InputStream in, Path dest, FileTime lastModified, byte[] buffer) throws IOException {
+        try (OutputStream out = Files.newOutputStream(dest)) {
+            int read;
+            while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        if (lastModified != null) {
+            Files.setLastModifiedTime(dest, lastModified);
+        }
+    }
+
+    static void writeBytes(byte[] data, Path dest, FileTime lastModified) throws IOException {
+        try (FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        if (lastModified != null) {
+            Files.setLastModifiedTime(dest, lastModified);
+        }
+    }
+
+    static void awaitAll(List<Future<?>> futures) throws Exception {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    static void logProgress(long count, long total) {
+        if (total > 0 ? count * 10 / total > (count - 1) * 10 / total : count % 1000 == 0) {
+            SimpleBackup.LOGGER.info(total > 0 ? "Restore progress: {}%" : "Restored {} files", total > 0 ? count * 100 / total : count);
+        }
+    }
+}
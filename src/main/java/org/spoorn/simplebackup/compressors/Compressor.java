@@ -0,0 +1,110 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+
+/**
+ * A backup format.  Implementations are registered in {@link Compressors} and looked up by the {@code backupFormat}
+ * config value or the manual backup command.
+ */
+public interface Compressor {
+
+    /**
+     * @return Name of the format as used in the {@code backupFormat} config, such as "ZIP"
+     */
+    String getFormat();
+
+    /**
+     * @return File extension of backups in this format, or an empty string if backups are folders
+     */
+    String getExtension();
+
+    /**
+     * Called once the config is loaded.
+     */
+    default void init() {
+    }
+
+    /**
+     * Backs up a world folder.  The backup is written under a temporary name and moved to {@link #getBackupFile} with
+     * {@link org.spoorn.simplebackup.util.SimpleBackupUtil#publish} once complete, so an interrupted backup never
+     * shows up as a finished one.
+     *
+     * @param source Scan of the world folder to back up
+     * @param destinationFolder Folder to create the backup in
+     * @param backupName Name of the backup, without the extension
+     * @param manifest Records the checksums of the world files as they are read and of the backup file as it is
+     *                 written, where the format can do so without reading them again, or null to not checksum
+     * @return true if the backup was successful
+     */
+    boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest);
+
+    /**
+     * @param source Scan of the world folder to back up
+     * @return true if {@link #compress(DirectoryScan, Path, String, BackupManifest)} does its CPU heavy work on the
+     *         calling thread, so backups call it from a low priority compression pool thread.  False if it hands its
+     *         work to the compression pool itself and waits for it, or mostly waits on file I/O
+     */
+    default boolean compressesOnCallingThread(DirectoryScan source) {
+        return true;
+    }
+
+    /**
+     * @return true if backups in this format can be written to a stream with {@link #compress(DirectoryScan, OutputStream)}
+     */
+    default boolean supportsStreaming() {
+        return false;
+    }
+
+    /**
+     * Backs up a world folder into a stream, such as an upload, without writing anything to the backup folder.  Always
+     * called from a compression pool thread, so it must not wait for work it submits to the compression pool.
+     *
+     * @param source Scan of the world folder to back up
+     * @param out Stream to write the backup to, which is not closed
+     * @return true if the backup was successful
+     */
+    default boolean compress(DirectoryScan source, OutputStream out) {
+        SimpleBackup.LOGGER.error("{} backups can't be written to a stream", getFormat());
+        return false;
+    }
+
+    /**
+     * Restores the world files from a backup in this format.
+     *
+     * @param backup Backup file or folder, as created by {@link #compress}
+     * @param destination Empty folder to restore the world files into
+     * @param filter Which files to restore, by path relative to the world folder with '/' separators
+     * @param numThreads Number of threads to restore with
+     * @return true if the restore was successful
+     */
+    default boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        SimpleBackup.LOGGER.error("Restoring {} backups is not supported", getFormat());
+        return false;
+    }
+
+    /**
+     * @return Path of the backup file or folder that {@link #compress} creates
+     */
+    default Path getBackupFile(Path destinationFolder, String backupName) {
+        return destinationFolder.resolve(backupName + getExtension());
+    }
+
+    /**
+     * @return Path of the backup relative to the backup folder, to show in broadcast messages
+     */
+    default String getDisplayPath(String backupName, String worldFolderName) {
+        return backupName + getExtension();
+    }
+
+    /**
+     * Called after old backups were deleted from the backup folder, to clean up any data they shared with other backups.
+     */
+    default void onBackupsDeleted(Path backupFolder) {
+    }
+}
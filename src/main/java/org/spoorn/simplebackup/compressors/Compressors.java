@@ -0,0 +1,43 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registry of supported backup formats.
+ */
+public class Compressors {
+    private static final Map<String, Compressor> REGISTRY = new LinkedHashMap<>();
+
+    public static void init() {
+        register(new ZipCompressor());
+        register(new DirectoryCompressor());
+        register(new LZ4Compressor());
+        register(new IncrementalCompressor());
+        register(new ZstdCompressor());
+        register(new NbtArchiveCompressor());
+
+        for (Compressor compressor : REGISTRY.values()) {
+            compressor.init();
+        }
+    }
+
+    public static void register(Compressor compressor) {
+        REGISTRY.put(compressor.getFormat().toUpperCase(Locale.ROOT), compressor);
+    }
+
+    /**
+     * @param format Backup format, case-insensitive
+     * @return The compressor for the format, or null if the format is not supported
+     */
+    public static Compressor get(String format) {
+        return format == null ? null : REGISTRY.get(format.toUpperCase(Locale.ROOT));
+    }
+
+    public static Collection<Compressor> getAll() {
+        return Collections.unmodifiableCollection(REGISTRY.values());
+    }
+}
@@ -0,0 +1,138 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupCheckpoint;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.FileIndex;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Copies the world folder as-is into a folder named after the backup.  The copy is made in the format's staging folder
+ * and renamed into place once complete, so an interrupted copy resumes from its {@link BackupCheckpoint}.
+ */
+public class DirectoryCompressor implements Compressor {
+    // Folder in the staging folder that is renamed to the backup's name once complete
+    private static final String STAGED_FOLDER = "backup";
+
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.DIRECTORY_FORMAT;
+    }
+
+    @Override
+    public String getExtension() {
+        return "";
+    }
+
+    @Override
+    public String getDisplayPath(String backupName, String worldFolderName) {
+        return backupName + "/" + worldFolderName;
+    }
+
+    @Override
+    public boolean compressesOnCallingThread(DirectoryScan source) {
+        // Copies are spread over virtual threads, which only wait on file I/O
+        return false;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest) {
+        String worldFolderName = source.getRoot().getFileName().toString();
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(destinationFolder, getFormat(), backupName, worldFolderName)) {
+            Path staged = checkpoint.getFolder().resolve(STAGED_FOLDER);
+            if (!copy(source, destinationFolder, backupName, staged.resolve(worldFolderName), checkpoint)) {
+                return false;
+            }
+            checkpoint.publish(staged, getBackupFile(destinationFolder, backupName));
+            return true;
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not back up [" + source.getRoot() + "] to folder " + getBackupFile(destinationFolder, backupName), e);
+            return false;
+        }
+    }
+
+    private boolean copy(DirectoryScan source, Path destinationFolder, String backupName, Path destination, BackupCheckpoint checkpoint) {
+        String worldFolderName = source.getRoot().getFileName().toString();
+        SimpleBackupUtil.createDirectoryFailSafe(destination);
+        if (!ModConfig.getInstance().hardLinkUnchangedFiles) {
+            return SimpleBackupUtil.copyDirectoriesFailSafe(source, destination, null, null, checkpoint);
+        }
+
+        // The file index finds unchanged files without reading the previous backup, including files saved again with
+        // the same content
+        Path indexFile = FileIndex.getIndexFile(destinationFolder, getFormat());
+        FileIndex.Scan scan = null;
+        try {
+            scan = FileIndex.load(indexFile).scan(source);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.warn("Could not scan [{}] against the file index, only comparing sizes and modified times: {}", source.getRoot(), e.toString());
+        }
+
+        Path linkSource = findPreviousDirectoryBackup(destinationFolder, worldFolderName, backupName);
+        FileIndex.Scan unchangedFiles = null;
+        if (linkSource != null) {
+            SimpleBackup.LOGGER.info("Hard linking files unchanged since the previous backup at {}", linkSource);
+            if (scan != null && linkSource.getParent().getFileName().toString().equals(scan.getPreviousBackupName())) {
+                unchangedFiles = scan;
+            }
+        }
+        boolean copied = SimpleBackupUtil.copyDirectoriesFailSafe(source, destination, linkSource, unchangedFiles, checkpoint);
+        if (copied && scan != null) {
+            scan.writeFailSafe(indexFile, backupName);
+        }
+        return copied;
+    }
+
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        // The backup folder holds a single folder named after the world
+        File[] worldFolders = backup.toFile().listFiles(File::isDirectory);
+        if (worldFolders == null || worldFolders.length != 1) {
+            SimpleBackup.LOGGER.error("Expected a single world folder in backup {}", backup);
+            return false;
+        }
+
+        try {
+            DirectoryScan scan = DirectoryScan.scan(worldFolders[0].toPath()).filter(filter);
+            SimpleBackup.LOGGER.info("Restoring {} files from {}", scan.getFileCount(), backup);
+            return SimpleBackupUtil.copyDirectoriesFailSafe(scan, destination, null, null);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore directory backup [" + backup + "] to [" + destination + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Finds the world folder of the most recent DIRECTORY backup before this one.
+     *
+     * @param destinationFolder Backup folder
+     * @param worldFolderName Name of the world folder inside the backup
+     * @param backupName Name of the backup currently being created
+     * @return Path to the world folder of the previous backup, or null if there is none
+     */
+    private static Path findPreviousDirectoryBackup(Path destinationFolder, String worldFolderName, String backupName) {
+        File[] backupFiles = destinationFolder.toFile().listFiles(File::isDirectory);
+        if (backupFiles == null) {
+            return null;
+        }
+
+        // Backup names are timestamps, so the lexicographically largest name before this backup is the most recent
+        Path previous = null;
+        for (File backupFile : backupFiles) {
+            String name = backupFile.getName();
+            if (!name.startsWith(".") && name.compareTo(backupName) < 0 && Files.isDirectory(backupFile.toPath().resolve(worldFolderName))
+                    && (previous == null || name.compareTo(previous.getParent().getFileName().toString()) > 0)) {
+                previous = backupFile.toPath().resolve(worldFolderName);
+            }
+        }
+        return previous;
+    }
+}
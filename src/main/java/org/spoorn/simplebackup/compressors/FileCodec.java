@@ -0,0 +1,98 @@
+package org.spoorn.simplebackup.compressors;
+
+import org.spoorn.simplebackup.util.RegionFileHeader;
+
+/**
+ * How a file is compressed inside an archive, chosen per file by {@code perFileCompression} so that data which is
+ * already compressed isn't compressed again.  The choice is made from the file name and the first bytes of the file,
+ * which the archive formats read anyway.
+ */
+public enum FileCodec {
+    // Already compressed, such as gzipped .dat files and images, so written as is
+    STORE,
+    // Region files, whose chunks are already compressed but whose header and the space between chunks compress well
+    REGION,
+    // Compresses somewhat, so a fast compression
+    FAST,
+    // Text, uncompressed NBT and small files, which compress well
+    STRONG;
+
+    // Bytes of the start of a file that are looked at
+    public static final int SAMPLE_SIZE = 4096;
+    // Files smaller than this compress quickly anyway, and their byte entropy can't be estimated well
+    private static final int MIN_ENTROPY_SAMPLE = 1024;
+    // Bits per byte above which data is already compressed or random
+    private static final double STORE_ENTROPY = 7.5;
+    // Bits per byte below which data compresses well
+    private static final double STRONG_ENTROPY = 6.0;
+    private static final byte[][] COMPRESSED_MAGIC = {
+        {0x1f, (byte) 0x8b},                                  // gzip, including most .dat files
+        {0x78, 0x01}, {0x78, 0x5e}, {0x78, (byte) 0x9c}, {0x78, (byte) 0xda},  // zlib
+        {0x50, 0x4b, 0x03, 0x04},                             // zip and jar
+        {(byte) 0x89, 0x50, 0x4e, 0x47},                      // png
+        {(byte) 0xff, (byte) 0xd8, (byte) 0xff},              // jpeg
+        {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},               // zstd
+        {0x04, 0x22, 0x4d, 0x18},                             // lz4 frame
+        {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},          // xz
+        {0x42, 0x5a, 0x68},                                   // bzip2
+        {0x4f, 0x67, 0x67, 0x53}                              // ogg
+    };
+
+    /**
+     * @param name Name or path of the file
+     * @param sample The start of the file, up to {@link #SAMPLE_SIZE} bytes are used
+     * @param length Number of bytes in the sample, less than its length only if the file is shorter
+     * @return How to compress the file
+     */
+    public static FileCodec select(String name, byte[] sample, int length) {
+        if (RegionFileHeader.isRegionFile(name)) {
+            return REGION;
+        }
+        if (hasCompressedMagic(sample, length)) {
+            return STORE;
+        }
+        if (length < MIN_ENTROPY_SAMPLE) {
+            return STRONG;
+        }
+
+        double entropy = getEntropy(sample, Math.min(length, SAMPLE_SIZE));
+        if (entropy >= STORE_ENTROPY) {
+            return STORE;
+        }
+        return entropy < STRONG_ENTROPY ? STRONG : FAST;
+    }
+
+    private static boolean hasCompressedMagic(byte[] sample, int length) {
+        outer:
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (length < magic.length) {
+                continue;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if (sample[i] != magic[i]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Shannon entropy of the bytes in bits per byte, from 0 for a single repeated byte to 8 for random data
+     */
+    static double getEntropy(byte[] sample, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
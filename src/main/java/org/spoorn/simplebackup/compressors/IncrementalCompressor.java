@@ -0,0 +1,534 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.FileIndex;
+import org.spoorn.simplebackup.util.RegionFileHeader;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+/**
+ * Content-addressed, deduplicating backups.  Files are split into fixed size chunks which are stored by their SHA-256
+ * hash in a chunk store shared by all incremental backups.  Each backup itself is only a small manifest listing the
+ * chunks that make up every file, so unchanged data is never written twice.
+ *
+ * <p>Region files (.mca) can instead be stored per Minecraft chunk, using the timestamps in the region header to only
+ * read and store the chunks that were saved since the previous backup.
+ */
+public class IncrementalCompressor implements Compressor {
+    public static final String MANIFEST_EXTENSION = ".manifest";
+    public static final String CHUNK_STORE_FOLDER = ".chunks";
+    private static final String MANIFEST_HEADER_V1 = "SIMPLEBACKUP-INCREMENTAL 1";
+    private static final String MANIFEST_HEADER = "SIMPLEBACKUP-INCREMENTAL 2";
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final HexFormat HEX = HexFormat.of();
+    private boolean shouldLogBackupProgress = false;
+
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.INCREMENTAL_FORMAT;
+    }
+
+    @Override
+    public String getExtension() {
+        return MANIFEST_EXTENSION;
+    }
+
+    @Override
+    public void init() {
+        shouldLogBackupProgress = ModConfig.getInstance().intervalPercentageToLogBackupProgress > 0 && ModConfig.getInstance().intervalPercentageToLogBackupProgress <= 100;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationPath, String outputFileBaseName, BackupManifest manifest) {
+        Path targetPath = source.getRoot();
+        Path manifestFile = destinationPath.resolve(outputFileBaseName + MANIFEST_EXTENSION);
+        Path tmpManifestFile = destinationPath.resolve(outputFileBaseName + MANIFEST_EXTENSION + ".tmp");
+        Path previousManifestFile = null;
+        try {
+            Path chunkStore = destinationPath.resolve(CHUNK_STORE_FOLDER);
+            Files.createDirectories(chunkStore);
+            previousManifestFile = findLatestManifest(destinationPath);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not prepare incremental backup chunk store in [" + destinationPath + "]", e);
+            return false;
+        }
+
+        // Files saved again with the same content since the previous backup are found using the file index
+        Path indexFile = FileIndex.getIndexFile(destinationPath, getFormat());
+        FileIndex.Scan scan = null;
+        try {
+            scan = FileIndex.load(indexFile).scan(source);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.warn("Could not scan [{}] against the file index, only comparing sizes and modified times: {}", targetPath, e.toString());
+        }
+        final FileIndex.Scan unchangedFiles = scan != null && previousManifestFile != null
+                && previousManifestFile.getFileName().toString().equals(scan.getPreviousBackupName() + MANIFEST_EXTENSION) ? scan : null;
+
+        // Files whose size and modified time match the previous backup reuse its chunks without being read again
+        try (PreviousManifest previous = new PreviousManifest(previousManifestFile)) {
+            Path chunkStore = destinationPath.resolve(CHUNK_STORE_FOLDER);
+            final boolean regionAware = ModConfig.getInstance().regionAwareIncrementalBackups;
+            final long fileCount = source.getFileCount();
+            final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+            long[] stats = {0, 0, 0, 0};  // files processed, files reused, new chunks written, region chunks reused
+            byte[] buffer = new byte[CHUNK_SIZE];
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            OutputStream manifestOut = Files.newOutputStream(tmpManifestFile);
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(manifest != null ? manifest.hashArchive(manifestOut) : manifestOut,
+                    StandardCharsets.UTF_8))) {
+                writer.write(MANIFEST_HEADER);
+                writer.newLine();
+
+                for (DirectoryScan.ScannedFile file : source.getFiles()) {
+                    String relPath = file.relPath();
+                    long size = file.size();
+                    long lastModified = file.lastModified();
+
+                    ManifestEntry previousEntry = previous.get(relPath);
+                    ManifestEntry entry = null;
+                    try {
+                        if (previousEntry != null && previousEntry.size == size && previousEntry.lastModified == lastModified) {
+                            entry = previousEntry;
+                            stats[1]++;
+                        } else if (previousEntry != null && unchangedFiles != null && unchangedFiles.isUnchanged(relPath, size, lastModified)) {
+                            entry = new ManifestEntry(relPath, size, lastModified, previousEntry.chunks, previousEntry.regionChunks);
+                            stats[1]++;
+                        } else if (regionAware && RegionFileHeader.isRegionFile(relPath)) {
+                            entry = storeRegionFile(file.path(), relPath, size, lastModified, previousEntry, chunkStore, digest, stats);
+                        }
+                        if (entry == null) {
+                            entry = new ManifestEntry(relPath, size, lastModified, storeChunks(file.path(), chunkStore, buffer, digest, stats), List.of());
+                        }
+                    } catch (NoSuchFileException e) {
+                        // Deleted since it was scanned
+                        entry = null;
+                    }
+                    if (entry != null) {
+                        writer.write(entry.toLine());
+                        writer.newLine();
+                    }
+
+                    if (shouldLogBackupProgress) {
+                        int prevPercent = (int) ((float) stats[0] / fileCount * 100);
+                        int currPercent = (int) ((float) (stats[0] + 1) / fileCount * 100);
+                        if (prevPercent / interval < currPercent / interval) {
+                            SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
+                        }
+                    }
+                    stats[0]++;
+                }
+            }
+
+            SimpleBackupUtil.publish(tmpManifestFile, manifestFile);
+            if (scan != null) {
+                scan.writeFailSafe(indexFile, outputFileBaseName);
+            }
+            SimpleBackup.LOGGER.info("Incremental backup processed {} files, {} unchanged since the previous backup, {} unchanged region chunks reused, {} new chunks stored",
+                    stats[0], stats[1], stats[3], stats[2]);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not create incremental backup of target=[" + targetPath + "] to [" + manifestFile + "]", e);
+            try {
+                Files.deleteIfExists(tmpManifestFile);
+            } catch (IOException ex) {
+                SimpleBackup.LOGGER.error("Could not delete temporary manifest " + tmpManifestFile, ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Restores an incremental backup by reassembling the files in the manifest from the chunk store next to it.
+     * Region files are rebuilt by writing their header and each stored chunk back at its sector offset.
+     */
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        return restoreManifest(backup, destination, filter, numThreads);
+    }
+
+    /**
+     * Restores the files in the manifest that match the filter, largest first with several files in flight at once.
+     */
+    private static boolean restoreManifest(Path manifestFile, Path destinationPath, Predicate<String> filter, int numThreads) {
+        try {
+            Path chunkStore = manifestFile.toAbsolutePath().getParent().resolve(CHUNK_STORE_FOLDER);
+            List<ManifestEntry> queue = new ArrayList<>();
+            readManifest(manifestFile, entry -> {
+                if (filter.test(entry.path)) {
+                    queue.add(entry);
+                }
+            });
+            queue.sort(Comparator.comparingLong(ManifestEntry::size).reversed());
+            SimpleBackup.LOGGER.info("Restoring {} files from {}", queue.size(), manifestFile);
+
+            AtomicInteger next = new AtomicInteger();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.max(1, Math.min(numThreads, queue.size())); i++) {
+                workers.add(BackupExecutors.getIoExecutor().submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < queue.size()) {
+                        restoreFile(queue.get(index), destinationPath, chunkStore);
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } finally {
+                for (Future<?> worker : workers) {
+                    worker.cancel(true);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore incremental backup [" + manifestFile + "] to [" + destinationPath + "]", e);
+            return false;
+        }
+    }
+
+    private static void restoreFile(ManifestEntry entry, Path destinationPath, Path chunkStore) throws IOException {
+        Path dest = destinationPath.resolve(entry.path);
+        Files.createDirectories(dest.getParent());
+        if (entry.regionChunks.isEmpty()) {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(dest), 1 << 20)) {
+                for (String hash : entry.chunks) {
+                    Files.copy(getChunkPath(chunkStore, hash), out);
+                }
+            }
+        } else {
+            restoreRegionFile(entry, dest, chunkStore);
+        }
+        Files.setLastModifiedTime(dest, FileTime.fromMillis(entry.lastModified));
+    }
+
+    /**
+     * Deletes chunks from the chunk store that are no longer referenced by any manifest in the backup folder.
+     */
+    @Override
+    public void onBackupsDeleted(Path backupPath) {
+        Path chunkStore = backupPath.resolve(CHUNK_STORE_FOLDER);
+        if (Files.notExists(chunkStore)) {
+            return;
+        }
+
+        try {
+            Set<String> referenced = new HashSet<>();
+            try (Stream<Path> manifests = Files.list(backupPath)) {
+                for (Path manifest : (Iterable<Path>) manifests.filter(IncrementalCompressor::isManifest)::iterator) {
+                    readManifest(manifest, entry -> {
+                        referenced.addAll(entry.chunks);
+                        for (RegionChunk regionChunk : entry.regionChunks) {
+                            referenced.add(regionChunk.hash);
+                        }
+                    });
+                }
+            }
+
+            long[] deleted = {0};
+            Files.walkFileTree(chunkStore, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!referenced.contains(file.getFileName().toString())) {
+                        Files.delete(file);
+                        deleted[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if (deleted[0] > 0) {
+                SimpleBackup.LOGGER.info("Deleted {} unreferenced chunks from the incremental chunk store", deleted[0]);
+            }
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not clean up the incremental chunk store at " + chunkStore, e);
+        }
+    }
+
+    private static List<String> storeChunks(Path file, Path chunkStore, byte[] buffer, MessageDigest digest, long[] stats) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                BackupThrottle.acquire(read);
+                chunks.add(storeChunk(buffer, read, chunkStore, digest, stats));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Stores a region file as its 8 KiB header plus one stored chunk per Minecraft chunk.  Minecraft chunks whose
+     * location and timestamp in the header did not change since the previous backup are reused without being read.
+     *
+     * @return The manifest entry, or null if the file is not a valid region file and should be stored as-is
+     */
+    private static ManifestEntry storeRegionFile(Path file, String relPath, long size, long lastModified, ManifestEntry previousEntry,
+                                                 Path chunkStore, MessageDigest digest, long[] stats) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            RegionFileHeader header = RegionFileHeader.read(channel);
+            if (header == null) {
+                return null;
+            }
+
+            RegionChunk[] previousChunks = new RegionChunk[RegionFileHeader.CHUNK_COUNT];
+            // A chunk saved in the same second the previous backup read the file may have changed without a new timestamp
+            long previousSeconds = -1;
+            if (previousEntry != null) {
+                for (RegionChunk regionChunk : previousEntry.regionChunks) {
+                    previousChunks[regionChunk.index] = regionChunk;
+                }
+                previousSeconds = previousEntry.lastModified / 1000;
+            }
+
+            List<String> chunks = List.of(storeChunk(header.getRaw(), RegionFileHeader.HEADER_SIZE, chunkStore, digest, stats));
+            List<RegionChunk> regionChunks = new ArrayList<>();
+            for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+                if (!header.hasChunk(i)) {
+                    continue;
+                }
+
+                int location = header.getLocation(i);
+                int timestamp = header.getTimestamp(i);
+                RegionChunk previousChunk = previousChunks[i];
+                if (previousChunk != null && previousChunk.location == location && previousChunk.timestamp == timestamp
+                        && timestamp < previousSeconds) {
+                    regionChunks.add(previousChunk);
+                    stats[3]++;
+                    continue;
+                }
+
+                ByteBuffer data = ByteBuffer.allocate(header.getSectorCount(i) * RegionFileHeader.SECTOR_SIZE);
+                BackupThrottle.acquire(data.capacity());
+                long position = (long) header.getSectorOffset(i) * RegionFileHeader.SECTOR_SIZE;
+                int read;
+                while (data.hasRemaining() && (read = channel.read(data, position + data.position())) >= 0) {
+                    if (read == 0) {
+                        break;
+                    }
+                }
+                regionChunks.add(new RegionChunk(i, location, timestamp, storeChunk(data.array(), data.position(), chunkStore, digest, stats)));
+            }
+            return new ManifestEntry(relPath, size, lastModified, chunks, regionChunks);
+        }
+    }
+
+    private static void restoreRegionFile(ManifestEntry entry, Path dest, Path chunkStore) throws IOException {
+        try (FileChannel channel = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.wrap(Files.readAllBytes(getChunkPath(chunkStore, entry.chunks.get(0)))), 0);
+            for (RegionChunk regionChunk : entry.regionChunks) {
+                long position = (long) RegionFileHeader.getSectorOffsetFromLocation(regionChunk.location) * RegionFileHeader.SECTOR_SIZE;
+                writeFully(channel, ByteBuffer.wrap(Files.readAllBytes(getChunkPath(chunkStore, regionChunk.hash))), position);
+            }
+            // Unused sectors between chunks are left as zeros
+            if (channel.size() < entry.size) {
+                writeFully(channel, ByteBuffer.allocate(1), entry.size - 1);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static String storeChunk(byte[] data, int length, Path chunkStore, MessageDigest digest, long[] stats) throws IOException {
+        digest.update(data, 0, length);
+        String hash = HEX.formatHex(digest.digest());
+        Path chunkPath = getChunkPath(chunkStore, hash);
+        if (Files.notExists(chunkPath)) {
+            Files.createDirectories(chunkPath.getParent());
+            // Write to a temporary file first so a crash never leaves a truncated chunk behind under its hash
+            Path tmp = Files.createTempFile(chunkPath.getParent(), hash, ".tmp");
+            try {
+                Files.write(tmp, length == data.length ? data : Arrays.copyOf(data, length));
+                Files.move(tmp, chunkPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            stats[2]++;
+        }
+        return hash;
+    }
+
+    private static Path getChunkPath(Path chunkStore, String hash) {
+        return chunkStore.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static boolean isManifest(Path path) {
+        return path.getFileName().toString().endsWith(MANIFEST_EXTENSION) && Files.isRegularFile(path);
+    }
+
+    private static Path findLatestManifest(Path backupPath) throws IOException {
+        // Backup names are timestamps, so the lexicographically largest manifest is the most recent
+        try (Stream<Path> files = Files.list(backupPath)) {
+            return files.filter(IncrementalCompressor::isManifest)
+                    .max((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()))
+                    .orElse(null);
+        }
+    }
+
+    private static void readManifest(Path manifestFile, ManifestConsumer consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!MANIFEST_HEADER.equals(line) && !MANIFEST_HEADER_V1.equals(line)) {
+                throw new IOException("Unrecognized incremental backup manifest " + manifestFile);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    consumer.accept(ManifestEntry.fromLine(line));
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ManifestConsumer {
+        void accept(ManifestEntry entry) throws IOException;
+    }
+
+    /**
+     * Lookup into the previous backup's manifest.  Only the byte offset of each file's line is kept in memory, and
+     * entries are parsed on demand, as region file entries can list up to 1024 chunks each.
+     */
+    private static class PreviousManifest implements AutoCloseable {
+        private final Map<String, Long> offsets = new HashMap<>();
+        private final FileChannel channel;
+
+        PreviousManifest(Path manifestFile) throws IOException {
+            if (manifestFile == null) {
+                this.channel = null;
+                return;
+            }
+
+            this.channel = FileChannel.open(manifestFile, StandardOpenOption.READ);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(manifestFile))) {
+                ByteArrayOutputStream path = new ByteArrayOutputStream();
+                long offset = 0;
+                long lineStart = 0;
+                boolean inPath = true;
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        lineStart = offset;
+                        inPath = true;
+                        path.reset();
+                    } else if (inPath && b == '\t') {
+                        // The header line has no tabs, so every line with a tab is a file entry
+                        this.offsets.put(path.toString(StandardCharsets.UTF_8), lineStart);
+                        inPath = false;
+                    } else if (inPath) {
+                        path.write(b);
+                    }
+                }
+            }
+        }
+
+        ManifestEntry get(String path) throws IOException {
+            Long offset = this.offsets.get(path);
+            if (offset == null) {
+                return null;
+            }
+            BufferedReader reader = new BufferedReader(Channels.newReader(this.channel.position(offset), StandardCharsets.UTF_8));
+            return ManifestEntry.fromLine(reader.readLine());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        }
+    }
+
+    private record RegionChunk(int index, int location, int timestamp, String hash) {
+
+        @Override
+        public String toString() {
+            return index + ":" + location + ":" + timestamp + ":" + hash;
+        }
+
+        static RegionChunk fromString(String str) {
+            String[] parts = str.split(":");
+            return new RegionChunk(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[3]);
+        }
+    }
+
+    /**
+     * A file in the manifest.  Regular files list the chunks of their content in order.  Region files list the chunk
+     * of their 8 KiB header, followed by the stored Minecraft chunks with their header location and timestamp.
+     */
+    private record ManifestEntry(String path, long size, long lastModified, List<String> chunks, List<RegionChunk> regionChunks) {
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(path).append('\t').append(size).append('\t').append(lastModified).append('\t').append(String.join(",", chunks)).append('\t');
+            for (int i = 0; i < regionChunks.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(regionChunks.get(i));
+            }
+            return sb.toString();
+        }
+
+        static ManifestEntry fromLine(String line) throws IOException {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 4 && parts.length != 5) {
+                throw new IOException("Malformed incremental backup manifest line: " + line);
+            }
+            List<String> chunks = parts[3].isEmpty() ? List.of() : List.of(parts[3].split(","));
+            List<RegionChunk> regionChunks = new ArrayList<>();
+            if (parts.length == 5 && !parts[4].isEmpty()) {
+                for (String regionChunk : parts[4].split(",")) {
+                    regionChunks.add(RegionChunk.fromString(regionChunk));
+                }
+            }
+            return new ManifestEntry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), chunks, regionChunks);
+        }
+    }
+}
@@ -1,32 +1,98 @@
 package org.spoorn.simplebackup.compressors;
 
-import java.util.concurrent.Executors;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.spoorn.simplebackup.BackupExecutors;
 import org.spoorn.simplebackup.SimpleBackup;
 import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
 import org.spoorn.tarlz4java.api.TarLz4Compressor;
 import org.spoorn.tarlz4java.api.TarLz4CompressorBuilder;
 import org.spoorn.tarlz4java.logging.Verbosity;
-import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
 
-public class LZ4Compressor {
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+public class LZ4Compressor implements Compressor {
     public static final String TAR_LZ4_EXTENSION = ".tar.lz4";
-    private static boolean shouldLogBackupProgress = false;
+    public static final String FAST_MODE = "FAST";
+    public static final String HIGH_MODE = "HIGH";
+    private boolean shouldLogBackupProgress = false;
+
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.LZ4_FORMAT;
+    }
 
-    public static void init() {
+    @Override
+    public String getExtension() {
+        return TAR_LZ4_EXTENSION;
+    }
+
+    @Override
+    public void init() {
         shouldLogBackupProgress = ModConfig.getInstance().intervalPercentageToLogBackupProgress > 0 && ModConfig.getInstance().intervalPercentageToLogBackupProgress <= 100;
     }
 
-    // TODO: Add support for switching between fast vs high compressor
-    public static boolean compress(String targetPath, String destinationPath, String outputFileBaseName) {
+    @Override
+    public boolean compressesOnCallingThread(DirectoryScan source) {
+        // tar-lz4-java compresses on the compression pool and waits for it
+        return HIGH_MODE.equalsIgnoreCase(ModConfig.getInstance().lz4CompressionMode) || source.isFiltered();
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest) {
+        // tar-lz4-java walks the folder itself, so LZ4 HC and backups of only some of the files go through the scan on one thread
+        if (HIGH_MODE.equalsIgnoreCase(ModConfig.getInstance().lz4CompressionMode) || source.isFiltered()) {
+            return compressScan(source, destinationFolder, backupName, getScanCompressor(), manifest);
+        }
+        // tar-lz4-java names the archive itself, so it is written into a temporary folder and renamed out of it
+        Path destinationFile = getBackupFile(destinationFolder, backupName);
+        Path tmpFolder = destinationFolder.resolve(backupName + TAR_LZ4_EXTENSION + ".tmp");
+        try {
+            Files.createDirectories(tmpFolder);
+            if (!compress(source.getRoot().toString(), tmpFolder.toString(), backupName)) {
+                return false;
+            }
+            SimpleBackupUtil.publish(tmpFolder.resolve(destinationFile.getFileName()), destinationFile);
+            return true;
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not lz4 compress target=[" + source.getRoot() + "] to [" + destinationFile + "]", e);
+            return false;
+        } finally {
+            try {
+                if (Files.exists(tmpFolder)) {
+                    SimpleBackupUtil.deleteRecursively(tmpFolder);
+                }
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.error("Could not delete temporary folder " + tmpFolder, e);
+            }
+        }
+    }
+
+    public boolean compress(String targetPath, String destinationPath, String outputFileBaseName) {
         try {
-            int numThreads = ModConfig.getInstance().numThreads;
+            // tar-lz4-java reads the files on its own threads, so only the number of threads can be throttled
+            int numThreads = BackupThrottle.getWorkerCount(ModConfig.getInstance().numThreads);
             TarLz4Compressor compressor = new TarLz4CompressorBuilder()
                     .numThreads(numThreads)
                     .bufferSize(ModConfig.getInstance().multiThreadBufferSize)
                     .logProgressPercentInterval(ModConfig.getInstance().intervalPercentageToLogBackupProgress)
-                    .executorService(Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("SimpleBackup")))
+                    .executorService(BackupExecutors.borrowCompressionPool())
                     .shouldLogProgress(shouldLogBackupProgress)
                     .verbosity(Verbosity.DEBUG)
                     .excludeFiles(SimpleBackupUtil.FILES_TO_SKIP_COPY)
@@ -37,4 +103,121 @@ public class LZ4Compressor {
             return false;
         }
     }
+
+    /**
+     * Compresses the scanned files as a single stream, on one thread.  Used for LZ4 HC, which trades compression speed
+     * for a smaller archive while keeping LZ4's decompression speed.
+     */
+    private boolean compressScan(DirectoryScan source, Path destinationFolder, String backupName, net.jpountz.lz4.LZ4Compressor lz4,
+                                 BackupManifest manifest) {
+        Path destinationFile = getBackupFile(destinationFolder, backupName);
+        Path tmpFile = destinationFolder.resolve(backupName + TAR_LZ4_EXTENSION + ".tmp");
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(tmpFile)) {
+                write(source, manifest != null ? manifest.hashArchive(fileOut) : fileOut, lz4, manifest);
+            }
+            SimpleBackupUtil.publish(tmpFile, destinationFile);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not lz4 compress target=[" + source.getRoot() + "] to [" + destinationFile + "]", e);
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException ex) {
+                SimpleBackup.LOGGER.error("Could not delete temporary file " + tmpFile, ex);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * tar-lz4-java only writes to files, so the FAST mode is streamed on one thread with the fast compressor.
+     */
+    @Override
+    public boolean compress(DirectoryScan source, OutputStream out) {
+        try {
+            write(source, CloseShieldOutputStream.wrap(out), getScanCompressor(), null);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not lz4 compress target=[" + source.getRoot() + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the scanned files as a tar in the LZ4 frame format, closing the stream.
+     *
+     * @param manifest Records the checksums of the files, or null
+     */
+    private void write(DirectoryScan source, OutputStream target, net.jpountz.lz4.LZ4Compressor lz4, BackupManifest manifest) throws IOException {
+        try (LZ4FrameOutputStream lz4Out = new LZ4FrameOutputStream(target, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L,
+                lz4,
+                XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE)) {
+            OutputStream out = new BufferedOutputStream(lz4Out, Math.max(8192, ModConfig.getInstance().multiThreadBufferSize));
+            TarArchiver.archive(source, out, shouldLogBackupProgress, lz4 instanceof CodecSwitchingCompressor switching ? switching::setCodec : null, manifest);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return The compressor for the configured mode, when the files are compressed as a single stream
+     */
+    private static net.jpountz.lz4.LZ4Compressor getScanCompressor() {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        if (!HIGH_MODE.equalsIgnoreCase(ModConfig.getInstance().lz4CompressionMode)) {
+            return factory.fastCompressor();
+        }
+        net.jpountz.lz4.LZ4Compressor high = factory.highCompressor(ModConfig.getInstance().lz4HighCompressionLevel);
+        return ModConfig.getInstance().perFileCompression ? new CodecSwitchingCompressor(high, factory.fastCompressor()) : high;
+    }
+
+    /**
+     * Both compression modes write a tar archive in the LZ4 frame format.
+     */
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        try (InputStream in = new LZ4FrameInputStream(new BufferedInputStream(Files.newInputStream(backup), 1 << 20))) {
+            long extracted = ArchiveExtractor.extractTar(in, destination, filter);
+            SimpleBackup.LOGGER.info("Restored {} files from {}", extracted, backup);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore lz4 backup [" + backup + "] to [" + destination + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Compresses blocks with LZ4 HC while the files being archived compress well, and with the fast compressor
+     * otherwise, as HC is slow on already compressed data and barely makes it smaller.  The tar stream is flushed when
+     * the codec changes, so each block is mostly files of one codec.
+     */
+    private static class CodecSwitchingCompressor extends net.jpountz.lz4.LZ4Compressor {
+        private final net.jpountz.lz4.LZ4Compressor high;
+        private final net.jpountz.lz4.LZ4Compressor fast;
+        private net.jpountz.lz4.LZ4Compressor current;
+
+        CodecSwitchingCompressor(net.jpountz.lz4.LZ4Compressor high, net.jpountz.lz4.LZ4Compressor fast) {
+            this.high = high;
+            this.fast = fast;
+            this.current = high;
+        }
+
+        void setCodec(FileCodec codec) {
+            this.current = codec == FileCodec.STRONG ? this.high : this.fast;
+        }
+
+        @Override
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+            return this.current.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        }
+
+        @Override
+        public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+            return this.current.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        }
+    }
 }
@@ -0,0 +1,520 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.RegionFileHeader;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Archives the world folder with the chunks in region files unpacked, compressed with Zstandard into a .nbt.zst file.
+ *
+ * <p>Each chunk in a region file is its own small zlib stream, so region files barely compress as a whole.  This
+ * format inflates every chunk and writes the raw chunk NBT into one Zstandard stream, where the block palettes and
+ * structures repeated across chunks are compressed together.  Restoring deflates the chunks again and lays them out
+ * one after another in a new region file with the original timestamps, which Minecraft reads the same as the original.
+ *
+ * <p>The archive is a stream of records, as chunk sizes are only known once they are inflated:
+ * <pre>
+ *   int MAGIC, int VERSION
+ *   FILE:   byte 1, UTF path, long lastModified, long size, size bytes
+ *   REGION: byte 2, UTF path, long lastModified, 4 KiB timestamps, unsigned short chunk count, chunk count times:
+ *           unsigned short index, byte compression type, boolean inflated, int length, length bytes
+ *   byte 0
+ * </pre>
+ * Paths are relative to the world folder with '/' separators.  Chunks that aren't gzip or zlib, or that fail to inflate,
+ * are kept as they are.  Region files with invalid chunk locations are stored as regular files.
+ */
+public class NbtArchiveCompressor implements Compressor {
+    public static final String NBT_ZST_EXTENSION = ".nbt.zst";
+    private static final int MAGIC = 0x53424E42;  // "SBNB"
+    private static final int VERSION = 1;
+    private static final byte END = 0;
+    private static final byte FILE = 1;
+    private static final byte REGION = 2;
+    // Long distance matching over a 16 MiB window, so chunks compress against the chunks written before them.  The
+    // inflated chunks of a single region file are often larger than that, so this mostly finds matches within the same
+    // region file, and only reaches back into the previous region file near its start
+    private static final int WINDOW_LOG = 24;
+    private static final byte[] ZEROS = new byte[RegionFileHeader.SECTOR_SIZE];
+    private boolean shouldLogBackupProgress = false;
+
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.NBT_FORMAT;
+    }
+
+    @Override
+    public String getExtension() {
+        return NBT_ZST_EXTENSION;
+    }
+
+    @Override
+    public void init() {
+        shouldLogBackupProgress = ModConfig.getInstance().intervalPercentageToLogBackupProgress > 0 && ModConfig.getInstance().intervalPercentageToLogBackupProgress <= 100;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest) {
+        Path destinationFile = getBackupFile(destinationFolder, backupName);
+        Path tmpFile = destinationFolder.resolve(backupName + NBT_ZST_EXTENSION + ".tmp");
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(tmpFile)) {
+                write(source, manifest != null ? manifest.hashArchive(fileOut) : fileOut, manifest);
+            }
+            SimpleBackupUtil.publish(tmpFile, destinationFile);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not archive target=[" + source.getRoot() + "] to [" + destinationFile + "]", e);
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException ex) {
+                SimpleBackup.LOGGER.error("Could not delete temporary file " + tmpFile, ex);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, OutputStream out) {
+        try {
+            write(source, CloseShieldOutputStream.wrap(out), null);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not archive target=[" + source.getRoot() + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the archive compressed with Zstandard, closing the stream.
+     *
+     * @param manifest Records the checksums of the files other than region files, or null.  Region files are restored
+     *                 with their chunks laid out anew, so a checksum of the original file wouldn't match the restore
+     */
+    private void write(DirectoryScan source, OutputStream target, BackupManifest manifest) throws IOException {
+        int numThreads = BackupThrottle.getWorkerCount(Math.min(ModConfig.getInstance().numThreads, Runtime.getRuntime().availableProcessors() * 4));
+        try (ZstdOutputStream zstdOut = new ZstdOutputStream(target, ModConfig.getInstance().zstdCompressionLevel)) {
+            zstdOut.setChecksum(true);
+            zstdOut.setLong(WINDOW_LOG);
+            if (numThreads > 1) {
+                zstdOut.setWorkers(numThreads);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zstdOut, Math.max(1 << 16, ModConfig.getInstance().multiThreadBufferSize)));
+            archive(source, out, manifest);
+            out.flush();
+        }
+    }
+
+    private void archive(DirectoryScan scan, DataOutputStream out, BackupManifest manifest) throws IOException {
+        final long fileCount = scan.getFileCount();
+        final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+        long count = 0;
+        long regionFiles = 0;
+        long chunks = 0;
+        long inflated = 0;
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        byte[] buffer = new byte[1 << 16];
+        StreamingXXHash64 hash = manifest != null ? BackupManifest.newHash() : null;
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            FileChannel channel = openIfExists(file.path());
+            if (channel != null) {
+                try (channel) {
+                    List<ChunkLocation> locations = null;
+                    RegionFileHeader header = null;
+                    if (RegionFileHeader.isRegionFile(file.relPath())) {
+                        header = RegionFileHeader.read(channel);
+                        locations = header == null ? null : readChunkLocations(header, channel);
+                    }
+                    if (locations != null) {
+                        inflated += writeRegion(file, header, locations, channel, out);
+                        regionFiles++;
+                        chunks += locations.size();
+                    } else {
+                        writeFile(file, channel, out, buffer, hash, manifest);
+                    }
+                }
+            }
+
+            if (shouldLogBackupProgress) {
+                int prevPercent = (int) ((float) count / fileCount * 100);
+                int currPercent = (int) ((float) (count + 1) / fileCount * 100);
+                if (prevPercent / interval < currPercent / interval) {
+                    SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
+                }
+            }
+            count++;
+        }
+        out.writeByte(END);
+        SimpleBackup.LOGGER.info("Unpacked {} of {} chunks in {} region files", inflated, chunks, regionFiles);
+    }
+
+    /**
+     * @return The opened file, or null if it was deleted since it was scanned
+     */
+    private static FileChannel openIfExists(Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void writeFile(DirectoryScan.ScannedFile file, FileChannel channel, DataOutputStream out, byte[] buffer,
+                                  StreamingXXHash64 hash, BackupManifest manifest) throws IOException {
+        out.writeByte(FILE);
+        out.writeUTF(file.relPath());
+        out.writeLong(file.lastModified());
+        out.writeLong(file.size());
+        // Copy exactly the size in the record, in case the file changes while it is being archived
+        InputStream in = Channels.newInputStream(channel);
+        long remaining = file.size();
+        if (hash != null) {
+            hash.reset();
+        }
+        int read;
+        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            BackupThrottle.acquire(read);
+            out.write(buffer, 0, read);
+            remaining -= read;
+            if (hash != null) {
+                hash.update(buffer, 0, read);
+            }
+        }
+        // A file that shrank while it was archived is padded with zeros below, so it gets no checksum
+        if (hash != null && remaining == 0) {
+            manifest.putFile(file.relPath(), file.size(), file.lastModified(), hash.getValue());
+        }
+        for (; remaining > 0; remaining--) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * @return Number of chunks that were inflated
+     */
+    private static int writeRegion(DirectoryScan.ScannedFile file, RegionFileHeader header, List<ChunkLocation> locations,
+                                   FileChannel channel, DataOutputStream out) throws IOException {
+        out.writeByte(REGION);
+        out.writeUTF(file.relPath());
+        out.writeLong(file.lastModified());
+        out.write(header.getRaw(), RegionFileHeader.SECTOR_SIZE, RegionFileHeader.SECTOR_SIZE);
+        out.writeShort(locations.size());
+
+        int inflated = 0;
+        for (ChunkLocation location : locations) {
+            // The data after the length and compression type, with zeros past the end if the file shrank since
+            ByteBuffer data = ByteBuffer.allocate(location.length - 1);
+            long position = location.position + RegionFileHeader.CHUNK_HEADER_SIZE;
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + data.position()) < 0) {
+                    break;
+                }
+            }
+            BackupThrottle.acquire(location.length);
+
+            byte[] nbt = inflate(location.type, data.array());
+            out.writeShort(location.index);
+            out.writeByte(location.type);
+            out.writeBoolean(nbt != null);
+            byte[] payload = nbt != null ? nbt : data.array();
+            out.writeInt(payload.length);
+            out.write(payload);
+            if (nbt != null) {
+                inflated++;
+            }
+        }
+        return inflated;
+    }
+
+    /**
+     * Reads where each chunk is and its length and compression type from the start of its data.
+     *
+     * @return Chunks in the order they are in the file, or null if a chunk's length doesn't fit its sectors or chunks
+     *          overlap, in which case the region file is stored as is
+     */
+    private static List<ChunkLocation> readChunkLocations(RegionFileHeader header, FileChannel channel) throws IOException {
+        List<ChunkLocation> locations = new ArrayList<>();
+        ByteBuffer prefix = ByteBuffer.allocate(RegionFileHeader.CHUNK_HEADER_SIZE);
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            if (!header.hasChunk(i)) {
+                continue;
+            }
+            long position = (long) header.getSectorOffset(i) * RegionFileHeader.SECTOR_SIZE;
+            prefix.clear();
+            while (prefix.hasRemaining()) {
+                if (channel.read(prefix, position + prefix.position()) < 0) {
+                    return null;
+                }
+            }
+            int length = prefix.getInt(0);
+            if (length < 1 || length > header.getSectorCount(i) * RegionFileHeader.SECTOR_SIZE - 4) {
+                return null;
+            }
+            locations.add(new ChunkLocation(i, position, length, prefix.get(4)));
+        }
+
+        locations.sort(Comparator.comparingLong(ChunkLocation::position));
+        for (int i = 1; i < locations.size(); i++) {
+            ChunkLocation previous = locations.get(i - 1);
+            if (previous.position + 4 + previous.length > locations.get(i).position) {
+                return null;
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return The chunk NBT, or null if the chunk isn't gzip or zlib compressed or can't be inflated
+     */
+    private static byte[] inflate(byte type, byte[] data) {
+        if (type != RegionFileHeader.GZIP && type != RegionFileHeader.ZLIB) {
+            return null;
+        }
+        try (InputStream in = type == RegionFileHeader.GZIP ? new GZIPInputStream(new ByteArrayInputStream(data))
+                : new InflaterInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        try (InputStream in = new ZstdInputStream(new BufferedInputStream(Files.newInputStream(backup), 1 << 20))) {
+            long extracted = extract(new DataInputStream(new BufferedInputStream(in, 1 << 16)), destination, filter);
+            SimpleBackup.LOGGER.info("Restored {} files from {}", extracted, backup);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore nbt backup [" + backup + "] to [" + destination + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the archive in order, while region files are rebuilt and small files written on other threads.
+     *
+     * @return Number of files extracted
+     */
+    private static long extract(DataInputStream in, Path destination, Predicate<String> filter) throws Exception {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a SimpleBackup NBT archive");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported NBT archive version " + version);
+        }
+
+        Semaphore bufferedBytes = new Semaphore(ArchiveExtractor.MAX_BUFFERED_BYTES);
+        List<Future<?>> writes = new ArrayList<>();
+        long extracted = 0;
+        byte[] buffer = new byte[ArchiveExtractor.WRITE_BUFFER_SIZE];
+        try {
+            byte kind;
+            while ((kind = in.readByte()) != END) {
+                String relPath = in.readUTF();
+                FileTime lastModified = FileTime.fromMillis(in.readLong());
+                boolean restore = filter.test(relPath);
+                if (kind == FILE) {
+                    long size = in.readLong();
+                    if (!restore) {
+                        in.skipNBytes(size);
+                        continue;
+                    }
+                    Path dest = ArchiveExtractor.resolve(destination, relPath);
+                    if (size > ArchiveExtractor.MAX_BUFFERED_FILE_SIZE) {
+                        writeStream(in, size, dest, lastModified, buffer);
+                    } else {
+                        byte[] data = new byte[(int) size];
+                        in.readFully(data);
+                        submit(writes, bufferedBytes, data.length, BackupExecutors.getIoExecutor(), () -> ArchiveExtractor.writeBytes(data, dest, lastModified));
+                    }
+                } else if (kind == REGION) {
+                    byte[] timestamps = new byte[RegionFileHeader.SECTOR_SIZE];
+                    in.readFully(timestamps);
+                    int chunkCount = in.readUnsignedShort();
+                    List<StoredChunk> chunks = new ArrayList<>(chunkCount);
+                    long size = 0;
+                    for (int i = 0; i < chunkCount; i++) {
+                        int index = in.readUnsignedShort();
+                        byte type = in.readByte();
+                        boolean inflated = in.readBoolean();
+                        int length = in.readInt();
+                        if (!restore) {
+                            in.skipNBytes(length);
+                            continue;
+                        }
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        chunks.add(new StoredChunk(index, type, inflated, data));
+                        size += length;
+                    }
+                    if (!restore) {
+                        continue;
+                    }
+                    Path dest = ArchiveExtractor.resolve(destination, relPath);
+                    // Deflating the chunks again is the slow part of restoring, so region files are rebuilt in parallel
+                    submit(writes, bufferedBytes, (int) Math.min(size, ArchiveExtractor.MAX_BUFFERED_BYTES), BackupExecutors.getCompressionPool(),
+                            () -> writeRegionFile(dest, lastModified, timestamps, chunks));
+                } else {
+                    throw new IOException("Unknown record " + kind + " in NBT archive at " + relPath);
+                }
+                ArchiveExtractor.logProgress(++extracted, -1);
+            }
+            ArchiveExtractor.awaitAll(writes);
+        } finally {
+            for (Future<?> write : writes) {
+                write.cancel(true);
+            }
+        }
+        return extracted;
+    }
+
+    private static void submit(List<Future<?>> writes, Semaphore bufferedBytes, int size, ExecutorService executor, IOAction action) throws InterruptedException {
+        int permits = Math.max(1, size);
+        bufferedBytes.acquire(permits);
+        writes.add(executor.submit(() -> {
+            try {
+                action.run();
+            } finally {
+                bufferedBytes.release(permits);
+            }
+            return null;
+        }));
+    }
+
+    private static void writeStream(InputStream in, long size, Path dest, FileTime lastModified, byte[] buffer) throws IOException {
+        try (OutputStream out = Files.newOutputStream(dest)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("NBT archive ends in the middle of " + dest);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        Files.setLastModifiedTime(dest, lastModified);
+    }
+
+    /**
+     * Lays out the chunks one after another from the first sector after the header, compressing inflated chunks
+     * again with their original compression type.  Chunks that no longer fit in 255 sectors are written to an
+     * external .mcc file next to the region file, the same as Minecraft does for oversized chunks.
+     */
+    private static void writeRegionFile(Path dest, FileTime lastModified, byte[] timestamps, List<StoredChunk> chunks) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RegionFileHeader.HEADER_SIZE);
+        header.put(RegionFileHeader.SECTOR_SIZE, timestamps);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        int sector = 2;
+        for (StoredChunk chunk : chunks) {
+            byte[] payload = chunk.inflated ? deflate(chunk.type, chunk.data) : chunk.data;
+            byte type = chunk.type;
+            int sectors = getSectorCount(payload.length);
+            if (sectors > RegionFileHeader.MAX_CHUNK_SECTORS) {
+                Files.write(getExternalChunkFile(dest, chunk.index), payload);
+                payload = new byte[0];
+                type |= RegionFileHeader.EXTERNAL_FLAG;
+                sectors = 1;
+            }
+            bodyOut.writeInt(payload.length + 1);
+            bodyOut.writeByte(type);
+            bodyOut.write(payload);
+            bodyOut.write(ZEROS, 0, sectors * RegionFileHeader.SECTOR_SIZE - payload.length - RegionFileHeader.CHUNK_HEADER_SIZE);
+            header.putInt(chunk.index * 4, (sector << 8) | sectors);
+            sector += sectors;
+        }
+
+        try (OutputStream out = Files.newOutputStream(dest)) {
+            out.write(header.array());
+            body.writeTo(out);
+        }
+        Files.setLastModifiedTime(dest, lastModified);
+    }
+
+    private static int getSectorCount(int payloadLength) {
+        return (payloadLength + RegionFileHeader.CHUNK_HEADER_SIZE + RegionFileHeader.SECTOR_SIZE - 1) / RegionFileHeader.SECTOR_SIZE;
+    }
+
+    /**
+     * @return c.[chunk x].[chunk z].mcc next to region file r.[region x].[region z].mca
+     */
+    private static Path getExternalChunkFile(Path regionFile, int index) throws IOException {
+        String[] parts = regionFile.getFileName().toString().split("\\.");
+        if (parts.length != 4) {
+            throw new IOException("Chunk " + index + " of " + regionFile + " is too large for the region file");
+        }
+        int chunkX = Integer.parseInt(parts[1]) * 32 + (index & 31);
+        int chunkZ = Integer.parseInt(parts[2]) * 32 + (index >> 5);
+        return regionFile.resolveSibling("c." + chunkX + "." + chunkZ + ".mcc");
+    }
+
+    /**
+     * Compresses chunk NBT the same way Minecraft does, with the default compression level.
+     */
+    private static byte[] deflate(byte type, byte[] nbt) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(nbt.length / 4 + 64);
+        try (OutputStream out = type == RegionFileHeader.GZIP ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            out.write(nbt);
+        }
+        return compressed.toByteArray();
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private record ChunkLocation(int index, long position, int length, byte type) {
+    }
+
+    private record StoredChunk(int index, byte type, boolean inflated, byte[] data) {
+    }
+}
@@ -0,0 +1,909 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupCheckpoint;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.RegionFileHeader;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Writes ZIP backups.  The files of the target folder are split into slices of roughly equal size, and with more
+ * than one thread each slice is deflated on its own thread into a temporary part file.  The parts are then merged in
+ * order into a standard .zip, and the central directory is written with the entry offsets shifted to their place in
+ * the merged file.  A single slice is written straight into the archive, with the CRC and sizes of each file in a data
+ * descriptor after its data.  Either way the archive is written front to back, so it is checksummed as it is written.
+ *
+ * <p>With {@code perFileCompression}, each file is compressed according to its {@link FileCodec}: already compressed
+ * files are stored, and the chunks of region files are written into the deflate stream uncompressed while their header
+ * and padding are deflated.
+ *
+ * <p>Backups are written in the format's {@link BackupCheckpoint} staging folder, and each slice checkpoints the
+ * entries it wrote in batches.  The entries of unchanged files that an interrupted backup wrote are copied into the
+ * archive as they are, right after the directories, and only the other files are compressed again.
+ *
+ * <p>Entries are named after the target folder followed by their path in it, like {@code world/region/r.0.0.mca}, the
+ * same as the ZIP backups zip4j writes when {@code useZip4j} is set, and those of earlier versions.
+ */
+public class ParallelZipCompressor {
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final short ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final short VERSION = 20;
+    private static final short ZIP64_VERSION = 45;
+    private static final short UTF8_FLAG = 0x0800;
+    // The CRC and sizes follow the data instead of being in the local header
+    private static final short DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    // Files this close to the 4 GB limit get a ZIP64 local header, as incompressible data can grow slightly when deflated
+    private static final long ZIP64_LOCAL_HEADER_THRESHOLD = ZIP64_MAGIC - (1 << 20);
+    private static final int COMPRESSION_LEVEL = 5;
+    private static final short STORED = 0;
+    private static final short DEFLATED = Deflater.DEFLATED;
+
+    /**
+     * Zips the files into a stream on one thread, without seeking back to patch local headers, so the CRC and sizes of
+     * each file follow its data in a data descriptor.  Already compressed files are deflated without compression
+     * instead of stored, as entries with data descriptors must be deflated to be read as a stream.
+     *
+     * @param out Stream to write the .zip to, which is not closed
+     */
+    public static boolean zip(DirectoryScan scan, OutputStream out) {
+        try {
+            PartWriter writer = new PartWriter(out);
+            List<CentralDirectoryEntry> entries = new ArrayList<>();
+            for (ZipItem directory : getDirectories(scan)) {
+                entries.add(writer.writeDirectory(directory));
+            }
+            List<ZipItem> files = getFiles(scan);
+            entries.addAll(writeSlice(writer, files, new AtomicLong(), files.size(), null, null, null));
+            writeCentralDirectory(writer.out, entries);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not zip target=[" + scan.getRoot() + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Zips the files into an archive in a backup's staging folder.  Files an interrupted backup already zipped into the
+     * staging folder are copied over as they are if they haven't changed since, and the files zipped are checkpointed
+     * in batches as they are written.
+     *
+     * @param archive Archive to write, in the checkpoint's staging folder, where it is left to be published
+     * @param manifest Records the checksum of each file as it is zipped, and of the archive as it is written, or null
+     * @param checkpoint Checkpoint of the staging folder
+     */
+    public static boolean zip(DirectoryScan scan, Path archive, int numThreads, BackupManifest manifest, BackupCheckpoint checkpoint) {
+        Path targetPath = scan.getRoot();
+        List<Future<List<CentralDirectoryEntry>>> futures = new ArrayList<>();
+        try {
+            List<ZipItem> directories = getDirectories(scan);
+            List<ReusedEntry> reused = findReusedEntries(scan, archive, manifest, checkpoint);
+            DirectoryScan remaining = scan;
+            if (!reused.isEmpty()) {
+                Set<String> reusedPaths = new HashSet<>();
+                for (ReusedEntry entry : reused) {
+                    reusedPaths.add(entry.relPath);
+                }
+                remaining = scan.filter(relPath -> !reusedPaths.contains(relPath));
+            }
+            List<ZipItem> files = getFiles(remaining);
+
+            int[] slices = getSlices(remaining, numThreads);
+            int numSlices = slices.length - 1;
+            final long fileCount = files.size();
+            AtomicLong processed = new AtomicLong();
+
+            String archiveName = archive.getFileName().toString();
+            byte[] buffer = new byte[1 << 16];
+            if (numSlices == 1) {
+                // A single slice is written straight into the archive, rather than into a part file that is then copied.
+                // Its local headers are not patched, so the archive is written front to back and hashed as it is
+                try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    CountingOutputStream archiveOut = newArchiveStream(out, manifest);
+                    List<CentralDirectoryEntry> entries = writeDirectories(archiveOut, directories);
+                    entries.addAll(copyReusedEntries(archiveOut, reused, checkpoint.getFolder(), buffer));
+                    PartWriter writer = new PartWriter(archiveOut, out, manifest);
+                    entries.addAll(writeSlice(writer, files, processed, fileCount, checkpoint.newBatch(), archiveName, null));
+                    writeCentralDirectory(archiveOut, entries);
+                    archiveOut.close();
+                }
+                return true;
+            }
+
+            ExecutorService executorService = BackupExecutors.getCompressionPool();
+            List<Path> parts = new ArrayList<>();
+            List<List<BackupCheckpoint.Entry>> partCheckpoints = new ArrayList<>();
+            for (int i = 0; i < numSlices; i++) {
+                Path part = archive.resolveSibling(archiveName + ".part" + i);
+                parts.add(part);
+                List<BackupCheckpoint.Entry> partCheckpoint = new ArrayList<>();
+                partCheckpoints.add(partCheckpoint);
+                List<ZipItem> slice = files.subList(slices[i], slices[i + 1]);
+                futures.add(executorService.submit(() -> {
+                    try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        return writeSlice(new PartWriter(channel, manifest), slice, processed, fileCount, checkpoint.newBatch(),
+                                part.getFileName().toString(), partCheckpoint);
+                    }
+                }));
+            }
+
+            try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Directory entries are tiny, so they go first and are written here while the workers deflate files,
+                // followed by the files kept from the interrupted backup
+                CountingOutputStream archiveOut = newArchiveStream(out, manifest);
+                List<CentralDirectoryEntry> entries = writeDirectories(archiveOut, directories);
+                entries.addAll(copyReusedEntries(archiveOut, reused, checkpoint.getFolder(), buffer));
+
+                for (int i = 0; i < numSlices; i++) {
+                    List<CentralDirectoryEntry> partEntries = futures.get(i).get();
+                    // Parts are copied through the archive's hash rather than transferred by the kernel, so the archive
+                    // is checksummed while the just written part is still cached instead of being read again later
+                    long base = archiveOut.count;
+                    try (FileChannel in = FileChannel.open(parts.get(i), StandardOpenOption.READ)) {
+                        copy(in, 0, in.size(), archiveOut, buffer, parts.get(i));
+                    }
+                    // The part is deleted once merged, so its files are checkpointed again where they now are in the archive
+                    BackupCheckpoint.Batch merged = checkpoint.newBatch();
+                    for (BackupCheckpoint.Entry written : partCheckpoints.get(i)) {
+                        merged.add(new BackupCheckpoint.Entry(written.relPath(), written.size(), written.lastModified(), written.hash(),
+                                ReusedEntry.move(written.data(), archiveName, base)), null);
+                    }
+                    archiveOut.flush();
+                    merged.commit(out);
+                    Files.delete(parts.get(i));
+                    for (CentralDirectoryEntry entry : partEntries) {
+                        entries.add(entry.withOffset(entry.localHeaderOffset + base));
+                    }
+                }
+
+                writeCentralDirectory(archiveOut, entries);
+                archiveOut.close();
+            }
+            return true;
+        } catch (Exception e) {
+            // The archive and parts are left in the staging folder, so the next backup resumes from their checkpoint
+            SimpleBackup.LOGGER.error("Could not zip target=[" + targetPath + "] to [" + archive + "]", e);
+            return false;
+        } finally {
+            // Stop any slices still being written if the backup failed
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static List<CentralDirectoryEntry> writeDirectories(CountingOutputStream out, List<ZipItem> directories) throws IOException {
+        PartWriter writer = new PartWriter(out, null, null);
+        List<CentralDirectoryEntry> entries = new ArrayList<>();
+        for (ZipItem directory : directories) {
+            entries.add(writer.writeDirectory(directory));
+        }
+        writer.end();
+        return entries;
+    }
+
+    /**
+     * Finds the files an interrupted backup zipped into the staging folder that haven't changed since, and records
+     * their checksums in the manifest.
+     *
+     * @return The files' entries, in the order they are in the staging folder
+     */
+    private static List<ReusedEntry> findReusedEntries(DirectoryScan scan, Path archive, BackupManifest manifest, BackupCheckpoint checkpoint) {
+        List<ReusedEntry> reused = new ArrayList<>();
+        if (!checkpoint.isResumed()) {
+            return reused;
+        }
+
+        String rootName = scan.getRoot().getFileName().toString();
+        String archiveName = archive.getFileName().toString();
+        Map<String, Long> sourceSizes = new HashMap<>();
+        long reusedSize = 0;
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            BackupCheckpoint.Entry completed = checkpoint.getCompleted(file);
+            ReusedEntry entry = completed != null ? ReusedEntry.parse(file.relPath(), rootName + "/" + file.relPath(), completed.data()) : null;
+            // This backup's own archive and parts are about to be written over
+            if (entry == null || entry.source.startsWith(archiveName)) {
+                continue;
+            }
+            Long sourceSize = sourceSizes.get(entry.source);
+            if (sourceSize == null) {
+                try {
+                    sourceSize = Files.size(checkpoint.getFolder().resolve(entry.source));
+                } catch (IOException e) {
+                    // Merged into the archive and deleted, before the archive was finished
+                    sourceSize = -1L;
+                }
+                sourceSizes.put(entry.source, sourceSize);
+            }
+            if (sourceSize < entry.end) {
+                continue;
+            }
+
+            reused.add(entry);
+            reusedSize += file.size();
+            if (manifest != null && completed.hash() != null) {
+                manifest.putFile(file.relPath(), file.size(), file.lastModified(), completed.hash());
+            }
+        }
+        reused.sort(Comparator.comparing(ReusedEntry::source).thenComparingLong(ReusedEntry::offset));
+        SimpleBackup.LOGGER.info("Keeping {} unchanged files ({} MB) zipped by the interrupted backup", reused.size(), reusedSize >> 20);
+        return reused;
+    }
+
+    /**
+     * Copies the entries of files kept from an interrupted backup into the archive as they are.
+     *
+     * @param folder Staging folder the entries' sources are in
+     * @return The central directory entries of the files, relative to the start of the archive
+     */
+    private static List<CentralDirectoryEntry> copyReusedEntries(CountingOutputStream out, List<ReusedEntry> reused, Path folder,
+                                                                 byte[] buffer) throws IOException {
+        List<CentralDirectoryEntry> entries = new ArrayList<>();
+        FileChannel in = null;
+        String source = null;
+        try {
+            for (ReusedEntry entry : reused) {
+                if (!entry.source.equals(source)) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    source = entry.source;
+                    in = FileChannel.open(folder.resolve(source), StandardOpenOption.READ);
+                }
+                long base = out.count;
+                copy(in, entry.offset, entry.end - entry.offset, out, buffer, folder.resolve(source));
+                entries.add(entry.entry.withOffset(base));
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Copies part of a file into the archive.
+     */
+    private static void copy(FileChannel in, long position, long size, OutputStream out, byte[] buffer, Path file) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long copied = 0;
+        while (copied < size) {
+            byteBuffer.clear().limit((int) Math.min(buffer.length, size - copied));
+            int read = in.read(byteBuffer, position + copied);
+            if (read < 0) {
+                throw new IOException("Zip part " + file + " was truncated");
+            }
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+    }
+
+    /**
+     * Writes the local headers and data of a slice of the files, then flushes and ends the writer.
+     *
+     * @param batch Checkpoints the files written, or null
+     * @param source Name of the file the writer's channel writes to in the staging folder, for the checkpoint
+     * @param checkpointed Collects the checkpoint entries of the files written, or null
+     * @return The central directory entries of the files written, relative to the start of the writer's channel
+     */
+    private static List<CentralDirectoryEntry> writeSlice(PartWriter writer, List<ZipItem> slice, AtomicLong processed, long fileCount,
+                                                          BackupCheckpoint.Batch batch, String source,
+                                                          List<BackupCheckpoint.Entry> checkpointed) throws IOException {
+        final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+        final boolean shouldLogBackupProgress = interval > 0 && interval <= 100;
+        List<CentralDirectoryEntry> entries = new ArrayList<>();
+        for (ZipItem item : slice) {
+            CentralDirectoryEntry entry;
+            BackupThrottle.beginWork();
+            try {
+                entry = writer.writeFile(item);
+            } finally {
+                BackupThrottle.endWork();
+            }
+            if (entry != null) {
+                entries.add(entry);
+                if (batch != null) {
+                    BackupCheckpoint.Entry written = new BackupCheckpoint.Entry(item.relPath, item.size, item.lastModified, writer.getHash(),
+                            ReusedEntry.toData(source, entry, writer.out.count));
+                    batch.add(written, null);
+                    if (checkpointed != null) {
+                        checkpointed.add(written);
+                    }
+                    if (batch.isDue()) {
+                        writer.flush();
+                        batch.commit(writer.channel);
+                    }
+                }
+            }
+
+            long count = processed.incrementAndGet();
+            if (shouldLogBackupProgress) {
+                int prevPercent = (int) ((float) (count - 1) / fileCount * 100);
+                int currPercent = (int) ((float) count / fileCount * 100);
+                if (prevPercent / interval < currPercent / interval) {
+                    SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
+                }
+            }
+        }
+        writer.flush();
+        if (batch != null) {
+            batch.commit(writer.channel);
+        }
+        writer.end();
+        return entries;
+    }
+
+    /**
+     * Splits the files into slices of roughly equal total size using {@link DirectoryScan#getFileCountIntervalsFromSize}.
+     *
+     * @return Start index of each slice, followed by the file count
+     */
+    private static int[] getSlices(DirectoryScan scan, int numThreads) {
+        int[] intervals = scan.getFileCountIntervalsFromSize(numThreads);
+        int[] slices = Arrays.copyOf(intervals, intervals.length + 1);
+        slices[intervals.length] = scan.getFileCount();
+        return slices;
+    }
+
+    private static List<ZipItem> getDirectories(DirectoryScan scan) {
+        String rootName = scan.getRoot().getFileName().toString();
+        List<ZipItem> directories = new ArrayList<>();
+        for (DirectoryScan.ScannedDirectory dir : scan.getDirectories()) {
+            String name = dir.relPath().isEmpty() ? rootName + "/" : rootName + "/" + dir.relPath() + "/";
+            directories.add(new ZipItem(dir.path(), dir.relPath(), name, 0, dir.lastModified()));
+        }
+        return directories;
+    }
+
+    private static List<ZipItem> getFiles(DirectoryScan scan) {
+        String rootName = scan.getRoot().getFileName().toString();
+        List<ZipItem> files = new ArrayList<>();
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            files.add(new ZipItem(file.path(), file.relPath(), rootName + "/" + file.relPath(), file.size(), file.lastModified()));
+        }
+        return files;
+    }
+
+    private static CountingOutputStream newCountingStream(FileChannel channel) throws IOException {
+        return new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), channel.position());
+    }
+
+    /**
+     * @param manifest Records the checksum of the archive once the stream is closed, or null
+     * @return Stream to write the archive front to back from the start of the channel
+     */
+    private static CountingOutputStream newArchiveStream(FileChannel channel, BackupManifest manifest) {
+        OutputStream out = Channels.newOutputStream(channel);
+        return new CountingOutputStream(new BufferedOutputStream(manifest != null ? manifest.hashArchive(out) : out, 1 << 16), 0);
+    }
+
+    private static void writeCentralDirectory(CountingOutputStream os, List<CentralDirectoryEntry> entries) throws IOException {
+        long centralDirectoryOffset = os.count;
+        LittleEndianBuffer buffer = new LittleEndianBuffer();
+        for (CentralDirectoryEntry entry : entries) {
+            boolean zip64Sizes = entry.compressedSize >= ZIP64_MAGIC || entry.uncompressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+            LittleEndianBuffer extra = new LittleEndianBuffer();
+            if (zip64Sizes || zip64Offset) {
+                int extraSize = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+                extra.putShort(ZIP64_EXTRA_FIELD_ID).putShort(extraSize);
+                if (zip64Sizes) {
+                    extra.putLong(entry.uncompressedSize).putLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    extra.putLong(entry.localHeaderOffset);
+                }
+            }
+            short version = zip64Sizes || zip64Offset ? ZIP64_VERSION : VERSION;
+
+            buffer.reset();
+            buffer.putInt(CENTRAL_DIRECTORY_SIGNATURE)
+                    .putShort(version)
+                    .putShort(version)
+                    .putShort(entry.flags)
+                    .putShort(entry.method)
+                    .putInt(entry.dosTime)
+                    .putInt((int) entry.crc)
+                    .putInt(zip64Sizes ? ZIP64_MAGIC : entry.compressedSize)
+                    .putInt(zip64Sizes ? ZIP64_MAGIC : entry.uncompressedSize)
+                    .putShort(entry.name.length)
+                    .putShort(extra.size())
+                    .putShort(0)  // comment length
+                    .putShort(0)  // disk number start
+                    .putShort(0)  // internal attributes
+                    .putInt(entry.directory ? 0x10 : 0)
+                    .putInt(zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset)
+                    .put(entry.name)
+                    .put(extra.toByteArray());
+            buffer.writeTo(os);
+        }
+        long centralDirectoryEnd = os.count;
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+
+        buffer.reset();
+        boolean zip64 = entries.size() >= 0xFFFF || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            buffer.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                    .putLong(44)
+                    .putShort(ZIP64_VERSION)
+                    .putShort(ZIP64_VERSION)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(entries.size())
+                    .putLong(entries.size())
+                    .putLong(centralDirectorySize)
+                    .putLong(centralDirectoryOffset);
+            buffer.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(centralDirectoryEnd)
+                    .putInt(1);
+        }
+        buffer.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort(0)
+                .putShort(0)
+                .putShort(Math.min(entries.size(), 0xFFFF))
+                .putShort(Math.min(entries.size(), 0xFFFF))
+                .putInt(Math.min(centralDirectorySize, ZIP64_MAGIC))
+                .putInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC))
+                .putShort(0);
+        buffer.writeTo(os);
+        os.flush();
+    }
+
+    private static int toDosTime(long lastModified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * Writes local file headers and file data to a channel, patching each header with the CRC and sizes once the
+     * file has been deflated, or to a stream, writing them in a data descriptor after the data.
+     */
+    private static class PartWriter {
+        private static final long[] NO_RANGES = new long[0];
+
+        private final FileChannel channel;
+        private final CountingOutputStream out;
+        // Whether the CRC and sizes are written in data descriptors instead of patched into the local headers
+        private final boolean streaming;
+        private final Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        private final BackupManifest manifest;
+        private final StreamingXXHash64 hash;
+        private final byte[] readBuffer = new byte[Math.max(FileCodec.SAMPLE_SIZE, Math.max(8192, ModConfig.getInstance().multiThreadBufferSize))];
+        private final byte[] deflateBuffer = new byte[1 << 16];
+        private final LittleEndianBuffer header = new LittleEndianBuffer();
+        private final boolean perFileCompression = ModConfig.getInstance().perFileCompression;
+        private int level = COMPRESSION_LEVEL;
+        // Index into the stored ranges of the file being deflated
+        private int rangeIndex;
+
+        /**
+         * @param manifest Records the checksum of each file written, or null
+         */
+        PartWriter(FileChannel channel, BackupManifest manifest) throws IOException {
+            this.channel = channel;
+            this.out = newCountingStream(channel);
+            this.streaming = false;
+            this.manifest = manifest;
+            this.hash = manifest != null ? BackupManifest.newHash() : null;
+        }
+
+        /**
+         * Writes to a stream, with data descriptors instead of patching the local headers.
+         */
+        PartWriter(OutputStream out) {
+            this(new CountingOutputStream(new BufferedOutputStream(out, 1 << 16), 0), null, null);
+        }
+
+        /**
+         * Writes to a stream, with data descriptors instead of patching the local headers.
+         *
+         * @param channel Channel the stream writes to, flushed to disk when the files written are checkpointed, or null
+         * @param manifest Records the checksum of each file written, or null
+         */
+        PartWriter(CountingOutputStream out, FileChannel channel, BackupManifest manifest) {
+            this.channel = channel;
+            this.out = out;
+            this.streaming = true;
+            this.manifest = manifest;
+            this.hash = manifest != null ? BackupManifest.newHash() : null;
+        }
+
+        CentralDirectoryEntry writeDirectory(ZipItem item) throws IOException {
+            long offset = this.out.count;
+            byte[] name = item.name.getBytes(StandardCharsets.UTF_8);
+            int dosTime = toDosTime(item.lastModified);
+            writeLocalHeader(name, dosTime, UTF8_FLAG, STORED, false);
+            return new CentralDirectoryEntry(name, UTF8_FLAG, STORED, dosTime, 0, 0, 0, offset, true);
+        }
+
+        /**
+         * @return The central directory entry, or null if the file was deleted since it was scanned
+         */
+        CentralDirectoryEntry writeFile(ZipItem item) throws IOException {
+            FileChannel in;
+            try {
+                in = FileChannel.open(item.path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+
+            long offset = this.out.count;
+            byte[] name = item.name.getBytes(StandardCharsets.UTF_8);
+            int dosTime = toDosTime(item.lastModified);
+            boolean zip64 = item.size >= ZIP64_LOCAL_HEADER_THRESHOLD;
+            boolean streaming = this.streaming;
+            short flags = streaming ? (short) (UTF8_FLAG | DATA_DESCRIPTOR_FLAG) : UTF8_FLAG;
+            short method;
+            long dataStart;
+            CRC32 crc = new CRC32();
+            long uncompressedSize = 0;
+            try (in) {
+                InputStream stream = Channels.newInputStream(in);
+                // The start of the file decides how it is compressed, and is then written like the rest of it
+                int read = stream.readNBytes(this.readBuffer, 0, this.readBuffer.length);
+                FileCodec codec = this.perFileCompression ? FileCodec.select(item.name, this.readBuffer, read) : null;
+                method = codec == FileCodec.STORE && !streaming ? STORED : DEFLATED;
+                writeLocalHeader(name, dosTime, flags, method, zip64);
+                dataStart = this.out.count;
+
+                long[] storedRanges = NO_RANGES;
+                if (codec == FileCodec.REGION) {
+                    RegionFileHeader regionHeader = RegionFileHeader.read(in);
+                    if (regionHeader != null) {
+                        storedRanges = regionHeader.readCompressedChunkRanges(in);
+                    }
+                }
+                int level = getLevel(codec);
+                if (method == DEFLATED) {
+                    this.deflater.reset();
+                    this.rangeIndex = 0;
+                    setLevel(level);
+                }
+                if (this.hash != null) {
+                    this.hash.reset();
+                }
+
+                while (read > 0) {
+                    BackupThrottle.acquire(read);
+                    crc.update(this.readBuffer, 0, read);
+                    if (this.hash != null) {
+                        this.hash.update(this.readBuffer, 0, read);
+                    }
+                    if (method == STORED) {
+                        this.out.write(this.readBuffer, 0, read);
+                    } else {
+                        deflate(read, uncompressedSize, storedRanges, level);
+                    }
+                    uncompressedSize += read;
+                    read = stream.read(this.readBuffer);
+                }
+            }
+            if (method == DEFLATED) {
+                this.deflater.finish();
+                while (!this.deflater.finished()) {
+                    this.out.write(this.deflateBuffer, 0, this.deflater.deflate(this.deflateBuffer));
+                }
+            }
+            long compressedSize = this.out.count - dataStart;
+
+            if (!zip64 && (uncompressedSize >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)) {
+                throw new IOException("File " + item.path + " grew past 4 GB while it was being zipped");
+            }
+            if (this.manifest != null) {
+                this.manifest.putFile(item.relPath, uncompressedSize, item.lastModified, this.hash.getValue());
+            }
+
+            if (streaming) {
+                this.header.reset();
+                this.header.putInt(DATA_DESCRIPTOR_SIGNATURE).putInt(crc.getValue());
+                if (zip64) {
+                    this.header.putLong(compressedSize).putLong(uncompressedSize);
+                } else {
+                    this.header.putInt(compressedSize).putInt(uncompressedSize);
+                }
+                this.header.writeTo(this.out);
+                return new CentralDirectoryEntry(name, flags, method, dosTime, crc.getValue(), compressedSize, uncompressedSize, offset, false);
+            }
+
+            // Patch the CRC and sizes into the local header now that they are known
+            this.out.flush();
+            LittleEndianBuffer patch = new LittleEndianBuffer();
+            patch.putInt((int) crc.getValue())
+                    .putInt(zip64 ? ZIP64_MAGIC : compressedSize)
+                    .putInt(zip64 ? ZIP64_MAGIC : uncompressedSize);
+            writeAt(patch.toByteArray(), offset + 14);
+            if (zip64) {
+                LittleEndianBuffer zip64Patch = new LittleEndianBuffer();
+                zip64Patch.putLong(uncompressedSize).putLong(compressedSize);
+                writeAt(zip64Patch.toByteArray(), offset + 30 + name.length + 4);
+            }
+            return new CentralDirectoryEntry(name, flags, method, dosTime, crc.getValue(), compressedSize, uncompressedSize, offset, false);
+        }
+
+        /**
+         * Deflates the read buffer, which starts at {@code position} in the file.  Parts of the file within the stored
+         * ranges, such as the already compressed chunks of a region file, are written into the deflate stream without
+         * compressing them again.
+         */
+        private void deflate(int length, long position, long[] storedRanges, int level) throws IOException {
+            int off = 0;
+            while (off < length) {
+                long pos = position + off;
+                while (this.rangeIndex < storedRanges.length && storedRanges[this.rangeIndex + 1] <= pos) {
+                    this.rangeIndex += 2;
+                }
+                boolean stored = this.rangeIndex < storedRanges.length && storedRanges[this.rangeIndex] <= pos;
+                long end = this.rangeIndex >= storedRanges.length ? Long.MAX_VALUE
+                        : stored ? storedRanges[this.rangeIndex + 1] : storedRanges[this.rangeIndex];
+                int len = (int) Math.min(length - off, end - pos);
+
+                setLevel(stored ? Deflater.NO_COMPRESSION : level);
+                this.deflater.setInput(this.readBuffer, off, len);
+                while (!this.deflater.needsInput()) {
+                    this.out.write(this.deflateBuffer, 0, this.deflater.deflate(this.deflateBuffer));
+                }
+                off += len;
+            }
+        }
+
+        /**
+         * Changes the compression level for the data deflated next.  The deflater only switches levels on its next
+         * deflate call, which compresses what it still holds with the old level, so that is done here before new input.
+         */
+        private void setLevel(int level) throws IOException {
+            if (level == this.level) {
+                return;
+            }
+            this.level = level;
+            this.deflater.setLevel(level);
+            int written;
+            do {
+                written = this.deflater.deflate(this.deflateBuffer);
+                this.out.write(this.deflateBuffer, 0, written);
+            } while (written == this.deflateBuffer.length);
+        }
+
+        private static int getLevel(FileCodec codec) {
+            if (codec == null) {
+                return COMPRESSION_LEVEL;
+            }
+            return switch (codec) {
+                case STRONG -> Deflater.BEST_COMPRESSION;
+                case STORE -> Deflater.NO_COMPRESSION;
+                // Region files are mostly their chunks, so the rest is only the header and zeros
+                case REGION, FAST -> Deflater.BEST_SPEED;
+            };
+        }
+
+        /**
+         * @return Checksum of the last file written, or null if checksums aren't recorded
+         */
+        Long getHash() {
+            return this.hash != null ? this.hash.getValue() : null;
+        }
+
+        void flush() throws IOException {
+            this.out.flush();
+        }
+
+        void end() {
+            this.deflater.end();
+        }
+
+        private void writeLocalHeader(byte[] name, int dosTime, short flags, short method, boolean zip64) throws IOException {
+            this.header.reset();
+            this.header.putInt(LOCAL_FILE_HEADER_SIGNATURE)
+                    .putShort(zip64 ? ZIP64_VERSION : VERSION)
+                    .putShort(flags)
+                    .putShort(method)
+                    .putInt(dosTime)
+                    .putInt(0)  // crc, patched later or in the data descriptor
+                    .putInt(0)  // compressed size, patched later or in the data descriptor
+                    .putInt(0)  // uncompressed size, patched later or in the data descriptor
+                    .putShort(name.length)
+                    .putShort(zip64 ? 20 : 0)
+                    .put(name);
+            if (zip64) {
+                this.header.putShort(ZIP64_EXTRA_FIELD_ID).putShort(16).putLong(0).putLong(0);
+            }
+            this.header.writeTo(this.out);
+        }
+
+        private void writeAt(byte[] bytes, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                position += this.channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * @param relPath Path relative to the world folder
+     * @param name Entry name in the archive
+     */
+    private record ZipItem(Path path, String relPath, String name, long size, long lastModified) {
+    }
+
+    /**
+     * The entry of a file an interrupted backup zipped into the staging folder, kept as it is.
+     *
+     * @param relPath Path relative to the world folder
+     * @param source Archive or part in the staging folder the entry was written to
+     * @param offset Offset of the entry's local header in the source
+     * @param end Offset of the end of the entry's data in the source
+     * @param entry Central directory entry, relative to the start of the source
+     */
+    private record ReusedEntry(String relPath, String source, long offset, long end, CentralDirectoryEntry entry) {
+
+        /**
+         * @return Checkpoint data of an entry written to a source, as read by {@link #parse}
+         */
+        static String toData(String source, CentralDirectoryEntry entry, long end) {
+            return String.join(",", source, Long.toString(entry.localHeaderOffset), Long.toString(end), Short.toString(entry.flags),
+                    Short.toString(entry.method), Integer.toString(entry.dosTime), Long.toString(entry.crc), Long.toString(entry.compressedSize),
+                    Long.toString(entry.uncompressedSize));
+        }
+
+        /**
+         * @return Checkpoint data of an entry copied from its source into another file at {@code shift} bytes further
+         */
+        static String move(String data, String source, long shift) {
+            String[] parts = data.split(",", 4);
+            return String.join(",", source, Long.toString(Long.parseLong(parts[1]) + shift), Long.toString(Long.parseLong(parts[2]) + shift), parts[3]);
+        }
+
+        /**
+         * @param name Entry name in the archive, which is the same as in the source as long as the world folder is
+         * @return The entry, or null if the data is malformed
+         */
+        static ReusedEntry parse(String relPath, String name, String data) {
+            String[] parts = data.split(",");
+            if (parts.length != 9) {
+                return null;
+            }
+            try {
+                long offset = Long.parseLong(parts[1]);
+                CentralDirectoryEntry entry = new CentralDirectoryEntry(name.getBytes(StandardCharsets.UTF_8), Short.parseShort(parts[3]),
+                        Short.parseShort(parts[4]), Integer.parseInt(parts[5]), Long.parseLong(parts[6]), Long.parseLong(parts[7]),
+                        Long.parseLong(parts[8]), offset, false);
+                return new ReusedEntry(relPath, parts[0], offset, Long.parseLong(parts[2]), entry);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private record CentralDirectoryEntry(byte[] name, short flags, short method, int dosTime, long crc, long compressedSize,
+                                         long uncompressedSize, long localHeaderOffset, boolean directory) {
+
+        CentralDirectoryEntry withOffset(long offset) {
+            return new CentralDirectoryEntry(name, flags, method, dosTime, crc, compressedSize, uncompressedSize, offset, directory);
+        }
+    }
+
+    private static class LittleEndianBuffer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        LittleEndianBuffer putShort(int value) {
+            this.scratch.clear();
+            this.scratch.putShort((short) value);
+            this.bytes.write(this.scratch.array(), 0, 2);
+            return this;
+        }
+
+        LittleEndianBuffer putInt(long value) {
+            this.scratch.clear();
+            this.scratch.putInt((int) value);
+            this.bytes.write(this.scratch.array(), 0, 4);
+            return this;
+        }
+
+        LittleEndianBuffer putLong(long value) {
+            this.scratch.clear();
+            this.scratch.putLong(value);
+            this.bytes.write(this.scratch.array(), 0, 8);
+            return this;
+        }
+
+        LittleEndianBuffer put(byte[] value) {
+            this.bytes.writeBytes(value);
+            return this;
+        }
+
+        int size() {
+            return this.bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return this.bytes.toByteArray();
+        }
+
+        void reset() {
+            this.bytes.reset();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            this.bytes.writeTo(out);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+}
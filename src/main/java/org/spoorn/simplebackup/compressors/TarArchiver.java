@@ -0,0 +1,147 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Streams a folder as a .tar archive, for compressors that wrap the tar in a compression stream.
+ */
+public class TarArchiver {
+
+    /**
+     * Notified before the first file, and whenever the {@link FileCodec} of the next file differs from the previous
+     * one, so the compression stream can change how it compresses.  The tar stream is flushed before this is called.
+     */
+    public interface CodecListener {
+        void onCodecChange(FileCodec codec) throws IOException;
+    }
+
+    /**
+     * Writes the scanned folder as a tar archive.  Entries are prefixed with the folder name, the same as ZIP backups.
+     * Does not close the output stream.
+     *
+     * @param scan Scan of the folder to archive
+     * @param out Stream to write the tar archive to
+     * @param shouldLogBackupProgress Whether to log the backup progress
+     * @throws IOException If reading a file or writing the archive fails
+     */
+    public static void archive(DirectoryScan scan, OutputStream out, boolean shouldLogBackupProgress) throws IOException {
+        archive(scan, out, shouldLogBackupProgress, null, null);
+    }
+
+    /**
+     * Writes the scanned folder as a tar archive, selecting the {@link FileCodec} of each file from its start.
+     *
+     * @param codecListener Notified when the codec changes between files, or null to not select codecs
+     * @param manifest Records the checksum of each file as it is archived, or null
+     * @see #archive(DirectoryScan, OutputStream, boolean)
+     */
+    public static void archive(DirectoryScan scan, OutputStream out, boolean shouldLogBackupProgress, CodecListener codecListener,
+                               BackupManifest manifest) throws IOException {
+        final long fileCount = scan.getFileCount();
+        final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+        final String rootName = scan.getRoot().getFileName().toString();
+        long count = 0;
+
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        for (DirectoryScan.ScannedDirectory dir : scan.getDirectories()) {
+            TarArchiveEntry entry = new TarArchiveEntry(dir.relPath().isEmpty() ? rootName + "/" : rootName + "/" + dir.relPath() + "/");
+            entry.setModTime(dir.lastModified());
+            tar.putArchiveEntry(entry);
+            tar.closeArchiveEntry();
+        }
+
+        byte[] buffer = new byte[8192];
+        StreamingXXHash64 hash = manifest != null ? BackupManifest.newHash() : null;
+        FileCodec currentCodec = null;
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            InputStream in = openIfExists(file.path());
+            if (in != null) {
+                // Copy exactly the size in the header, in case the file changes while it is being archived
+                try (in) {
+                    long remaining = file.size();
+                    int sampled = 0;
+                    if (codecListener != null) {
+                        sampled = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        FileCodec codec = FileCodec.select(file.relPath(), buffer, sampled);
+                        if (codec != currentCodec) {
+                            tar.flush();
+                            codecListener.onCodecChange(codec);
+                            currentCodec = codec;
+                        }
+                    }
+
+                    TarArchiveEntry entry = new TarArchiveEntry(rootName + "/" + file.relPath());
+                    entry.setSize(file.size());
+                    entry.setModTime(file.lastModified());
+                    tar.putArchiveEntry(entry);
+                    if (hash != null) {
+                        hash.reset();
+                    }
+                    if (sampled > 0) {
+                        BackupThrottle.acquire(sampled);
+                        tar.write(buffer, 0, sampled);
+                        remaining -= sampled;
+                        if (hash != null) {
+                            hash.update(buffer, 0, sampled);
+                        }
+                    }
+                    int read;
+                    while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                        BackupThrottle.acquire(read);
+                        tar.write(buffer, 0, read);
+                        remaining -= read;
+                        if (hash != null) {
+                            hash.update(buffer, 0, read);
+                        }
+                    }
+                    // A file that shrank while it was archived is padded with zeros below, so it gets no checksum
+                    if (hash != null && remaining == 0) {
+                        manifest.putFile(file.relPath(), file.size(), file.lastModified(), hash.getValue());
+                    }
+                    for (; remaining > 0; remaining--) {
+                        tar.write(0);
+                    }
+                }
+                tar.closeArchiveEntry();
+            }
+
+            if (shouldLogBackupProgress) {
+                int prevPercent = (int) ((float) count / fileCount * 100);
+                int currPercent = (int) ((float) (count + 1) / fileCount * 100);
+                if (prevPercent / interval < currPercent / interval) {
+                    SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
+                }
+            }
+            count++;
+        }
+        tar.finish();
+    }
+
+    /**
+     * @return The opened file, or null if it was deleted since it was scanned
+     */
+    private static InputStream openIfExists(Path file) throws IOException {
+        try {
+            return Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -1,65 +1,187 @@
 package org.spoorn.simplebackup.compressors;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.function.Predicate;
 
+import org.spoorn.simplebackup.BackupExecutors;
 import org.spoorn.simplebackup.SimpleBackup;
 import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupCheckpoint;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.ExcludeFileFilter;
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
 import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.progress.ProgressMonitor;
 
-public class ZipCompressor {
+public class ZipCompressor implements Compressor {
     public static final String ZIP_EXTENSION = ".zip";
 
-    private static boolean shouldLogBackupProgress = false;
-
-    public static void init() {
-        shouldLogBackupProgress = ModConfig.getInstance().intervalPercentageToLogBackupProgress > 0 && ModConfig.getInstance().intervalPercentageToLogBackupProgress <= 100;
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.ZIP_FORMAT;
     }
 
-    public static boolean zip(String targetPath, String destinationPath) {
-        try {
-            ExcludeFileFilter excludeFileFilter = file -> SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getName());
-            ZipParameters parameters = new ZipParameters();
-            parameters.setExcludeFileFilter(excludeFileFilter);
+    @Override
+    public String getExtension() {
+        return ZIP_EXTENSION;
+    }
 
-            ZipFile zipFile = new ZipFile(destinationPath + ZIP_EXTENSION);
+    @Override
+    public boolean compressesOnCallingThread(DirectoryScan source) {
+        // With more threads, the files are zipped in slices on the compression pool.  zip4j zips on one thread.
+        return ModConfig.getInstance().useZip4j || BackupExecutors.getCompressionThreads() == 1;
+    }
 
-            if (shouldLogBackupProgress) {
-                zipFile.setRunInThread(true);
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest) {
+        int numThreads = Math.min(ModConfig.getInstance().numThreads, Runtime.getRuntime().availableProcessors() * 4);
+        Path destination = getBackupFile(destinationFolder, backupName);
+        String worldFolderName = source.getRoot().getFileName().toString();
+        // The zip is written in the staging folder and renamed into place once complete
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(destinationFolder, getFormat(), backupName, worldFolderName)) {
+            Path staged = checkpoint.getFolder().resolve(destination.getFileName());
+            if (ModConfig.getInstance().useZip4j) {
+                try (OutputStream fileOut = Files.newOutputStream(staged);
+                     OutputStream out = manifest != null ? manifest.hashArchive(fileOut) : fileOut) {
+                    if (!zip4j(source, out, manifest)) {
+                        return false;
+                    }
+                }
+            } else if (!ParallelZipCompressor.zip(source, staged, Math.max(1, numThreads), manifest, checkpoint)) {
+                return false;
             }
+            checkpoint.publish(staged, destination);
+            return true;
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not zip target=[" + source.getRoot() + "] to [" + destination + "]", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, OutputStream out) {
+        if (ModConfig.getInstance().useZip4j) {
+            return zip4j(source, out, null);
+        }
+        return ParallelZipCompressor.zip(source, out);
+    }
+
+    /**
+     * Zips the scanned folder with zip4j on the calling thread, with the same entry names as the mod's zip writer.
+     * Every file is deflated at zip4j's default level, and no checkpoints are saved.  Does not close the output stream.
+     *
+     * @param manifest Records the checksum of each file as it is zipped, or null
+     * @return True if the folder was zipped
+     */
+    private static boolean zip4j(DirectoryScan source, OutputStream out, BackupManifest manifest) {
+        final long fileCount = source.getFileCount();
+        final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+        final boolean shouldLogBackupProgress = interval > 0 && interval <= 100;
+        final String rootName = source.getRoot().getFileName().toString();
+        long count = 0;
 
-            ProgressMonitor progressMonitor = zipFile.getProgressMonitor();
+        // zip4j writes the central directory when closed, so the caller's stream is shielded from the close
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
 
-            File targetFile = new File(targetPath);
-            if (targetFile.isDirectory()) {
-                zipFile.addFolder(targetFile, parameters);
-            } else if (targetFile.isFile()) {
-                zipFile.addFile(targetFile, parameters);
-            } else {
-                zipFile.close();
-                throw new IllegalArgumentException("Target Path=" + targetPath + " is not a valid file or directory to backup");
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }, 1 << 16))) {
+            for (DirectoryScan.ScannedDirectory dir : source.getDirectories()) {
+                ZipParameters parameters = new ZipParameters();
+                parameters.setFileNameInZip(dir.relPath().isEmpty() ? rootName + "/" : rootName + "/" + dir.relPath() + "/");
+                parameters.setLastModifiedFileTime(dir.lastModified());
+                zip.putNextEntry(parameters);
+                zip.closeEntry();
             }
-            zipFile.close();
 
-            if (shouldLogBackupProgress) {
-                int prevPercent = 0;
-                int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
-                while (progressMonitor.getState() != ProgressMonitor.State.READY) {
-                    int currPercent = progressMonitor.getPercentDone();
+            byte[] buffer = new byte[8192];
+            StreamingXXHash64 hash = manifest != null ? BackupManifest.newHash() : null;
+            for (DirectoryScan.ScannedFile file : source.getFiles()) {
+                InputStream in = openIfExists(file.path());
+                if (in != null) {
+                    try (in) {
+                        ZipParameters parameters = new ZipParameters();
+                        parameters.setFileNameInZip(rootName + "/" + file.relPath());
+                        parameters.setLastModifiedFileTime(file.lastModified());
+                        zip.putNextEntry(parameters);
+                        if (hash != null) {
+                            hash.reset();
+                        }
+                        // Copy at most the scanned size, in case the file grows while it is zipped
+                        long remaining = file.size();
+                        int read;
+                        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                            BackupThrottle.acquire(read);
+                            zip.write(buffer, 0, read);
+                            remaining -= read;
+                            if (hash != null) {
+                                hash.update(buffer, 0, read);
+                            }
+                        }
+                        // A file that shrank while it was zipped gets no checksum
+                        if (hash != null && remaining == 0) {
+                            manifest.putFile(file.relPath(), file.size(), file.lastModified(), hash.getValue());
+                        }
+                        zip.closeEntry();
+                    }
+                }
+
+                if (shouldLogBackupProgress) {
+                    int prevPercent = (int) ((float) count / fileCount * 100);
+                    int currPercent = (int) ((float) (count + 1) / fileCount * 100);
                     if (prevPercent / interval < currPercent / interval) {
                         SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
                     }
-                    prevPercent = currPercent;
-                    Thread.sleep(100);
                 }
+                count++;
             }
             return true;
         } catch (Exception e) {
-            SimpleBackup.LOGGER.error("Could not zip target=[" + targetPath + "] to [" + destinationPath + "]", e);
+            SimpleBackup.LOGGER.error("Could not zip target=[" + source.getRoot() + "] with zip4j", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The opened file, or null if it was deleted since it was scanned
+     */
+    private static InputStream openIfExists(Path file) throws IOException {
+        try {
+            return Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        try {
+            long extracted = ArchiveExtractor.extractZip(backup, destination, filter, numThreads);
+            SimpleBackup.LOGGER.info("Restored {} files from {}", extracted, backup);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore zip backup [" + backup + "] to [" + destination + "]", e);
             return false;
         }
     }
@@ -0,0 +1,120 @@
+package org.spoorn.simplebackup.compressors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.BackupThrottle;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Archives the world folder into a .tar, compressed with Zstandard into a .tar.zst file.  The compression level is
+ * configurable, and Zstandard's own worker threads are used when numThreads is greater than 1.
+ */
+public class ZstdCompressor implements Compressor {
+    public static final String TAR_ZST_EXTENSION = ".tar.zst";
+    private boolean shouldLogBackupProgress = false;
+
+    @Override
+    public String getFormat() {
+        return SimpleBackupUtil.ZSTD_FORMAT;
+    }
+
+    @Override
+    public String getExtension() {
+        return TAR_ZST_EXTENSION;
+    }
+
+    @Override
+    public void init() {
+        shouldLogBackupProgress = ModConfig.getInstance().intervalPercentageToLogBackupProgress > 0 && ModConfig.getInstance().intervalPercentageToLogBackupProgress <= 100;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, Path destinationFolder, String backupName, BackupManifest manifest) {
+        Path destinationFile = getBackupFile(destinationFolder, backupName);
+        Path tmpFile = destinationFolder.resolve(backupName + TAR_ZST_EXTENSION + ".tmp");
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(tmpFile)) {
+                write(source, manifest != null ? manifest.hashArchive(fileOut) : fileOut, manifest);
+            }
+            SimpleBackupUtil.publish(tmpFile, destinationFile);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not zstd compress target=[" + source.getRoot() + "] to [" + destinationFile + "]", e);
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException ex) {
+                SimpleBackup.LOGGER.error("Could not delete temporary file " + tmpFile, ex);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean compress(DirectoryScan source, OutputStream out) {
+        try {
+            write(source, CloseShieldOutputStream.wrap(out), null);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not zstd compress target=[" + source.getRoot() + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the scanned files as a tar compressed with Zstandard, closing the stream.
+     *
+     * @param manifest Records the checksums of the files, or null
+     */
+    private void write(DirectoryScan source, OutputStream target, BackupManifest manifest) throws IOException {
+        int numThreads = BackupThrottle.getWorkerCount(Math.min(ModConfig.getInstance().numThreads, Runtime.getRuntime().availableProcessors() * 4));
+        try (ZstdOutputStream zstdOut = new ZstdOutputStream(target, ModConfig.getInstance().zstdCompressionLevel)) {
+            zstdOut.setChecksum(true);
+            if (numThreads > 1) {
+                zstdOut.setWorkers(numThreads);
+            }
+            OutputStream out = new BufferedOutputStream(zstdOut, Math.max(8192, ModConfig.getInstance().multiThreadBufferSize));
+            int level = ModConfig.getInstance().zstdCompressionLevel;
+            if (ModConfig.getInstance().perFileCompression && level > 1) {
+                // The level can only change between frames, so each run of files with the same codec is its own
+                // frame, which zstd decompresses as one stream.  Only files that compress well use the higher level
+                zstdOut.setCloseFrameOnFlush(true);
+                TarArchiver.archive(source, out, shouldLogBackupProgress, codec -> zstdOut.setLevel(codec == FileCodec.STRONG ? level : 1), manifest);
+            } else {
+                TarArchiver.archive(source, out, shouldLogBackupProgress, null, manifest);
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public boolean restore(Path backup, Path destination, Predicate<String> filter, int numThreads) {
+        try (InputStream in = new ZstdInputStream(new BufferedInputStream(Files.newInputStream(backup), 1 << 20))) {
+            long extracted = ArchiveExtractor.extractTar(in, destination, filter);
+            SimpleBackup.LOGGER.info("Restored {} files from {}", extracted, backup);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore zstd backup [" + backup + "] to [" + destination + "]", e);
+            return false;
+        }
+    }
+}
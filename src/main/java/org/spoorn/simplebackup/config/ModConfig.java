@@ -3,7 +3,9 @@ package org.spoorn.simplebackup.config;
 import java.io.FileOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import blue.endless.jankson.Comment;
@@ -31,6 +33,28 @@ public class ModConfig {
     @Comment("Delay in seconds between automatic backups. [default = 3600] [minimum = 10]")
     public int backupIntervalInSeconds = 3600;
 
+    @Comment("Backup interval in seconds for each dimension in automatic backups. [default = {}]\n" +
+        "A dimension is left out of automatic backups until its interval has passed since it was last backed up, so\n" +
+        "dimensions that rarely change are not archived again every backupIntervalInSeconds. Use intervals that are\n" +
+        "multiples of backupIntervalInSeconds. A negative interval leaves the dimension out of automatic backups.\n" +
+        "Dimensions not listed, and files outside of the dimension folders such as level.dat and player data, are in every\n" +
+        "backup. Manual and server stopped backups always include every dimension. Old backups are never pruned while they\n" +
+        "are the newest backup that has a dimension, and a full restore of a backup that left dimensions out restores them\n" +
+        "from the closest backup that has them. Example with backupIntervalInSeconds = 900:\n" +
+        "\t\"dimensionBackupIntervals\": { \"minecraft:the_nether\": 3600, \"minecraft:the_end\": 86400 },")
+    public Map<String, Integer> dimensionBackupIntervals = new HashMap<>();
+
+    @Comment("Glob patterns of the only files to back up, or empty to back up every file. [default = []]\n" +
+        "Patterns are matched against paths relative to the world folder with '/' separators. Example:\n" +
+        "\t\"includePaths\": [ \"level.dat\", \"region/**\", \"playerdata/**\" ],")
+    public List<String> includePaths = new ArrayList<>();
+
+    @Comment("Glob patterns of files to leave out of backups. [default = []]\n" +
+        "Patterns are matched against paths relative to the world folder with '/' separators. Data the game regenerates,\n" +
+        "such as points of interest, can be left out to save space. Example:\n" +
+        "\t\"excludePaths\": [ \"poi/**\", \"DIM-1/poi/**\", \"DIM1/poi/**\" ],")
+    public List<String> excludePaths = new ArrayList<>();
+
     @Comment("Only backup if players were online for the backup interval. [default = true]\n" +
         "You might want to set this to false if the server is loading chunks even when no one is online.")
     public boolean onlyBackupIfPlayersOnline = true;
@@ -41,21 +65,99 @@ public class ModConfig {
         "\tsuch as CTRL+C! Double check the backup file is the size you expect")
     public boolean enableServerStoppedBackup = true;
 
+    @Comment("True to back up a consistent snapshot of the world. [default = false]\n" +
+        "Before each backup, the world is saved and saving is paused while the world folder is copied into a staging folder\n" +
+        "inside the backup folder, then saving is resumed and the backup is created from the copy. This prevents backups\n" +
+        "from containing chunks that were half written while the backup was running.\n" +
+        "The server thread is only blocked to queue the save, which still serializes every chunk changed since the last\n" +
+        "save, so it can take longer than a tick after many changes. Requires enough free disk space for an extra copy of the world.")
+    public boolean consistentSnapshot = false;
+
+    @Comment("True to create backups in two stages. [default = false]\n" +
+        "The world folder is first quickly copied into a staging folder inside the backup folder, then the backup is\n" +
+        "created from the copy in the background on low priority threads, one backup at a time, and the copy is deleted. The world files are\n" +
+        "only read for as long as the copy takes, instead of for the whole compression.\n" +
+        "Requires enough free disk space for an extra copy of the world.")
+    public boolean backgroundCompression = false;
+
     @Comment("Backup format. Supports simply backing up as a direct copy of the folder, or ZIP [default = \"ZIP\"]\n" +
-        "Supported formats: \"DIRECTORY\", \"ZIP\", \"LZ4\"\n" +
+        "Supported formats: \"DIRECTORY\", \"ZIP\", \"LZ4\", \"INCREMENTAL\", \"ZSTD\", \"NBT\"\n" +
         "\tDIRECTORY: copies the world folder as-is\n" +
         "\tZIP: copies the world folder and zips it into a .zip file\n" +
         "\tLZ4: archives the world folder into a .tar, then compresses using lz4, making a .tar.lz4 file\n" +
-        "LZ4 can be extracted/decompressed using 7-Zip-zstd: https://github.com/mcmilk/7-Zip-zstd\n" +
+        "\tINCREMENTAL: splits files into chunks stored once in a shared chunk store, each backup is only a small .manifest file\n" +
+        "\tZSTD: archives the world folder into a .tar, then compresses using Zstandard, making a .tar.zst file\n" +
+        "\tNBT: unpacks the chunks in region files and compresses them together using Zstandard, making a .nbt.zst file.\n" +
+        "\t     The smallest backups of region files, restored with /simplebackup restore or SimpleBackupRestore\n" +
+        "LZ4 and ZSTD can be extracted/decompressed using 7-Zip-zstd: https://github.com/mcmilk/7-Zip-zstd\n" +
         "See https://github.com/spoorn/SimpleBackup/blob/main/README.md for more information on the backup formats")
     public String backupFormat = "ZIP";
 
-    @Comment("Number of threads to execute backup. Allows for parallel compression. Only applies for LZ4 format currently! [default = 1]\n" +
+    @Comment("True to store region files (.mca) per chunk when using the INCREMENTAL format. [default = true]\n" +
+        "Only chunks whose timestamp in the region file header changed since the previous backup are read and stored,\n" +
+        "and region files are rebuilt from their stored chunks when restoring.")
+    public boolean regionAwareIncrementalBackups = true;
+
+    @Comment("True to hard link files that did not change since the previous backup when using the DIRECTORY format. [default = false]\n" +
+        "Files with the same size and last modified time as in the previous backup are linked instead of copied, similar to\n" +
+        "rsync --link-dest. Each backup is still a complete folder, but unchanged files take no extra disk space.\n" +
+        "Requires the backup folder to be on a file system that supports hard links. Do not edit files inside backups when\n" +
+        "this is enabled, as the change would show up in every backup linking to the same file!")
+    public boolean hardLinkUnchangedFiles = false;
+
+    @Comment("How often ZIP and DIRECTORY backups save a checkpoint of the files they finished, in seconds. [default = 30]\n" +
+        "Backups are written under a temporary name and renamed once complete. If the server or machine dies while a backup\n" +
+        "is written, the next backup in the same format keeps the files in the checkpoint that haven't changed since and only\n" +
+        "writes the rest, instead of starting over. Finished files are flushed to disk at each checkpoint.\n" +
+        "0 turns checkpoints off, so interrupted backups start over.")
+    public int checkpointIntervalInSeconds = 30;
+
+    @Comment("LZ4 compression mode. [default = \"FAST\"]\n" +
+        "\tFAST: fastest compression, multi-threaded when numThreads > 1\n" +
+        "\tHIGH: LZ4 HC, a smaller archive that decompresses just as fast, but is slower to compress and single threaded")
+    public String lz4CompressionMode = "FAST";
+
+    @Comment("Compression level for the LZ4 HIGH compression mode, from 1 to 17. Higher is smaller but slower. [default = 9]")
+    public int lz4HighCompressionLevel = 9;
+
+    @Comment("Compression level for the ZSTD and NBT formats, from 1 to 22. Higher is smaller but slower. [default = 3]\n" +
+        "Levels 1 to 3 compress about as fast as ZIP while producing smaller archives. ZSTD and NBT use numThreads for compression.")
+    public int zstdCompressionLevel = 3;
+
+    @Comment("True to choose how to compress each file in ZIP backups, and in LZ4 HIGH and ZSTD backups. [default = true]\n" +
+        "Files that are already compressed, such as gzipped .dat files, are stored as is, and only the header and free space\n" +
+        "of region files are compressed, as their chunks are already compressed. Text and other files that compress well use\n" +
+        "a stronger compression. Backups are much faster and nearly the same size. False compresses every file the same way.")
+    public boolean perFileCompression = true;
+
+    @Comment("True to write ZIP backups with the zip4j library instead of the mod's own zip writer. [default = false]\n" +
+        "zip4j zips on a single thread and deflates every file the same way, ignoring numThreads, perFileCompression and\n" +
+        "checkpointIntervalInSeconds. Use this if a ZIP backup written by the mod's zip writer can't be opened.")
+    public boolean useZip4j = false;
+
+    @Comment("Number of threads to execute backup. Allows for parallel compression, and for DIRECTORY, copying several files at once. Only applies for ZIP, LZ4, ZSTD, NBT and DIRECTORY formats currently! [default = 1]\n" +
         "Recommend only increasing this value if your world is very large and backups take a while.\n" +
         "Recommend setting numThreads for multi-threaded processing to the number of cores in your CPU, or a multiple of that number.\n" +
         "This is capped to number of processors * 4 for your safety!")
     public int numThreads = 1;
 
+    @Comment("True to record which region files the server writes. [default = true]\n" +
+        "Backups then only read the size and modified time of region files written since the previous backup, instead of\n" +
+        "every file in the world. The list of region files is kept in simplebackup-regions.dat in the world folder. Delete\n" +
+        "it after editing region files with external tools such as MCA Selector while the server is stopped, so the next\n" +
+        "backup scans every file. Edits that don't write level.dat are not noticed otherwise, and the backup would keep the\n" +
+        "sizes of the edited region files from before the edit.")
+    public boolean trackRegionWrites = true;
+
+    @Comment("Target server tick time in milliseconds while a backup is running, or 0 to disable. [default = 45]\n" +
+        "While the recent ticks take longer than this, backups read less data per second and use fewer threads, then\n" +
+        "speed back up once the server has room again. Ticks must take under 50 ms for the server to not fall behind.")
+    public int targetMillisPerTick = 45;
+
+    @Comment("Maximum bytes per second backups read from the world, or 0 for no limit. [default = 0]\n" +
+        "For example, 52428800 limits backups to 50 MB/s. Does not apply to the LZ4 FAST mode.")
+    public long maxBackupBytesPerSecond = 0;
+
     @Comment("Buffer size in bytes for multi-threading (when numThreads > 1) used for compressing and merging files [default = 8192]")
     public int multiThreadBufferSize = 8192;
 
@@ -63,6 +165,11 @@ public class ModConfig {
         "This will prevent generating backups if your disk space is getting close to maxing out.")
     public int percentageAvailableDiskSpaceRequirement = 20;
 
+    @Comment("True to delete the oldest backups early if there is not enough disk space for the next backup. [default = true]\n" +
+        "The space a backup needs is estimated from the world size and the space previous backups of the same format used.\n" +
+        "Backups are only deleted if that frees enough space, and the newest backup is never deleted.")
+    public boolean pruneBackupsWhenLowOnSpace = true;
+
     @Comment("Backup folder. If this is set to a relative path, it will be relative to the game directory [default = \"backup\"]\n" +
         "This can be an absolute path as well if you want to store backups in a different location.\n" +
         "Note: If you are using backslashes '\\' instead of forward slash, you will need to escape it with double backslash '\\\\'.\n" +
@@ -71,10 +178,57 @@ public class ModConfig {
         "\t\"backupPath\": \"F:\\\\mybackups\\\\backup\",")
     public String backupPath = "backup";
 
+    @Comment("URL of an S3 compatible object store to upload backups to, or empty to keep backups in backupPath. [default = \"\"]\n" +
+        "ZIP, LZ4, ZSTD and NBT backups are streamed straight into a multipart upload while they are compressed, without\n" +
+        "writing the backup to the local disk. Other formats are still written to backupPath. Uploaded backups are not\n" +
+        "deleted by maxBackupsToKeep, use a lifecycle rule on the bucket to expire them. Examples:\n" +
+        "\t\"s3Endpoint\": \"https://s3.us-east-1.amazonaws.com\",\n" +
+        "\t\"s3Endpoint\": \"http://localhost:9000\",")
+    public String s3Endpoint = "";
+
+    @Comment("Bucket to upload backups to. [default = \"\"]")
+    public String s3Bucket = "";
+
+    @Comment("Region of the bucket, used to sign requests. [default = \"us-east-1\"]")
+    public String s3Region = "us-east-1";
+
+    @Comment("Prefix of the object keys of uploaded backups, such as \"myserver/\". [default = \"\"]")
+    public String s3Prefix = "";
+
+    @Comment("Access key and secret key to upload with. [default = \"\"]\n" +
+        "If empty, the AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY environment variables are used.")
+    public String s3AccessKey = "";
+    public String s3SecretKey = "";
+
+    @Comment("True to put the bucket in the path of requests, as MinIO and most S3 compatible stores expect, or false\n" +
+        "to put it in the host name, as in https://bucket.s3.us-east-1.amazonaws.com. [default = true]")
+    public boolean s3PathStyle = true;
+
+    @Comment("Size of each part of the upload in MB, at least 5. [default = 16]\n" +
+        "Backups can be up to 10000 parts, so 16 MB parts allow backups of up to 160 GB.")
+    public int s3PartSizeMB = 16;
+
+    @Comment("Number of parts uploaded at once. [default = 4]\n" +
+        "Compression pauses while this many parts are uploading, so at most s3PartSizeMB * (s3MaxInFlightParts + 1) MB\n" +
+        "of memory is used for the upload.")
+    public int s3MaxInFlightParts = 4;
+
     @Comment("Maximum number of backups to keep at a given time. [default = 10]\n" +
-        "If we generate a backup, but have more backups than this number, the oldest backup will be deleted.")
+        "If we generate a backup, but have more backups than this number, the oldest backup will be deleted.\n" +
+        "Backups kept by keepHourlyBackups, keepDailyBackups or keepWeeklyBackups are kept on top of these.")
     public int maxBackupsToKeep = 10;
 
+    @Comment("Number of recent hours to keep the newest backup of, or 0 to disable. [default = 0]\n" +
+        "For example, 24 keeps one backup for each of the last 24 hours that have a backup.")
+    public int keepHourlyBackups = 0;
+
+    @Comment("Number of recent days to keep the newest backup of, or 0 to disable. [default = 0]")
+    public int keepDailyBackups = 0;
+
+    @Comment("Number of recent weeks to keep the newest backup of, or 0 to disable. [default = 0]\n" +
+        "Weeks start on Monday.")
+    public int keepWeeklyBackups = 0;
+
     @Comment("True to enable manual backups, false to disable [default = true]")
     public boolean enableManualBackups = true;
 
@@ -88,6 +242,13 @@ public class ModConfig {
         "Set this to a value <= 0 or > 100 to not print anything.")
     public int intervalPercentageToLogBackupProgress = 10;
 
+    @Comment("File to write backup metrics to after every backup, or empty to not write them. [default = \"\"]\n" +
+        "Includes how long each phase of the backup took, the world and backup sizes, and the compression ratio. The file is\n" +
+        "in the Prometheus text format, or JSON if the name ends in .json. Relative paths are relative to the game directory.\n" +
+        "For node exporter's textfile collector, point this at a .prom file in the collector's directory, for example:\n" +
+        "\t\"metricsFile\": \"/var/lib/node_exporter/textfile_collector/simplebackup.prom\",")
+    public String metricsFile = "";
+
     @Comment("Broadcast messages when server is backing up and success/failed. These are in the config file to allow\n" +
         "servers to use whatever language they want without updating the mod source directly. Default language is english")
     public Map<String, String> broadcastMessages = new HashMap<>(DEFAULT_BROADCAST_MESSAGES);
@@ -6,6 +6,7 @@ import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.ModifyVariable;
+import org.spoorn.simplebackup.BackgroundCompressor;
 import org.spoorn.simplebackup.SimpleBackup;
 import org.spoorn.simplebackup.SimpleBackupTask;
 
@@ -25,6 +26,10 @@ public class DedicatedServerWatchdogMixin {
                 SimpleBackup.LOGGER.info("SimpleBackup server end backup task is still ongoing past max-tick-time.  Waiting for it to finish before stopping server...");
                 return -1;  // Don't alert watchdog
             }
+            if (BackgroundCompressor.isAwaiting()) {
+                SimpleBackup.LOGGER.info("SimpleBackup background compression is still ongoing past max-tick-time.  Waiting for it to finish before stopping server...");
+                return -1;  // Don't alert watchdog
+            }
         }
 
         return n;
@@ -0,0 +1,13 @@
+package org.spoorn.simplebackup.mixin;
+
+import net.minecraft.world.level.entity.EntityPersistentStorage;
+import net.minecraft.world.level.entity.PersistentEntitySectionManager;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(PersistentEntitySectionManager.class)
+public interface PersistentEntitySectionManagerAccessor {
+
+    @Accessor("permanentStorage")
+    EntityPersistentStorage<?> getPermanentStorage();
+}
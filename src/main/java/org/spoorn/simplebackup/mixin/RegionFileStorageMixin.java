@@ -0,0 +1,29 @@
+package org.spoorn.simplebackup.mixin;
+
+import java.nio.file.Path;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFileStorage;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spoorn.simplebackup.util.RegionWriteTracker;
+
+@Mixin(RegionFileStorage.class)
+public class RegionFileStorageMixin {
+    @Shadow @Final private Path folder;
+
+    /**
+     * Records every chunk written to a region file, so backups know which region files changed without reading the
+     * attributes of every file in the world.  Recorded before the write so it is journaled if the server crashes
+     * during it, and again after so a backup that started meanwhile doesn't miss it.
+     */
+    @Inject(method = "write", at = {@At("HEAD"), @At("RETURN")})
+    private void recordChunkWrite(ChunkPos pos, CompoundTag tag, CallbackInfo ci) {
+        RegionWriteTracker.onChunkWrite(this.folder, pos.getRegionX(), pos.getRegionZ(), pos.getRegionLocalX(), pos.getRegionLocalZ());
+    }
+}
@@ -0,0 +1,301 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.filefilter.NotFileFilter;
+import org.apache.commons.io.filefilter.OrFileFilter;
+import org.apache.commons.io.filefilter.PrefixFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
+
+/**
+ * List of the backups in the backup folder, kept in a small append-only file next to them so retention, disk space
+ * checks and the list commands don't need to touch the backups themselves.
+ *
+ * <p>Each line adds or replaces a backup with "+" followed by its fields, or removes one with "-" followed by its
+ * name, separated by tabs.  The file is rewritten with only the current backups once most of its lines are outdated.
+ * Backups copied into the folder by hand are picked up from their name, which starts with the backup's timestamp, and
+ * backups deleted by hand are dropped, when the catalog is loaded.
+ */
+public final class BackupCatalog {
+    public static final long UNKNOWN = -1;
+    private static final String CATALOG_FILE = ".catalog";
+    private static final String ADD = "+";
+    private static final String REMOVE = "-";
+    private static final DateTimeFormatter BACKUP_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    // Skip temporary files and internal folders such as the incremental chunk store
+    private static final NotFileFilter EXCLUDE_FILES = new NotFileFilter(new OrFileFilter(new SuffixFileFilter(".tmp"), new PrefixFileFilter(".")));
+    private static Map<String, Entry> entries;
+    private static int lineCount = 0;
+
+    private BackupCatalog() {
+    }
+
+    /**
+     * Loads the catalog and reconciles it with the backup folder, before any backup could be half written to it.
+     */
+    public static synchronized void load() {
+        getEntries();
+    }
+
+    /**
+     * @return Backups sorted by creation time, oldest first
+     */
+    public static synchronized List<Entry> getBackups() {
+        return sortOldestFirst(getEntries().values());
+    }
+
+    /**
+     * @return The backup with the given file name, or null if there is none
+     */
+    public static synchronized Entry get(String name) {
+        return getEntries().get(name);
+    }
+
+    /**
+     * Records a backup that was just created, or updates a backup already in the catalog.
+     */
+    public static synchronized void put(Entry entry) {
+        getEntries().put(entry.name(), entry);
+        append(List.of(ADD + "\t" + entry.serialize()));
+    }
+
+    /**
+     * Forgets backups that were deleted.
+     */
+    public static synchronized void remove(Collection<Entry> deleted) {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : deleted) {
+            if (getEntries().remove(entry.name()) != null) {
+                lines.add(REMOVE + "\t" + entry.name());
+            }
+        }
+        append(lines);
+    }
+
+    /**
+     * @param name File name of the backup
+     * @return When the backup was started, going by its name
+     */
+    public static long parseCreatedMillis(String name, long fallback) {
+        if (name.length() < 19) {
+            return fallback;
+        }
+        try {
+            return LocalDateTime.parse(name.substring(0, 19), BACKUP_NAME_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallback;
+        }
+    }
+
+    private static List<Entry> sortOldestFirst(Collection<Entry> unsorted) {
+        List<Entry> backups = new ArrayList<>(unsorted);
+        backups.sort(Comparator.comparingLong(Entry::createdMillis).thenComparing(Entry::name));
+        return backups;
+    }
+
+    private static Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            lineCount = 0;
+            Path catalogFile = getCatalogFile();
+            if (Files.exists(catalogFile)) {
+                try (BufferedReader reader = Files.newBufferedReader(catalogFile, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lineCount++;
+                        String[] parts = line.split("\t", -1);
+                        if (parts.length > 1 && ADD.equals(parts[0])) {
+                            Entry entry = Entry.deserialize(parts);
+                            if (entry != null) {
+                                entries.put(entry.name(), entry);
+                            }
+                        } else if (parts.length > 1 && REMOVE.equals(parts[0])) {
+                            entries.remove(parts[1]);
+                        }
+                    }
+                } catch (IOException e) {
+                    SimpleBackup.LOGGER.error("Could not load backup catalog from " + catalogFile + ", rebuilding it", e);
+                    entries.clear();
+                    lineCount = Integer.MAX_VALUE;
+                }
+            }
+
+            // The catalog only needs rewriting once outdated lines outnumber the backups in it
+            if (reconcile() || lineCount > 2 * entries.size() + 16) {
+                rewrite();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Brings the catalog in line with the backup folder, only reading the attributes of backups missing from it.
+     *
+     * @return true if the catalog changed
+     */
+    private static boolean reconcile() {
+        String[] names = SimpleBackupUtil.getBackupPath().toFile().list((FilenameFilter) EXCLUDE_FILES);
+        if (names == null) {
+            return false;
+        }
+
+        Set<String> present = new HashSet<>(List.of(names));
+        boolean changed = entries.keySet().retainAll(present);
+        for (String name : names) {
+            if (!entries.containsKey(name)) {
+                entries.put(name, new Entry(name, getFormat(name), parseCreatedMillis(name, getCreationTime(name)), getSize(name),
+                        UNKNOWN, UNKNOWN, UNKNOWN, null, Set.of()));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static void append(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        Path catalogFile = getCatalogFile();
+        try {
+            Files.write(catalogFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            lineCount += lines.size();
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not save backup catalog to " + catalogFile, e);
+        }
+    }
+
+    private static void rewrite() {
+        Path catalogFile = getCatalogFile();
+        Path tmp = catalogFile.resolveSibling(CATALOG_FILE + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Entry entry : sortOldestFirst(entries.values())) {
+                    writer.write(ADD + "\t" + entry.serialize());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lineCount = entries.size();
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not save backup catalog to " + catalogFile, e);
+        }
+    }
+
+    private static Path getCatalogFile() {
+        return SimpleBackupUtil.getBackupPath().resolve(CATALOG_FILE);
+    }
+
+    private static long getCreationTime(String name) {
+        try {
+            return Files.readAttributes(SimpleBackupUtil.getBackupPath().resolve(name), BasicFileAttributes.class).creationTime().toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long getSize(String name) {
+        Path path = SimpleBackupUtil.getBackupPath().resolve(name);
+        try {
+            if (Files.isDirectory(path)) {
+                return DirectoryScan.scan(path).getTotalSize();
+            }
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String getFormat(String name) {
+        // Longest extension first, so .tar.lz4 isn't mistaken for a shorter one
+        Compressor match = null;
+        for (Compressor compressor : Compressors.getAll()) {
+            String extension = compressor.getExtension();
+            if (!extension.isEmpty() && name.endsWith(extension)
+                    && (match == null || extension.length() > match.getExtension().length())) {
+                match = compressor;
+            }
+        }
+        if (match != null) {
+            return match.getFormat();
+        }
+        return new File(SimpleBackupUtil.getBackupPath().toFile(), name).isDirectory() ? SimpleBackupUtil.DIRECTORY_FORMAT : "UNKNOWN";
+    }
+
+    /**
+     * Fields that are not known, such as for backups found in the folder rather than created, are {@link #UNKNOWN}.
+     *
+     * @param name File name of the backup in the backup folder
+     * @param format Backup format
+     * @param createdMillis When the backup was started
+     * @param sizeBytes Disk space the backup used when it was created
+     * @param worldSizeBytes Total size of the world files that were backed up
+     * @param fileCount Number of world files that were backed up
+     * @param durationMillis How long creating the backup took
+     * @param checksum xxHash64 of the backup file in hex, or null if unknown or the backup is a folder
+     * @param skippedDimensions Dimensions the backup left out as their interval had not passed, see {@link BackupPolicy}
+     */
+    public record Entry(String name, String format, long createdMillis, long sizeBytes, long worldSizeBytes, long fileCount,
+                        long durationMillis, String checksum, Set<String> skippedDimensions) {
+        public Path getPath() {
+            return SimpleBackupUtil.getBackupPath().resolve(name);
+        }
+
+        /**
+         * @return Size of the backup as a fraction of the world size, or -1 if unknown
+         */
+        public double getCompressionRatio() {
+            return worldSizeBytes > 0 && sizeBytes >= 0 ? (double) sizeBytes / worldSizeBytes : -1;
+        }
+
+        /**
+         * @return true if the backup has every dimension of the world
+         */
+        public boolean isComplete() {
+            return skippedDimensions.isEmpty();
+        }
+
+        private String serialize() {
+            return String.join("\t", name, format, Long.toString(createdMillis), Long.toString(sizeBytes), Long.toString(worldSizeBytes),
+                    Long.toString(fileCount), Long.toString(durationMillis), checksum == null ? "" : checksum, String.join(",", skippedDimensions));
+        }
+
+        private static Entry deserialize(String[] parts) {
+            if (parts.length < 9) {
+                return null;
+            }
+            try {
+                // Catalogs written before dimensions could be left out have no skipped dimensions column
+                Set<String> skippedDimensions = parts.length > 9 && !parts[9].isEmpty() ? Set.of(parts[9].split(",")) : Set.of();
+                return new Entry(parts[1], parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4]), Long.parseLong(parts[5]),
+                        Long.parseLong(parts[6]), Long.parseLong(parts[7]), parts[8].isEmpty() ? null : parts[8], skippedDimensions);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Lets a ZIP or DIRECTORY backup that was interrupted, such as by the server being killed or the machine losing power,
+ * resume from the files it had finished instead of starting over.
+ *
+ * <p>The backup is written into a staging folder named {@code .<format>.<backup>.partial} in the backup folder, which
+ * is hidden from the {@link BackupCatalog}, and is only renamed to its final name once it is complete.  While it is
+ * written, each worker flushes the files it finished to disk every {@code checkpointIntervalInSeconds}, then appends
+ * them to the checkpoint file in the staging folder and flushes that, so the checkpoint never lists data that isn't on
+ * disk.
+ *
+ * <p>The next backup in the same format takes over the newest staging folder that no other backup is writing, and
+ * keeps the files of the checkpoint that have the same size and modified time in its own scan, so only the rest is
+ * read and written again.  Older staging folders are deleted, as is the newest if the world folder has a different
+ * name or checkpoints are turned off.  Staging folders in use are tracked in memory, so a manual and an automatic
+ * backup of the same format running at once each write their own.
+ *
+ * <p>The checkpoint file starts with a header line naming the world folder, followed by tab separated lines:
+ * <pre>
+ * size  lastModified  hash  data  path
+ * </pre>
+ * where hash is the file's xxHash64 if it was computed or '-', data is where the format wrote the file, and path is
+ * relative to the world folder with '/' separators.  Later lines for the same path replace earlier ones.  Lines are
+ * only appended, so a line cut short by a crash is the last one and is dropped.
+ */
+public final class BackupCheckpoint implements Closeable {
+    private static final String STAGING_EXTENSION = ".partial";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String HEADER = "simplebackup-checkpoint 1";
+    private static final String NO_HASH = "-";
+    // Staging folders of the backups being written, guarded by the class
+    private static final Set<Path> inUse = new HashSet<>();
+
+    private final Path folder;
+    private final FileChannel channel;
+    private final Map<String, Entry> completed;
+    private final boolean resumed;
+    private final long intervalNanos;
+
+    private BackupCheckpoint(Path folder, FileChannel channel, Map<String, Entry> completed, boolean resumed, long intervalNanos) {
+        this.folder = folder;
+        this.channel = channel;
+        this.completed = completed;
+        this.resumed = resumed;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * @return Staging folder of a backup
+     */
+    public static Path getStagingFolder(Path backupFolder, String format, String backupName) {
+        return backupFolder.resolve(getStagingPrefix(format) + backupName + STAGING_EXTENSION);
+    }
+
+    private static String getStagingPrefix(String format) {
+        return "." + format.toLowerCase(Locale.ROOT) + ".";
+    }
+
+    /**
+     * @return Whether a backup of the format was interrupted and left a staging folder that the next backup resumes
+     */
+    public static synchronized boolean hasInterrupted(Path backupFolder, String format) {
+        try {
+            return !findInterrupted(backupFolder, format).isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Staging folders of the format that no backup is writing, newest first
+     */
+    private static List<Path> findInterrupted(Path backupFolder, String format) throws IOException {
+        String prefix = getStagingPrefix(format);
+        List<Path> folders = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupFolder)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(STAGING_EXTENSION) && Files.isDirectory(path) && !inUse.contains(path)) {
+                    folders.add(path);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // No backups yet
+        }
+        // Backup names start with the time they were started
+        folders.sort(Comparator.comparing((Path path) -> path.getFileName().toString()).reversed());
+        return folders;
+    }
+
+    /**
+     * Opens a staging folder for a new backup, resuming from the checkpoint of the newest interrupted backup of the
+     * format if there is one.  The folder is reserved for the backup until it is closed.
+     *
+     * @param backupFolder Backup folder
+     * @param format Backup format, only interrupted backups of the same format are resumed
+     * @param backupName Name of the new backup, which names its staging folder if nothing is resumed
+     * @param worldFolderName Name of the world folder being backed up, the checkpoint is only used for the same world
+     */
+    public static synchronized BackupCheckpoint open(Path backupFolder, String format, String backupName, String worldFolderName)
+            throws IOException {
+        int intervalSeconds = ModConfig.getInstance().checkpointIntervalInSeconds;
+        long intervalNanos = intervalSeconds > 0 ? TimeUnit.SECONDS.toNanos(intervalSeconds) : Long.MAX_VALUE;
+        String header = HEADER + "\t" + worldFolderName + "\n";
+
+        BackupCheckpoint checkpoint = null;
+        for (Path folder : findInterrupted(backupFolder, format)) {
+            if (checkpoint == null && intervalSeconds > 0) {
+                checkpoint = resume(folder, format, header, intervalNanos);
+                if (checkpoint != null) {
+                    continue;
+                }
+            }
+            SimpleBackup.LOGGER.info("Deleting interrupted {} backup in {}, it can't be resumed", format, folder);
+            SimpleBackupUtil.deleteRecursively(folder);
+        }
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+
+        Path folder = getStagingFolder(backupFolder, format, backupName);
+        if (inUse.contains(folder)) {
+            throw new IOException("Backup " + backupName + " is already being written to " + folder);
+        }
+        Files.createDirectories(folder);
+        FileChannel channel = FileChannel.open(folder.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(channel, header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        inUse.add(folder);
+        return new BackupCheckpoint(folder, channel, Map.of(), false, intervalNanos);
+    }
+
+    /**
+     * @return The checkpoint of an interrupted backup, or null if it is of another world or has no checkpoint
+     */
+    private static BackupCheckpoint resume(Path folder, String format, String header, long intervalNanos) throws IOException {
+        Path checkpointFile = folder.resolve(CHECKPOINT_FILE);
+        String content;
+        try {
+            content = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!content.startsWith(header)) {
+            return null;
+        }
+
+        Map<String, Entry> completed = new HashMap<>();
+        int start = header.length();
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            if (!parseLine(content.substring(start, end), completed)) {
+                SimpleBackup.LOGGER.warn("Ignoring the rest of malformed backup checkpoint {}", checkpointFile);
+                break;
+            }
+            start = end + 1;
+        }
+        long validLength = content.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+
+        FileChannel channel = FileChannel.open(checkpointFile, StandardOpenOption.WRITE);
+        try {
+            // Drop a line cut short by a crash, so lines appended after it are read correctly
+            channel.truncate(validLength);
+            channel.position(validLength);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        inUse.add(folder);
+        SimpleBackup.LOGGER.info("Resuming interrupted {} backup from its checkpoint in {}, {} files were already written",
+                format, folder, completed.size());
+        return new BackupCheckpoint(folder, channel, Collections.unmodifiableMap(completed), true, intervalNanos);
+    }
+
+    private static boolean parseLine(String line, Map<String, Entry> completed) {
+        String[] parts = line.split("\t", 5);
+        if (parts.length != 5) {
+            return false;
+        }
+        try {
+            Long hash = NO_HASH.equals(parts[2]) ? null : Long.parseUnsignedLong(parts[2], 16);
+            completed.put(parts[4], new Entry(parts[4], Long.parseLong(parts[0]), Long.parseLong(parts[1]), hash, parts[3]));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public Path getFolder() {
+        return this.folder;
+    }
+
+    /**
+     * @return Whether an interrupted backup is being resumed, so the staging folder may hold files that are not in the
+     *          checkpoint
+     */
+    public boolean isResumed() {
+        return this.resumed;
+    }
+
+    /**
+     * @return The checkpoint entry of a file if it was written by the interrupted backup and hasn't changed since,
+     *          otherwise null
+     */
+    public Entry getCompleted(DirectoryScan.ScannedFile file) {
+        Entry entry = this.completed.get(file.relPath());
+        return entry != null && entry.size == file.size() && entry.lastModified == file.lastModified() ? entry : null;
+    }
+
+    /**
+     * @return A batch for one worker to collect the files it finished in, until they are due to be checkpointed
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Renames the finished backup out of the staging folder to its final name, then deletes the staging folder.
+     *
+     * @param staged Backup file or folder inside the staging folder
+     * @param destination Final path of the backup
+     */
+    public void publish(Path staged, Path destination) throws IOException {
+        // The staging folder stays reserved until it is deleted, so no other backup resumes from it meanwhile
+        try {
+            this.channel.close();
+            SimpleBackupUtil.publish(staged, destination);
+            SimpleBackupUtil.deleteRecursively(this.folder);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the checkpoint file and releases the staging folder, leaving it to be resumed if the backup wasn't
+     * published.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.channel.close();
+        } finally {
+            synchronized (BackupCheckpoint.class) {
+                inUse.remove(this.folder);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * A file written into the staging folder.
+     *
+     * @param relPath Path relative to the world folder
+     * @param size Size of the file when it was scanned
+     * @param lastModified Modified time of the file when it was scanned, in millis
+     * @param hash xxHash64 of the file, or null if it wasn't computed
+     * @param data Where the format wrote the file, without tabs or line breaks
+     */
+    public record Entry(String relPath, long size, long lastModified, Long hash, String data) {
+    }
+
+    /**
+     * Files one worker finished since its last checkpoint.  Not thread safe, each worker has its own.
+     */
+    public final class Batch {
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<Path> written = new ArrayList<>();
+        private long lastCommitNanos = System.nanoTime();
+
+        /**
+         * @param file File the entry's data was written to and that has to be flushed to disk before it is
+         *             checkpointed, or null if it is written to the worker's own channel or needs no flushing
+         */
+        public void add(Entry entry, Path file) {
+            this.entries.add(entry);
+            if (file != null) {
+                this.written.add(file);
+            }
+        }
+
+        /**
+         * @return Whether the files finished since the last checkpoint should be checkpointed now
+         */
+        public boolean isDue() {
+            return !this.entries.isEmpty() && System.nanoTime() - this.lastCommitNanos >= intervalNanos;
+        }
+
+        /**
+         * Flushes the files finished since the last checkpoint to disk, then appends them to the checkpoint.
+         *
+         * @param out Channel the worker writes to, which is flushed to disk along with the added files, or null
+         */
+        public void commit(FileChannel out) throws IOException {
+            if (out != null) {
+                out.force(false);
+            }
+            for (Path file : this.written) {
+                // Opened for reading, as copies of read-only files can't be opened for writing
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    channel.force(false);
+                }
+            }
+            this.written.clear();
+            this.lastCommitNanos = System.nanoTime();
+            if (this.entries.isEmpty() || intervalNanos == Long.MAX_VALUE) {
+                this.entries.clear();
+                return;
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (Entry entry : this.entries) {
+                lines.append(entry.size).append('\t').append(entry.lastModified).append('\t')
+                        .append(entry.hash != null ? BackupManifest.toHex(entry.hash) : NO_HASH).append('\t')
+                        .append(entry.data).append('\t').append(entry.relPath).append('\n');
+            }
+            this.entries.clear();
+            synchronized (BackupCheckpoint.this) {
+                write(channel, lines.toString());
+                channel.force(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.spoorn.simplebackup.SimpleBackup;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * xxHash64 checksums of a backup file and of every world file in it, kept in a small sidecar file next to the backup
+ * so {@link BackupVerifier} can check the backup, and the world against the backup, without extracting it.
+ *
+ * <p>The checksums are computed while the backup is written: world files are hashed as the backup format reads them,
+ * and the backup file as it is written, so nothing is read a second time.  LZ4 backups written by tar-lz4-java, which
+ * writes the backup file itself, only have the checksums of the world files.
+ *
+ * <p>The sidecar is named after the backup with a leading '.', which hides it from the {@link BackupCatalog}, and holds
+ * tab separated lines:
+ * <pre>
+ * A  hash  size                         the backup file
+ * F  hash  size  lastModified  path     a world file, by path relative to the world folder with '/' separators
+ * </pre>
+ * Hashes are 16 hex digits, as xxhsum -H1 prints them.
+ */
+public final class BackupManifest {
+    public static final String EXTENSION = ".xxh64";
+    private static final String ARCHIVE = "A";
+    private static final String FILE = "F";
+    private static final XXHashFactory XX_HASH_FACTORY = XXHashFactory.fastestInstance();
+
+    private final Map<String, FileChecksum> files = new ConcurrentHashMap<>();
+    private volatile FileChecksum archive;
+
+    /**
+     * @return A new hash to checksum data with, the same as the manifest's
+     */
+    public static StreamingXXHash64 newHash() {
+        return XX_HASH_FACTORY.newStreamingHash64(0);
+    }
+
+    /**
+     * @return Path of the manifest of a backup file or folder
+     */
+    public static Path getManifestFile(Path backup) {
+        return backup.resolveSibling("." + backup.getFileName() + EXTENSION);
+    }
+
+    public static String toHex(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * Records the checksum of a world file as it was read into the backup.  Safe to call from several threads.
+     *
+     * @param relPath Path relative to the world folder, with '/' separators
+     * @param size Number of bytes hashed
+     * @param lastModified Modified time of the file when it was scanned, in millis
+     */
+    public void putFile(String relPath, long size, long lastModified, long hash) {
+        this.files.put(relPath, new FileChecksum(size, lastModified, hash));
+    }
+
+    public void setArchive(long hash, long size) {
+        this.archive = new FileChecksum(size, 0, hash);
+    }
+
+    /**
+     * @param out Stream the backup file is written to
+     * @return Stream that hashes everything written to it before passing it on, and records the backup file's
+     *          checksum once it is closed
+     */
+    public OutputStream hashArchive(OutputStream out) {
+        return new HashingOutputStream(out);
+    }
+
+    /**
+     * @return Checksum of the backup file, with a lastModified of 0, or null if it isn't known
+     */
+    public FileChecksum getArchive() {
+        return this.archive;
+    }
+
+    /**
+     * @return Checksums of the world files by path relative to the world folder
+     */
+    public Map<String, FileChecksum> getFiles() {
+        return this.files;
+    }
+
+    public boolean isEmpty() {
+        return this.archive == null && this.files.isEmpty();
+    }
+
+    /**
+     * Writes the manifest next to a backup, logging instead of failing the backup if it can't be written.
+     */
+    public void writeFailSafe(Path backup) {
+        try {
+            write(backup);
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not write checksums of backup " + backup, e);
+        }
+    }
+
+    public void write(Path backup) throws IOException {
+        Path manifestFile = getManifestFile(backup);
+        Path tmp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        List<String> paths = new ArrayList<>(this.files.keySet());
+        paths.sort(null);
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            FileChecksum archive = this.archive;
+            if (archive != null) {
+                writer.write(String.join("\t", ARCHIVE, toHex(archive.hash), Long.toString(archive.size)));
+                writer.newLine();
+            }
+            for (String path : paths) {
+                FileChecksum file = this.files.get(path);
+                writer.write(String.join("\t", FILE, toHex(file.hash), Long.toString(file.size), Long.toString(file.lastModified), path));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The manifest of a backup, or null if it has none
+     * @throws IOException If the manifest can't be read or is malformed
+     */
+    public static BackupManifest read(Path backup) throws IOException {
+        Path manifestFile = getManifestFile(backup);
+        BackupManifest manifest = new BackupManifest();
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 5);
+                try {
+                    if (parts.length == 3 && ARCHIVE.equals(parts[0])) {
+                        manifest.setArchive(Long.parseUnsignedLong(parts[1], 16), Long.parseLong(parts[2]));
+                    } else if (parts.length == 5 && FILE.equals(parts[0])) {
+                        manifest.putFile(parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseUnsignedLong(parts[1], 16));
+                    } else if (!line.isEmpty()) {
+                        throw new IOException("Malformed line in " + manifestFile + ": " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in " + manifestFile + ": " + line, e);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * @param size Number of bytes hashed
+     * @param lastModified Modified time in millis, 0 for the backup file
+     */
+    public record FileChecksum(long size, long lastModified, long hash) {
+    }
+
+    private class HashingOutputStream extends FilterOutputStream {
+        private final StreamingXXHash64 hash = newHash();
+        private long size = 0;
+        private boolean closed = false;
+
+        HashingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.hash.update(new byte[] {(byte) b}, 0, 1);
+            this.size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.hash.update(b, off, len);
+            this.size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                this.closed = true;
+                setArchive(this.hash.getValue(), this.size);
+            }
+            super.close();
+        }
+    }
+}
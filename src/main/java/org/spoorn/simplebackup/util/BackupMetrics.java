@@ -0,0 +1,453 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * How long backups and their phases take, and how much data they read and write, for "/simplebackup stats" and
+ * monitoring.
+ *
+ * <p>Each backup records its phases in a {@link Run}, which is added to the totals once the backup finishes.  The
+ * totals count from when the server started, and the last backup's details are kept as they are.  Pruning runs on its
+ * own after backups, so it is counted separately, and added to the prune phase of the backup before it.
+ *
+ * <p>While a backup runs, a {@link BackupThrottle.TickSampler} measures how much longer the server's ticks took than
+ * before the backup, which includes the world save and anything else the backup slowed down on the server thread.
+ *
+ * <p>If {@code metricsFile} is set, the metrics are written to it after every backup and prune, in the Prometheus text
+ * format that node exporter's textfile collector reads, or as JSON if the file name ends in .json.
+ */
+public final class BackupMetrics {
+    private static final Object LOCK = new Object();
+    private static final ThreadLocal<Run> CURRENT = new ThreadLocal<>();
+    private static final long[] totalPhaseNanos = new long[Phase.values().length];
+    private static long backupsSucceeded = 0;
+    private static long backupsFailed = 0;
+    private static long totalWorldBytes = 0;
+    private static long totalBackupBytes = 0;
+    private static long lastSuccessMillis = 0;
+    private static Run lastBackup;
+    private static long prunes = 0;
+    private static long totalPruneNanos = 0;
+    private static long lastPruneNanos = 0;
+    private static long backupsPruned = 0;
+
+    private BackupMetrics() {
+    }
+
+    /**
+     * Phases of a backup, in the order they run.
+     */
+    public enum Phase {
+        // Saving the world and copying it into a staging folder, for consistent snapshots and background compression
+        SNAPSHOT,
+        // Listing the world files and reading their sizes
+        SCAN,
+        // Creating the backup in its format
+        COMPRESS,
+        // Flushing the finished backup to disk and renaming it to its final name
+        FSYNC,
+        // Deleting old backups after this one, which runs after the backup is reported
+        PRUNE;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Metrics of a single backup, recorded by the code running each phase.  Phases may run on different threads one
+     * after another, such as the compress phase with {@code backgroundCompression}.
+     */
+    public static final class Run {
+        private final String name;
+        private final String format;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private long durationNanos;
+        private boolean success;
+        private long worldBytes = -1;
+        private int fileCount = -1;
+        private long backupBytes = -1;
+        private long tickStallMillis = 0;
+        private long extraTickMillis = 0;
+        private BackupThrottle.TickSampler tickSampler;
+
+        /**
+         * @param name Name of the backup
+         * @param format Backup format
+         */
+        public Run(String name, String format) {
+            this.name = name;
+            this.format = format;
+        }
+
+        /**
+         * Adds the time from {@code startNanos} until now to a phase.
+         */
+        public synchronized void addPhase(Phase phase, long startNanos) {
+            this.phaseNanos[phase.ordinal()] += System.nanoTime() - startNanos;
+        }
+
+        /**
+         * @param worldBytes Total size of the world files backed up
+         * @param fileCount Number of world files backed up
+         * @param backupBytes Size of the backup, or the disk space it used for formats that share data between backups
+         */
+        public synchronized void setSizes(long worldBytes, int fileCount, long backupBytes) {
+            this.worldBytes = worldBytes;
+            this.fileCount = fileCount;
+            this.backupBytes = backupBytes;
+        }
+
+        public synchronized void setTickStallMillis(long tickStallMillis) {
+            this.tickStallMillis = tickStallMillis;
+        }
+
+        /**
+         * Starts measuring the time the backup adds to the server's ticks, until the backup finishes.
+         */
+        public synchronized void startTickSampling() {
+            if (this.tickSampler == null) {
+                this.tickSampler = BackupThrottle.startTickSampler();
+            }
+        }
+
+        /**
+         * Runs part of the backup on the calling thread with this run as the current one, so code that is not given the
+         * run, such as {@link SimpleBackupUtil#publish}, can add to its phases.
+         */
+        public <T> T call(Callable<T> work) throws Exception {
+            Run previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return work.call();
+            } finally {
+                CURRENT.set(previous);
+            }
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getFormat() {
+            return this.format;
+        }
+
+        public long getStartMillis() {
+            return this.startMillis;
+        }
+
+        public synchronized boolean isSuccess() {
+            return this.success;
+        }
+
+        public synchronized double getDurationSeconds() {
+            return seconds(this.durationNanos);
+        }
+
+        public double getPhaseSeconds(Phase phase) {
+            return seconds(getPhaseNanos(phase));
+        }
+
+        synchronized long getPhaseNanos(Phase phase) {
+            return this.phaseNanos[phase.ordinal()];
+        }
+
+        public synchronized long getWorldBytes() {
+            return this.worldBytes;
+        }
+
+        public synchronized int getFileCount() {
+            return this.fileCount;
+        }
+
+        public synchronized long getBackupBytes() {
+            return this.backupBytes;
+        }
+
+        public synchronized long getTickStallMillis() {
+            return this.tickStallMillis;
+        }
+
+        /**
+         * @return Time the server's ticks took beyond their usual time during the backup, 0 if no server was ticking
+         */
+        public synchronized long getExtraTickMillis() {
+            return this.extraTickMillis;
+        }
+
+        /**
+         * @return Size of the backup as a fraction of the world size, or -1 if unknown
+         */
+        public synchronized double getCompressionRatio() {
+            return this.worldBytes > 0 && this.backupBytes >= 0 ? (double) this.backupBytes / this.worldBytes : -1;
+        }
+
+        /**
+         * @return Bytes of world files the compress phase processed per second, or -1 if unknown
+         */
+        public synchronized double getCompressBytesPerSecond() {
+            long nanos = this.phaseNanos[Phase.COMPRESS.ordinal()];
+            return this.worldBytes >= 0 && nanos > 0 ? this.worldBytes / seconds(nanos) : -1;
+        }
+    }
+
+    /**
+     * Adds the time from {@code startNanos} until now to a phase of the backup running on this thread, if any.
+     *
+     * @see Run#call(Callable)
+     */
+    public static void addToCurrentRun(Phase phase, long startNanos) {
+        Run run = CURRENT.get();
+        if (run != null) {
+            run.addPhase(phase, startNanos);
+        }
+    }
+
+    /**
+     * Adds a finished backup to the totals, and writes the metrics file.
+     */
+    public static void finish(Run run, boolean success) {
+        synchronized (run) {
+            run.durationNanos = System.nanoTime() - run.startNanos;
+            run.success = success;
+            if (run.tickSampler != null) {
+                run.extraTickMillis = run.tickSampler.stop();
+                run.tickSampler = null;
+            }
+        }
+        synchronized (LOCK) {
+            for (Phase phase : Phase.values()) {
+                totalPhaseNanos[phase.ordinal()] += run.getPhaseNanos(phase);
+            }
+            if (success) {
+                backupsSucceeded++;
+                lastSuccessMillis = run.startMillis;
+                totalWorldBytes += Math.max(0, run.getWorldBytes());
+                totalBackupBytes += Math.max(0, run.getBackupBytes());
+            } else {
+                backupsFailed++;
+            }
+            lastBackup = run;
+        }
+        SimpleBackup.LOGGER.info("Backup {} took {} s: {}", run.getName(), String.format(Locale.ROOT, "%.1f", run.getDurationSeconds()), describePhases(run));
+        export();
+    }
+
+    /**
+     * Adds a prune to the totals, and writes the metrics file.
+     *
+     * @param startNanos When the prune started
+     * @param deleted Number of backups the prune deleted
+     */
+    public static void recordPrune(long startNanos, int deleted) {
+        synchronized (LOCK) {
+            lastPruneNanos = System.nanoTime() - startNanos;
+            totalPruneNanos += lastPruneNanos;
+            totalPhaseNanos[Phase.PRUNE.ordinal()] += lastPruneNanos;
+            if (lastBackup != null) {
+                lastBackup.addPhase(Phase.PRUNE, startNanos);
+            }
+            prunes++;
+            backupsPruned += deleted;
+        }
+        export();
+    }
+
+    /**
+     * @return The totals and the last backup, for "/simplebackup stats"
+     */
+    public static Totals getTotals() {
+        synchronized (LOCK) {
+            return new Totals(backupsSucceeded, backupsFailed, totalWorldBytes, totalBackupBytes, lastBackup, prunes, backupsPruned,
+                    seconds(lastPruneNanos));
+        }
+    }
+
+    /**
+     * @return The metrics in the Prometheus text exposition format
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        synchronized (LOCK) {
+            metric(out, "simplebackup_backups_total", "counter", "Backups finished since the server started, by result");
+            out.append("simplebackup_backups_total{result=\"success\"} ").append(backupsSucceeded).append('\n');
+            out.append("simplebackup_backups_total{result=\"failure\"} ").append(backupsFailed).append('\n');
+            metric(out, "simplebackup_phase_seconds_total", "counter", "Time spent in each backup phase since the server started");
+            for (Phase phase : Phase.values()) {
+                out.append("simplebackup_phase_seconds_total{phase=\"").append(phase.getName()).append("\"} ")
+                        .append(seconds(totalPhaseNanos[phase.ordinal()])).append('\n');
+            }
+            metric(out, "simplebackup_read_bytes_total", "counter", "World bytes read by successful backups");
+            out.append("simplebackup_read_bytes_total ").append(totalWorldBytes).append('\n');
+            metric(out, "simplebackup_written_bytes_total", "counter", "Bytes written by successful backups");
+            out.append("simplebackup_written_bytes_total ").append(totalBackupBytes).append('\n');
+            metric(out, "simplebackup_last_success_timestamp_seconds", "gauge", "When the last successful backup started");
+            out.append("simplebackup_last_success_timestamp_seconds ").append(lastSuccessMillis / 1000).append('\n');
+
+            if (lastBackup != null) {
+                Run run = lastBackup;
+                // No backup name label, as every backup would start a new time series
+                metric(out, "simplebackup_last_backup_info", "gauge", "Format of the last backup");
+                out.append("simplebackup_last_backup_info{format=\"").append(run.getFormat()).append("\"} 1\n");
+                metric(out, "simplebackup_last_backup_success", "gauge", "1 if the last backup succeeded");
+                out.append("simplebackup_last_backup_success ").append(run.isSuccess() ? 1 : 0).append('\n');
+                metric(out, "simplebackup_last_backup_timestamp_seconds", "gauge", "When the last backup started");
+                out.append("simplebackup_last_backup_timestamp_seconds ").append(run.getStartMillis() / 1000).append('\n');
+                metric(out, "simplebackup_last_backup_duration_seconds", "gauge", "Duration of the last backup");
+                out.append("simplebackup_last_backup_duration_seconds ").append(run.getDurationSeconds()).append('\n');
+                metric(out, "simplebackup_last_backup_phase_seconds", "gauge", "Time the last backup spent in each phase");
+                for (Phase phase : Phase.values()) {
+                    out.append("simplebackup_last_backup_phase_seconds{phase=\"").append(phase.getName()).append("\"} ")
+                            .append(run.getPhaseSeconds(phase)).append('\n');
+                }
+                metric(out, "simplebackup_last_backup_tick_stall_seconds", "gauge", "Time the last backup blocked the server thread");
+                out.append("simplebackup_last_backup_tick_stall_seconds ").append(run.getTickStallMillis() / 1000.0).append('\n');
+                metric(out, "simplebackup_last_backup_extra_tick_seconds", "gauge", "Time the server's ticks took beyond their usual time during the last backup");
+                out.append("simplebackup_last_backup_extra_tick_seconds ").append(run.getExtraTickMillis() / 1000.0).append('\n');
+                if (run.getWorldBytes() >= 0) {
+                    metric(out, "simplebackup_last_backup_world_bytes", "gauge", "Size of the world files in the last backup");
+                    out.append("simplebackup_last_backup_world_bytes ").append(run.getWorldBytes()).append('\n');
+                    metric(out, "simplebackup_last_backup_files", "gauge", "Number of world files in the last backup");
+                    out.append("simplebackup_last_backup_files ").append(run.getFileCount()).append('\n');
+                    metric(out, "simplebackup_last_backup_size_bytes", "gauge", "Size of the last backup");
+                    out.append("simplebackup_last_backup_size_bytes ").append(run.getBackupBytes()).append('\n');
+                }
+                if (run.getCompressionRatio() >= 0) {
+                    metric(out, "simplebackup_last_backup_compression_ratio", "gauge", "Size of the last backup as a fraction of the world size");
+                    out.append("simplebackup_last_backup_compression_ratio ").append(run.getCompressionRatio()).append('\n');
+                }
+                if (run.getCompressBytesPerSecond() >= 0) {
+                    metric(out, "simplebackup_last_backup_compress_bytes_per_second", "gauge", "World bytes the last backup compressed per second");
+                    out.append("simplebackup_last_backup_compress_bytes_per_second ").append(run.getCompressBytesPerSecond()).append('\n');
+                }
+            }
+
+            metric(out, "simplebackup_prunes_total", "counter", "Prunes of old backups since the server started");
+            out.append("simplebackup_prunes_total ").append(prunes).append('\n');
+            metric(out, "simplebackup_prune_seconds_total", "counter", "Time spent pruning old backups since the server started");
+            out.append("simplebackup_prune_seconds_total ").append(seconds(totalPruneNanos)).append('\n');
+            metric(out, "simplebackup_pruned_backups_total", "counter", "Backups deleted by pruning since the server started");
+            out.append("simplebackup_pruned_backups_total ").append(backupsPruned).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return The metrics as a JSON object
+     */
+    public static String toJson() {
+        StringBuilder out = new StringBuilder("{\n");
+        synchronized (LOCK) {
+            out.append("  \"backupsSucceeded\": ").append(backupsSucceeded).append(",\n");
+            out.append("  \"backupsFailed\": ").append(backupsFailed).append(",\n");
+            out.append("  \"phaseSecondsTotal\": ").append(phasesJson(null)).append(",\n");
+            out.append("  \"readBytesTotal\": ").append(totalWorldBytes).append(",\n");
+            out.append("  \"writtenBytesTotal\": ").append(totalBackupBytes).append(",\n");
+            out.append("  \"lastSuccessTimestampMillis\": ").append(lastSuccessMillis).append(",\n");
+            if (lastBackup != null) {
+                Run run = lastBackup;
+                out.append("  \"lastBackup\": {\n");
+                out.append("    \"name\": \"").append(run.getName()).append("\",\n");
+                out.append("    \"format\": \"").append(run.getFormat()).append("\",\n");
+                out.append("    \"success\": ").append(run.isSuccess()).append(",\n");
+                out.append("    \"timestampMillis\": ").append(run.getStartMillis()).append(",\n");
+                out.append("    \"durationSeconds\": ").append(run.getDurationSeconds()).append(",\n");
+                out.append("    \"phaseSeconds\": ").append(phasesJson(run)).append(",\n");
+                out.append("    \"tickStallMillis\": ").append(run.getTickStallMillis()).append(",\n");
+                out.append("    \"extraTickMillis\": ").append(run.getExtraTickMillis()).append(",\n");
+                out.append("    \"worldBytes\": ").append(run.getWorldBytes()).append(",\n");
+                out.append("    \"files\": ").append(run.getFileCount()).append(",\n");
+                out.append("    \"sizeBytes\": ").append(run.getBackupBytes()).append(",\n");
+                out.append("    \"compressionRatio\": ").append(run.getCompressionRatio()).append(",\n");
+                out.append("    \"compressBytesPerSecond\": ").append(run.getCompressBytesPerSecond()).append('\n');
+                out.append("  },\n");
+            }
+            out.append("  \"prunes\": ").append(prunes).append(",\n");
+            out.append("  \"pruneSecondsTotal\": ").append(seconds(totalPruneNanos)).append(",\n");
+            out.append("  \"prunedBackups\": ").append(backupsPruned).append('\n');
+        }
+        return out.append("}\n").toString();
+    }
+
+    /**
+     * Writes the metrics to {@code metricsFile}, replacing the file at once so a scrape never reads half of it.
+     */
+    private static void export() {
+        String metricsFile = ModConfig.getInstance().metricsFile;
+        if (metricsFile == null || metricsFile.isBlank()) {
+            return;
+        }
+
+        Path path = Paths.get(metricsFile);
+        if (!path.isAbsolute()) {
+            path = FabricLoader.getInstance().getGameDir().resolve(path);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            String content = metricsFile.toLowerCase(Locale.ROOT).endsWith(".json") ? toJson() : toPrometheus();
+            Files.writeString(tmp, content, StandardCharsets.UTF_8);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not write backup metrics to " + path, e);
+        }
+    }
+
+    /**
+     * @return The time of each phase that ran, such as "scan 0.2 s, compress 12.5 s"
+     */
+    public static String describePhases(Run run) {
+        List<String> phases = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            if (run.getPhaseSeconds(phase) > 0) {
+                phases.add(String.format(Locale.ROOT, "%s %.1f s", phase.getName(), run.getPhaseSeconds(phase)));
+            }
+        }
+        return String.join(", ", phases);
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param run Backup to get the phases of, or null for the totals
+     */
+    private static String phasesJson(Run run) {
+        List<String> phases = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            long nanos = run != null ? run.getPhaseNanos(phase) : totalPhaseNanos[phase.ordinal()];
+            phases.add("\"" + phase.getName() + "\": " + seconds(nanos));
+        }
+        return "{" + String.join(", ", phases) + "}";
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * @param lastBackup The last backup that finished, or null if none did yet
+     * @param lastPruneSeconds Duration of the last prune, 0 if none ran yet
+     */
+    public record Totals(long backupsSucceeded, long backupsFailed, long worldBytes, long backupBytes, Run lastBackup,
+                         long prunes, long backupsPruned, double lastPruneSeconds) {
+    }
+}
@@ -0,0 +1,145 @@
+package org.spoorn.simplebackup.util;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Decides which world files a backup includes.
+ *
+ * <ul>
+ *     <li>{@code includePaths} and {@code excludePaths} are glob patterns matched against paths relative to the world
+ *     folder, and apply to every backup.</li>
+ *     <li>{@code dimensionBackupIntervals} gives dimensions their own interval for automatic backups.  A dimension is
+ *     left out of automatic backups until its interval has passed since it was last backed up.  Files outside of the
+ *     dimension folders, such as level.dat and player data, are in every backup.</li>
+ * </ul>
+ *
+ * <p>Each automatic backup task keeps its own schedule, so the first automatic backup after the server starts includes
+ * every dimension.
+ */
+public final class BackupPolicy {
+    private final long backupIntervalMillis;
+    private final Map<String, Long> lastBackedUpMillis = new HashMap<>();
+
+    /**
+     * @param backupIntervalMillis Interval of the automatic backups this schedule is for
+     */
+    public BackupPolicy(long backupIntervalMillis) {
+        this.backupIntervalMillis = backupIntervalMillis;
+    }
+
+    /**
+     * @param nowMillis When the backup starts
+     * @return Dimensions to leave out of the backup starting now, as their interval has not passed yet
+     */
+    public synchronized Set<String> getDimensionsNotDue(long nowMillis) {
+        Set<String> notDue = new TreeSet<>();
+        for (Map.Entry<String, Integer> entry : ModConfig.getInstance().dimensionBackupIntervals.entrySet()) {
+            String dimension = normalizeDimension(entry.getKey());
+            long intervalMillis = entry.getValue() * 1000L;
+            Long last = this.lastBackedUpMillis.get(dimension);
+            // Half an automatic interval of slack, as the backup interval is counted from when the previous backup ended
+            if (intervalMillis < 0 || (last != null && nowMillis - last < intervalMillis - this.backupIntervalMillis / 2)) {
+                notDue.add(dimension);
+            }
+        }
+        return notDue;
+    }
+
+    /**
+     * Records that a backup started at {@code nowMillis} succeeded, for every dimension with an interval that it included.
+     */
+    public synchronized void markBackedUp(Set<String> skippedDimensions, long nowMillis) {
+        for (String dimension : ModConfig.getInstance().dimensionBackupIntervals.keySet()) {
+            dimension = normalizeDimension(dimension);
+            if (!skippedDimensions.contains(dimension)) {
+                this.lastBackedUpMillis.put(dimension, nowMillis);
+            }
+        }
+    }
+
+    /**
+     * @param skippedDimensions Dimensions to leave out, from {@link #getDimensionsNotDue}
+     * @return Filter on paths relative to the world folder for a backup, or null if the backup includes every file
+     */
+    public static Predicate<String> createFilter(Collection<String> skippedDimensions) {
+        ModConfig config = ModConfig.getInstance();
+        Predicate<String> include = config.includePaths.isEmpty() ? null : createGlobFilter(config.includePaths);
+        Predicate<String> exclude = config.excludePaths.isEmpty() ? null : createGlobFilter(config.excludePaths);
+        List<String> skippedFolders = new ArrayList<>();
+        for (String dimension : skippedDimensions) {
+            for (String folder : getDimensionFolders(dimension)) {
+                skippedFolders.add(folder + "/");
+            }
+        }
+        if (include == null && exclude == null && skippedFolders.isEmpty()) {
+            return null;
+        }
+
+        return relPath -> {
+            if (include != null && !include.test(relPath)) {
+                return false;
+            }
+            if (exclude != null && exclude.test(relPath)) {
+                return false;
+            }
+            for (String folder : skippedFolders) {
+                if (relPath.startsWith(folder)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    /**
+     * @param globs Glob patterns, matched against paths relative to the world folder with '/' separators
+     * @return Filter that matches paths matching any of the patterns
+     */
+    public static Predicate<String> createGlobFilter(Collection<String> globs) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String glob : globs) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        return relPath -> {
+            Path path = Path.of(relPath);
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * @param dimension Dimension id, such as "overworld", "minecraft:the_nether" or "mymod:mining"
+     * @return Folders that hold the dimension's data, relative to the world folder
+     */
+    public static List<String> getDimensionFolders(String dimension) {
+        dimension = normalizeDimension(dimension);
+        return switch (dimension) {
+            case "minecraft:overworld" -> List.of("region", "entities", "poi");
+            case "minecraft:the_nether" -> List.of("DIM-1");
+            case "minecraft:the_end" -> List.of("DIM1");
+            default -> List.of("dimensions/" + dimension.replace(':', '/'));
+        };
+    }
+
+    private static String normalizeDimension(String dimension) {
+        dimension = dimension.trim().toLowerCase(Locale.ROOT);
+        return dimension.contains(":") ? dimension : "minecraft:" + dimension;
+    }
+}
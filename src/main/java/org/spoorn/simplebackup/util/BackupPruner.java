@@ -0,0 +1,183 @@
+package org.spoorn.simplebackup.util;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Deletes backups that fall out of the retention policy, in the background after a backup has finished so the
+ * backup is reported done as soon as it is written.
+ *
+ * <p>A backup is kept if it is one of the newest {@code maxBackupsToKeep}, or the newest backup of one of the most
+ * recent {@code keepHourlyBackups} hours, {@code keepDailyBackups} days or {@code keepWeeklyBackups} weeks that have a
+ * backup.  The newest backup that has a dimension is always kept, so backups that left dimensions out under
+ * {@code dimensionBackupIntervals} never push the last copy of a dimension out.  Backups a restore scheduled with
+ * "/simplebackup restore" reads are kept until it has run.  Backups are found through the
+ * {@link BackupCatalog}, and deleted in parallel.
+ */
+public final class BackupPruner {
+    /**
+     * Held for reading while backups are being created, and for writing while data shared between backups is
+     * collected, so a backup's shared data isn't collected before the backup that references it is written.
+     */
+    public static final ReadWriteLock SHARED_DATA_LOCK = new ReentrantReadWriteLock();
+    private static final Object PRUNE_LOCK = new Object();
+    private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private BackupPruner() {
+    }
+
+    /**
+     * Prunes backups on a background thread.  Requests made while a prune is already waiting to run are merged into it.
+     */
+    public static void pruneAsync() {
+        if (scheduled.compareAndSet(false, true)) {
+            BackupExecutors.getIoExecutor().execute(() -> {
+                scheduled.set(false);
+                prune();
+            });
+        }
+    }
+
+    /**
+     * Prunes backups on the current thread, waiting for any prune already running to finish first.
+     */
+    public static void prune() {
+        synchronized (PRUNE_LOCK) {
+            long start = System.nanoTime();
+            List<BackupCatalog.Entry> backups = BackupCatalog.getBackups();
+            Set<BackupCatalog.Entry> keep = selectBackupsToKeep(backups, ModConfig.getInstance(), ZoneId.systemDefault());
+            Set<String> restoring = BackupRestorer.getScheduledBackupNames();
+            List<BackupCatalog.Entry> toDelete = new ArrayList<>();
+            for (BackupCatalog.Entry backup : backups) {
+                if (restoring.contains(backup.name())) {
+                    SimpleBackup.LOGGER.info("Keeping backup at [{}] for the restore scheduled when the server stops", backup.getPath());
+                } else if (!keep.contains(backup)) {
+                    toDelete.add(backup);
+                    SimpleBackup.LOGGER.info("Deleting backup at [{}] as it is outside the retention policy", backup.getPath());
+                }
+            }
+            BackupMetrics.recordPrune(start, delete(toDelete));
+        }
+    }
+
+    /**
+     * @param backups Backups sorted oldest first
+     * @return Backups the retention policy keeps
+     */
+    static Set<BackupCatalog.Entry> selectBackupsToKeep(List<BackupCatalog.Entry> backups, ModConfig config, ZoneId zone) {
+        Set<BackupCatalog.Entry> keep = new HashSet<>();
+        for (int i = Math.max(0, backups.size() - config.maxBackupsToKeep); i < backups.size(); i++) {
+            keep.add(backups.get(i));
+        }
+        keepNewestPerPeriod(backups, config.keepHourlyBackups, zone, time -> time.truncatedTo(ChronoUnit.HOURS), keep);
+        keepNewestPerPeriod(backups, config.keepDailyBackups, zone, time -> time.truncatedTo(ChronoUnit.DAYS), keep);
+        keepNewestPerPeriod(backups, config.keepWeeklyBackups, zone,
+                time -> time.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)), keep);
+        keepNewestWithEachDimension(backups, keep);
+        return keep;
+    }
+
+    private static void keepNewestWithEachDimension(List<BackupCatalog.Entry> backups, Set<BackupCatalog.Entry> keep) {
+        Set<String> dimensions = new HashSet<>();
+        for (BackupCatalog.Entry backup : backups) {
+            dimensions.addAll(backup.skippedDimensions());
+        }
+        for (String dimension : dimensions) {
+            for (int i = backups.size() - 1; i >= 0; i--) {
+                if (!backups.get(i).skippedDimensions().contains(dimension)) {
+                    keep.add(backups.get(i));
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void keepNewestPerPeriod(List<BackupCatalog.Entry> backups, int periods, ZoneId zone,
+                                            Function<LocalDateTime, LocalDateTime> periodStart, Set<BackupCatalog.Entry> keep) {
+        LocalDateTime lastPeriod = null;
+        for (int i = backups.size() - 1; i >= 0 && periods > 0; i--) {
+            BackupCatalog.Entry backup = backups.get(i);
+            LocalDateTime period = periodStart.apply(LocalDateTime.ofInstant(Instant.ofEpochMilli(backup.createdMillis()), zone));
+            if (!period.equals(lastPeriod)) {
+                keep.add(backup);
+                lastPeriod = period;
+                periods--;
+            }
+        }
+    }
+
+    /**
+     * Deletes backups in parallel and removes them from the catalog, then lets formats that share data between backups
+     * free what is no longer referenced.
+     *
+     * @param backups Backups to delete
+     * @return Number of backups deleted
+     */
+    public static int delete(List<BackupCatalog.Entry> backups) {
+        if (backups.isEmpty()) {
+            return 0;
+        }
+
+        List<Future<?>> deletions = new ArrayList<>();
+        for (BackupCatalog.Entry backup : backups) {
+            deletions.add(BackupExecutors.getIoExecutor().submit(() -> {
+                try {
+                    SimpleBackupUtil.deleteRecursively(backup.getPath());
+                } catch (NoSuchFileException e) {
+                    // Already deleted
+                }
+                Files.deleteIfExists(BackupManifest.getManifestFile(backup.getPath()));
+                return null;
+            }));
+        }
+
+        List<BackupCatalog.Entry> deleted = new ArrayList<>();
+        for (int i = 0; i < backups.size(); i++) {
+            try {
+                deletions.get(i).get();
+                deleted.add(backups.get(i));
+            } catch (ExecutionException e) {
+                SimpleBackup.LOGGER.error("Could not delete backup at " + backups.get(i).getPath(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        BackupCatalog.remove(deleted);
+
+        // Data shared between backups is only freed once no backup references it
+        if (!deleted.isEmpty()) {
+            SHARED_DATA_LOCK.writeLock().lock();
+            try {
+                for (Compressor compressor : Compressors.getAll()) {
+                    compressor.onBackupsDeleted(SimpleBackupUtil.getBackupPath());
+                }
+            } finally {
+                SHARED_DATA_LOCK.writeLock().unlock();
+            }
+        }
+        return deleted.size();
+    }
+}
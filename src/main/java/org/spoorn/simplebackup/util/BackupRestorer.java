@@ -0,0 +1,321 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
+
+/**
+ * Restores a world from a backup.  The backup is first extracted into a folder next to the world, so a failed restore
+ * leaves the world as it was.
+ *
+ * <ul>
+ *     <li>A full restore moves the current world aside to "&lt;world&gt;-before-restore-&lt;time&gt;", then moves the
+ *     restored world into its place.  Dimensions the backup left out under {@code dimensionBackupIntervals} are taken
+ *     from the closest backup in the catalog that has them, preferring older ones, or kept from the current world if no
+ *     backup has them, so they are never regenerated.</li>
+ *     <li>A selective restore, of a dimension or of files matching glob patterns, only replaces the matching files in
+ *     the world.  Matching files that are not in the backup are kept.</li>
+ * </ul>
+ *
+ * <p>Restores must only run while the server is stopped.  The restore command schedules a restore that
+ * {@link #runScheduled} runs once the server has stopped, and {@code SimpleBackupRestore} runs restores from the
+ * command line.
+ */
+public final class BackupRestorer {
+    private static final DateTimeFormatter BEFORE_RESTORE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final String STAGING_SUFFIX = "-restoring";
+    private static final String FILL_SUFFIX = "-restoring-dimension";
+    private static ScheduledRestore scheduled;
+
+    private BackupRestorer() {
+    }
+
+    /**
+     * Restores a backup into a world folder.
+     *
+     * @param backup Backup file or folder
+     * @param world World folder to restore into.  Doesn't need to exist
+     * @param filter Which files to restore, from {@link #createFilter}, or null to restore the whole world
+     * @param numThreads Number of threads to restore with
+     * @return true if the restore was successful
+     */
+    public static boolean restore(Path backup, Path world, Predicate<String> filter, int numThreads) {
+        Compressor compressor = getCompressor(backup);
+        if (compressor == null) {
+            SimpleBackup.LOGGER.error("Could not tell the format of backup {}", backup);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        Path staging = world.resolveSibling(world.getFileName() + STAGING_SUFFIX);
+        try {
+            if (Files.exists(staging)) {
+                SimpleBackupUtil.deleteRecursively(staging);
+            }
+            Files.createDirectories(staging);
+
+            SimpleBackup.LOGGER.info("Restoring {} backup {} to {}", compressor.getFormat(), backup, world);
+            if (!compressor.restore(backup, staging, filter == null ? relPath -> true : filter, Math.max(1, numThreads))) {
+                return false;
+            }
+
+            if (filter == null) {
+                if (!restoreSkippedDimensions(backup, world, staging, numThreads)) {
+                    return false;
+                }
+                if (Files.exists(world)) {
+                    String beforeRestoreName = world.getFileName() + "-before-restore-" + BEFORE_RESTORE_FORMAT.format(LocalDateTime.now());
+                    Path beforeRestore = world.resolveSibling(beforeRestoreName);
+                    for (int i = 2; Files.exists(beforeRestore); i++) {
+                        beforeRestore = world.resolveSibling(beforeRestoreName + "_" + i);
+                    }
+                    Files.move(world, beforeRestore);
+                    SimpleBackup.LOGGER.info("Moved the current world to {}, delete it once the restored world works", beforeRestore);
+                }
+                Files.move(staging, world);
+            } else {
+                replaceFiles(staging, world);
+                RegionWriteTracker.invalidate(world);
+            }
+            SimpleBackup.LOGGER.info("Restored {} in {} ms", backup, (System.nanoTime() - start) / 1_000_000);
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not restore backup [" + backup + "] to [" + world + "]", e);
+            return false;
+        } finally {
+            try {
+                if (Files.exists(staging)) {
+                    SimpleBackupUtil.deleteRecursively(staging);
+                }
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.error("Could not delete restore staging folder " + staging, e);
+            }
+        }
+    }
+
+    /**
+     * Builds a filter for a selective restore.  Each part is either a dimension, such as "overworld",
+     * "minecraft:the_nether" or "mymod:mining", or a glob matched against paths relative to the world folder, such
+     * as "region/r.0.*.mca".  A file is restored if it matches any part.
+     *
+     * @param parts Dimensions and glob patterns
+     * @return The filter, or null to restore everything if there are no parts
+     */
+    public static Predicate<String> createFilter(List<String> parts) {
+        if (parts.isEmpty()) {
+            return null;
+        }
+
+        List<String> globs = new ArrayList<>();
+        for (String part : parts) {
+            if (part.contains("/") || part.contains("*") || part.contains("?") || part.endsWith(".mca") || part.endsWith(".dat")) {
+                globs.add(part);
+            } else {
+                for (String folder : BackupPolicy.getDimensionFolders(part)) {
+                    globs.add(folder + "/**");
+                }
+            }
+        }
+        return BackupPolicy.createGlobFilter(globs);
+    }
+
+    /**
+     * Schedules a restore to run once the server has stopped, replacing any restore scheduled before.
+     */
+    public static synchronized void schedule(Path backup, List<String> filterParts) {
+        scheduled = new ScheduledRestore(backup, List.copyOf(filterParts));
+    }
+
+    public static synchronized ScheduledRestore getScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * The backup a scheduled restore reads and, for a full restore, the backups it fills left out dimensions from.
+     * Pruning keeps them, as the backup made when the server stops is pruned before the scheduled restore runs.
+     *
+     * @return Catalog names of the backups the scheduled restore needs, empty if no restore is scheduled
+     */
+    static Set<String> getScheduledBackupNames() {
+        ScheduledRestore restore = getScheduled();
+        if (restore == null) {
+            return Set.of();
+        }
+        BackupCatalog.Entry entry = getCatalogEntry(restore.backup());
+        if (entry == null) {
+            return Set.of();
+        }
+        Set<String> names = new HashSet<>();
+        names.add(entry.name());
+        if (restore.filterParts().isEmpty()) {
+            for (String dimension : entry.skippedDimensions()) {
+                BackupCatalog.Entry source = findClosestWithDimension(entry, dimension);
+                if (source != null) {
+                    names.add(source.name());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Runs the scheduled restore, if any.  Must only be called once the server has stopped.
+     *
+     * @param world World folder to restore into
+     * @param numThreads Number of threads to restore with
+     */
+    public static void runScheduled(Path world, int numThreads) {
+        ScheduledRestore restore;
+        synchronized (BackupRestorer.class) {
+            restore = scheduled;
+            scheduled = null;
+        }
+        if (restore != null) {
+            restore(restore.backup(), world, createFilter(restore.filterParts()), numThreads);
+        }
+    }
+
+    /**
+     * Fills in the dimensions a backup left out, as the catalog records them, so a full restore has every dimension.
+     *
+     * @return false if a dimension could not be restored from the backup that has it
+     */
+    private static boolean restoreSkippedDimensions(Path backup, Path world, Path staging, int numThreads) throws IOException {
+        BackupCatalog.Entry entry = getCatalogEntry(backup);
+        if (entry == null || entry.isComplete()) {
+            return true;
+        }
+
+        for (String dimension : entry.skippedDimensions()) {
+            List<String> folders = BackupPolicy.getDimensionFolders(dimension);
+            BackupCatalog.Entry source = findClosestWithDimension(entry, dimension);
+            if (source == null) {
+                SimpleBackup.LOGGER.warn("No backup has dimension {}, keeping it from the current world", dimension);
+                for (String folder : folders) {
+                    if (Files.isDirectory(world.resolve(folder))
+                            && !SimpleBackupUtil.copyDirectoriesFailSafe(world.resolve(folder), staging.resolve(folder), null)) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+
+            Compressor compressor = getCompressor(source.getPath());
+            if (compressor == null) {
+                SimpleBackup.LOGGER.error("Could not tell the format of backup {} to restore dimension {} from", source.getPath(), dimension);
+                return false;
+            }
+            SimpleBackup.LOGGER.info("Backup {} left out dimension {}, restoring it from {}", backup.getFileName(), dimension, source.name());
+            Path fill = world.resolveSibling(world.getFileName() + FILL_SUFFIX);
+            try {
+                if (Files.exists(fill)) {
+                    SimpleBackupUtil.deleteRecursively(fill);
+                }
+                Files.createDirectories(fill);
+                if (!compressor.restore(source.getPath(), fill, createFilter(List.of(dimension)), Math.max(1, numThreads))) {
+                    return false;
+                }
+                for (String folder : folders) {
+                    if (Files.exists(fill.resolve(folder))) {
+                        Files.createDirectories(staging.resolve(folder).getParent());
+                        Files.move(fill.resolve(folder), staging.resolve(folder));
+                    }
+                }
+            } finally {
+                if (Files.exists(fill)) {
+                    SimpleBackupUtil.deleteRecursively(fill);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The backup's entry in the catalog, or null if the backup is not in the backup folder
+     */
+    private static BackupCatalog.Entry getCatalogEntry(Path backup) {
+        Path backupFolder = SimpleBackupUtil.getBackupPath().toAbsolutePath().normalize();
+        if (!backupFolder.equals(backup.toAbsolutePath().normalize().getParent())) {
+            return null;
+        }
+        return BackupCatalog.get(backup.getFileName().toString());
+    }
+
+    /**
+     * @return The newest backup no newer than {@code backup} that has the dimension, else the oldest newer one, or null
+     */
+    private static BackupCatalog.Entry findClosestWithDimension(BackupCatalog.Entry backup, String dimension) {
+        BackupCatalog.Entry closest = null;
+        for (BackupCatalog.Entry other : BackupCatalog.getBackups()) {
+            if (other.skippedDimensions().contains(dimension) || other.name().equals(backup.name())) {
+                continue;
+            }
+            if (other.createdMillis() <= backup.createdMillis() || closest == null) {
+                closest = other;
+            } else {
+                break;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Moves every restored file over the file at the same path in the world.
+     */
+    private static void replaceFiles(Path restored, Path world) throws IOException {
+        Files.walkFileTree(restored, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(world.resolve(restored.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.move(file, world.resolve(restored.relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Finds a backup's format from its extension, or DIRECTORY for folders.
+     */
+    private static Compressor getCompressor(Path backup) {
+        String name = backup.getFileName().toString();
+        Compressor match = null;
+        for (Compressor compressor : Compressors.getAll()) {
+            String extension = compressor.getExtension();
+            if (!extension.isEmpty() && name.endsWith(extension)
+                    && (match == null || extension.length() > match.getExtension().length())) {
+                match = compressor;
+            }
+        }
+        if (match == null && Files.isDirectory(backup)) {
+            return Compressors.get(SimpleBackupUtil.DIRECTORY_FORMAT);
+        }
+        return match;
+    }
+
+    /**
+     * @param backup Backup to restore
+     * @param filterParts Dimensions and glob patterns to restore, or empty to restore the whole world
+     */
+    public record ScheduledRestore(Path backup, List<String> filterParts) {
+    }
+}
@@ -0,0 +1,270 @@
+package org.spoorn.simplebackup.util;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Slows backups down when they take time away from the game loop.  Backup code calls {@link #acquire} before reading
+ * or writing data and wraps each unit of work in {@link #beginWork()} and {@link #endWork()}.
+ *
+ * <p>The throttle samples the server's recent tick times.  While they are above {@code targetMillisPerTick}, the
+ * backup's read bandwidth is halved and one fewer worker thread may run at a time.  Once the ticks are comfortably
+ * below the target again, the bandwidth and worker count are slowly raised back up until they are unlimited.
+ * {@code maxBackupBytesPerSecond} additionally caps the bandwidth regardless of the tick times.
+ *
+ * <p>Backups run at full speed when no server is ticking, such as the backup when the server stops.
+ *
+ * <p>A {@link TickSampler} reads the same tick times to measure how much time a backup added to the server's ticks.
+ */
+public final class BackupThrottle {
+    private static final long UNLIMITED = Long.MAX_VALUE;
+    // Bandwidth the adaptive throttle starts from when the server first falls behind, and never goes below
+    private static final long INITIAL_ADAPTIVE_BYTES_PER_SECOND = 256L << 20;
+    private static final long MIN_ADAPTIVE_BYTES_PER_SECOND = 1L << 20;
+    private static final long SAMPLE_INTERVAL_NANOS = 250_000_000L;
+    // Number of the most recent ticks averaged, the server keeps the last 100
+    private static final int SAMPLE_TICKS = 20;
+    // Time a tick may take for the server to keep up, used as the usual tick time when the server has no history yet
+    private static final long TICK_NANOS = 50_000_000L;
+    private static final Object LOCK = new Object();
+
+    private static volatile MinecraftServer server;
+    private static long adaptiveBytesPerSecond = UNLIMITED;
+    private static int allowedWorkers = Integer.MAX_VALUE;
+    private static int activeWorkers = 0;
+    private static long lastSampleNanos = 0;
+    private static long nextFreeNanos = 0;
+
+    private BackupThrottle() {
+    }
+
+    /**
+     * Sets the server whose tick times are sampled, or null to stop throttling.
+     */
+    public static void setServer(MinecraftServer minecraftServer) {
+        synchronized (LOCK) {
+            server = minecraftServer;
+            adaptiveBytesPerSecond = UNLIMITED;
+            allowedWorkers = Integer.MAX_VALUE;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until the backup may process the given number of bytes.
+     */
+    public static void acquire(long bytes) {
+        if (server == null && ModConfig.getInstance().maxBackupBytesPerSecond <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (LOCK) {
+            sample();
+            long bytesPerSecond = getBytesPerSecond();
+            if (bytesPerSecond == UNLIMITED) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            nextFreeNanos = Math.max(nextFreeNanos, now);
+            waitNanos = nextFreeNanos - now;
+            nextFreeNanos += (long) (bytes * 1_000_000_000.0 / bytesPerSecond);
+        }
+        sleepNanos(waitNanos);
+    }
+
+    /**
+     * Blocks until one more worker is allowed to run.  Must be followed by {@link #endWork()}.
+     */
+    public static void beginWork() {
+        synchronized (LOCK) {
+            sample();
+            while (activeWorkers >= allowedWorkers) {
+                try {
+                    LOCK.wait(SAMPLE_INTERVAL_NANOS / 1_000_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                sample();
+            }
+            activeWorkers++;
+        }
+    }
+
+    public static void endWork() {
+        synchronized (LOCK) {
+            activeWorkers--;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * For libraries that run their own worker threads, which can only be limited up front.
+     *
+     * @param numThreads Number of threads configured
+     * @return Number of threads to use, fewer if the server is currently behind its target tick time
+     */
+    public static int getWorkerCount(int numThreads) {
+        synchronized (LOCK) {
+            sample();
+            if (isBehind()) {
+                int workers = Math.max(1, numThreads / 2);
+                SimpleBackup.LOGGER.info("Server ticks are above targetMillisPerTick, backing up with {} threads instead of {}", workers, numThreads);
+                return workers;
+            }
+            return numThreads;
+        }
+    }
+
+    private static long getBytesPerSecond() {
+        long maxBytesPerSecond = ModConfig.getInstance().maxBackupBytesPerSecond;
+        return Math.min(maxBytesPerSecond > 0 ? maxBytesPerSecond : UNLIMITED, adaptiveBytesPerSecond);
+    }
+
+    private static void sample() {
+        long now = System.nanoTime();
+        if (now - lastSampleNanos < SAMPLE_INTERVAL_NANOS) {
+            return;
+        }
+        lastSampleNanos = now;
+
+        int target = ModConfig.getInstance().targetMillisPerTick;
+        double millisPerTick = getRecentMillisPerTick();
+        if (target <= 0 || millisPerTick < 0) {
+            adaptiveBytesPerSecond = UNLIMITED;
+            allowedWorkers = Integer.MAX_VALUE;
+            LOCK.notifyAll();
+            return;
+        }
+
+        if (millisPerTick > target) {
+            // Back off quickly
+            adaptiveBytesPerSecond = adaptiveBytesPerSecond == UNLIMITED ? INITIAL_ADAPTIVE_BYTES_PER_SECOND
+                    : Math.max(MIN_ADAPTIVE_BYTES_PER_SECOND, adaptiveBytesPerSecond / 2);
+            allowedWorkers = Math.max(1, Math.min(allowedWorkers, activeWorkers) - 1);
+        } else if (millisPerTick < target * 0.8) {
+            // Recover slowly, and stop limiting once well above the initial bandwidth
+            if (adaptiveBytesPerSecond != UNLIMITED) {
+                adaptiveBytesPerSecond += adaptiveBytesPerSecond / 4;
+                if (adaptiveBytesPerSecond > INITIAL_ADAPTIVE_BYTES_PER_SECOND * 4) {
+                    adaptiveBytesPerSecond = UNLIMITED;
+                }
+            }
+            if (allowedWorkers != Integer.MAX_VALUE) {
+                allowedWorkers = allowedWorkers > activeWorkers ? Integer.MAX_VALUE : allowedWorkers + 1;
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+    private static boolean isBehind() {
+        int target = ModConfig.getInstance().targetMillisPerTick;
+        return target > 0 && getRecentMillisPerTick() > target;
+    }
+
+    /**
+     * @return Average time of the most recent ticks in milliseconds, or -1 if no server is running
+     */
+    private static double getRecentMillisPerTick() {
+        MinecraftServer minecraftServer = server;
+        if (minecraftServer == null || !minecraftServer.isRunning()) {
+            return -1;
+        }
+
+        long[] tickTimes = minecraftServer.getTickTimesNanos();
+        int latest = minecraftServer.getTickCount();
+        long total = 0;
+        int count = Math.min(SAMPLE_TICKS, Math.min(latest, tickTimes.length));
+        for (int i = 0; i < count; i++) {
+            total += tickTimes[Math.floorMod(latest - i, tickTimes.length)];
+        }
+        return count == 0 ? -1 : total / (count * 1_000_000.0);
+    }
+
+    /**
+     * Starts measuring how much longer the server's ticks take than they did before, on a virtual thread that only
+     * reads the tick times.  Must be followed by {@link TickSampler#stop()}.
+     *
+     * @return The sampler, or null if no server is ticking
+     */
+    public static TickSampler startTickSampler() {
+        MinecraftServer minecraftServer = server;
+        if (minecraftServer == null || !minecraftServer.isRunning()) {
+            return null;
+        }
+        TickSampler sampler = new TickSampler(minecraftServer);
+        Thread.ofVirtual().name("SimpleBackup-TickSampler").start(sampler::run);
+        return sampler;
+    }
+
+    private static void sleepNanos(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds up how much longer each tick took than the average of the ticks before sampling started.  The server only
+     * keeps the times of its last 100 ticks, so they are read every {@link #SAMPLE_INTERVAL_NANOS}, well before the
+     * ticks seen last are overwritten.  Includes the time the server thread was blocked by the backup, such as the
+     * world save for a snapshot.
+     */
+    public static final class TickSampler {
+        private final MinecraftServer server;
+        private final long baselineNanos;
+        private int nextTick;
+        private long extraNanos = 0;
+        private volatile boolean stopped = false;
+
+        private TickSampler(MinecraftServer server) {
+            this.server = server;
+            // The tick being run has no time yet, so only the ticks before it are read
+            this.nextTick = server.getTickCount();
+            long[] tickTimes = server.getTickTimesNanos();
+            int count = Math.min(tickTimes.length - 1, this.nextTick);
+            long total = 0;
+            for (int i = 1; i <= count; i++) {
+                total += tickTimes[Math.floorMod(this.nextTick - i, tickTimes.length)];
+            }
+            this.baselineNanos = count > 0 ? total / count : TICK_NANOS;
+        }
+
+        private void run() {
+            while (!this.stopped && this.server.isRunning()) {
+                sample();
+                sleepNanos(SAMPLE_INTERVAL_NANOS);
+            }
+        }
+
+        private synchronized void sample() {
+            long[] tickTimes = this.server.getTickTimesNanos();
+            int latest = this.server.getTickCount();
+            for (int i = Math.max(this.nextTick, latest - (tickTimes.length - 1)); i < latest; i++) {
+                this.extraNanos += Math.max(0, tickTimes[Math.floorMod(i, tickTimes.length)] - this.baselineNanos);
+            }
+            this.nextTick = Math.max(this.nextTick, latest);
+        }
+
+        /**
+         * Stops sampling.
+         *
+         * @return Time the ticks took beyond their usual time while sampling, in milliseconds
+         */
+        public synchronized long stop() {
+            this.stopped = true;
+            if (this.server.isRunning()) {
+                sample();
+            }
+            return this.extraNanos / 1_000_000;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+
+/**
+ * Checks backups against the checksums recorded while they were written, and the world against the newest backup.
+ *
+ * <p>A backup is intact if its backup file still has the checksum in its {@link BackupManifest}, or in the
+ * {@link BackupCatalog} for backups without a manifest.  Folder backups have no checksums, so they can't be verified.
+ *
+ * <p>The world is compared against the file checksums of the newest backup that has them.  A world file with the same
+ * size and modified time as when it was backed up, but different content, was changed without its modified time
+ * changing, which points to silent corruption such as a failing disk.  Files changed since the backup are skipped.
+ *
+ * <p>Files are hashed in parallel on virtual threads, with up to {@code numThreads} read at once, and the reads are
+ * throttled like a backup's so verifying doesn't lag the server.
+ */
+public final class BackupVerifier {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private BackupVerifier() {
+    }
+
+    public enum Status {
+        INTACT,
+        CORRUPT,
+        MISSING,
+        // Folder backups, and backups from before checksums were recorded
+        UNVERIFIED
+    }
+
+    /**
+     * @param detail Why the backup is not intact, or null if it is
+     */
+    public record BackupResult(BackupCatalog.Entry backup, Status status, String detail) {
+    }
+
+    /**
+     * @param backupName Backup the world was compared against, or null if no backup has file checksums
+     * @param matched Number of world files with the same content as in the backup
+     * @param changed Number of world files changed or deleted since the backup, which were not compared
+     * @param corrupt World files with different content but the same size and modified time as in the backup
+     */
+    public record WorldResult(String backupName, long matched, long changed, List<String> corrupt) {
+    }
+
+    /**
+     * Checks backups in parallel.
+     *
+     * @return Result of each backup, in the same order
+     */
+    public static List<BackupResult> verifyBackups(List<BackupCatalog.Entry> backups) throws InterruptedException {
+        Semaphore reads = new Semaphore(BackupExecutors.getCompressionThreads());
+        List<Future<BackupResult>> futures = new ArrayList<>();
+        for (BackupCatalog.Entry backup : backups) {
+            futures.add(BackupExecutors.getIoExecutor().submit(() -> verifyBackup(backup, reads)));
+        }
+
+        List<BackupResult> results = new ArrayList<>();
+        for (int i = 0; i < backups.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                SimpleBackup.LOGGER.error("Could not verify backup " + backups.get(i).getPath(), e.getCause());
+                results.add(new BackupResult(backups.get(i), Status.CORRUPT, "could not be read: " + e.getCause()));
+            } catch (InterruptedException e) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private static BackupResult verifyBackup(BackupCatalog.Entry backup, Semaphore reads) throws IOException, InterruptedException {
+        Path path = backup.getPath();
+        if (Files.isDirectory(path)) {
+            return new BackupResult(backup, Status.UNVERIFIED, "folder backups have no checksum");
+        }
+
+        BackupManifest manifest;
+        try {
+            manifest = BackupManifest.read(path);
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.warn("Ignoring unreadable checksums of backup {}: {}", path, e.toString());
+            manifest = null;
+        }
+        BackupManifest.FileChecksum expected = manifest != null ? manifest.getArchive() : null;
+        if (expected == null && backup.checksum() != null) {
+            expected = new BackupManifest.FileChecksum(-1, 0, Long.parseUnsignedLong(backup.checksum(), 16));
+        }
+        if (expected == null) {
+            return Files.exists(path) ? new BackupResult(backup, Status.UNVERIFIED, "no checksum was recorded")
+                    : new BackupResult(backup, Status.MISSING, "was deleted");
+        }
+
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (NoSuchFileException e) {
+            return new BackupResult(backup, Status.MISSING, "was deleted");
+        }
+        if (expected.size() >= 0 && size != expected.size()) {
+            return new BackupResult(backup, Status.CORRUPT, "is " + size + " bytes, but was " + expected.size() + " bytes when written");
+        }
+
+        long hash;
+        reads.acquire();
+        try {
+            hash = hashFile(path);
+        } finally {
+            reads.release();
+        }
+        if (hash != expected.hash()) {
+            return new BackupResult(backup, Status.CORRUPT, "has checksum " + BackupManifest.toHex(hash) + ", but had "
+                    + BackupManifest.toHex(expected.hash()) + " when written");
+        }
+        return new BackupResult(backup, Status.INTACT, null);
+    }
+
+    /**
+     * Compares the world against the newest backup with file checksums.
+     *
+     * @param worldFolder World folder that was backed up
+     */
+    public static WorldResult verifyWorld(Path worldFolder) throws InterruptedException {
+        List<BackupCatalog.Entry> backups = BackupCatalog.getBackups();
+        BackupManifest manifest = null;
+        String backupName = null;
+        for (int i = backups.size() - 1; i >= 0 && manifest == null; i--) {
+            try {
+                BackupManifest candidate = BackupManifest.read(backups.get(i).getPath());
+                if (candidate != null && !candidate.getFiles().isEmpty()) {
+                    manifest = candidate;
+                    backupName = backups.get(i).name();
+                }
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.warn("Ignoring unreadable checksums of backup {}: {}", backups.get(i).getPath(), e.toString());
+            }
+        }
+        if (manifest == null) {
+            return new WorldResult(null, 0, 0, List.of());
+        }
+
+        Semaphore reads = new Semaphore(BackupExecutors.getCompressionThreads());
+        AtomicLong matched = new AtomicLong();
+        AtomicLong changed = new AtomicLong();
+        List<String> corrupt = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, BackupManifest.FileChecksum> entry : manifest.getFiles().entrySet()) {
+            futures.add(BackupExecutors.getIoExecutor().submit(() -> {
+                Path file = worldFolder.resolve(entry.getKey());
+                BackupManifest.FileChecksum expected = entry.getValue();
+                try {
+                    if (!isUnchanged(file, expected)) {
+                        changed.incrementAndGet();
+                        return null;
+                    }
+                    long hash;
+                    reads.acquire();
+                    try {
+                        hash = hashFile(file);
+                    } finally {
+                        reads.release();
+                    }
+                    // Saved while it was being hashed
+                    if (!isUnchanged(file, expected)) {
+                        changed.incrementAndGet();
+                    } else if (hash != expected.hash()) {
+                        corrupt.add(entry.getKey());
+                    } else {
+                        matched.incrementAndGet();
+                    }
+                } catch (NoSuchFileException e) {
+                    changed.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    SimpleBackup.LOGGER.warn("Could not compare a world file against backup {}: {}", backupName, e.getCause().toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+
+        List<String> sorted = new ArrayList<>(corrupt);
+        sorted.sort(null);
+        for (String path : sorted) {
+            SimpleBackup.LOGGER.error("World file {} differs from backup {} even though its size and modified time didn't change, it may be corrupted",
+                    path, backupName);
+        }
+        return new WorldResult(backupName, matched.get(), changed.get(), sorted);
+    }
+
+    private static boolean isUnchanged(Path file, BackupManifest.FileChecksum expected) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        // Copied files may keep a less precise modified time than the original, so only compare millis
+        return attrs.isRegularFile() && attrs.size() == expected.size() && attrs.lastModifiedTime().toMillis() == expected.lastModified();
+    }
+
+    private static long hashFile(Path file) throws IOException {
+        StreamingXXHash64 hash = BackupManifest.newHash();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                BackupThrottle.acquire(read);
+                hash.update(buffer, 0, read);
+            }
+        }
+        return hash.getValue();
+    }
+}
@@ -0,0 +1,341 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Copies a scanned folder with several files in flight at once, so fast SSDs are kept busy instead of waiting on one
+ * file at a time.
+ *
+ * <p>Files are copied largest first from a single shared queue, so the big region files start right away and the
+ * many small files fill in the gaps at the end, leaving no worker idle while another still has a long file to copy.
+ * Each file is copied with {@link FileChannel#transferTo}, which lets the kernel copy the data directly between the
+ * files where supported.  Workers run on virtual threads, {@code numThreads} of them.
+ *
+ * <p>With a {@link BackupCheckpoint}, each worker flushes the files it copied to disk and checkpoints them in batches,
+ * and files an interrupted backup already copied into the staging folder are kept if they haven't changed since.
+ *
+ * <p>Copies go through the {@link BackupThrottle} unless created unthrottled, for copies that have to finish as fast as
+ * possible, such as a {@link WorldSnapshot} taken while the world's saving is paused.
+ */
+final class DirectoryCopier {
+    // Copy large files in chunks so the throttle can pace them
+    private static final long TRANSFER_CHUNK_SIZE = 8L << 20;
+
+    private final DirectoryScan source;
+    private final Path destination;
+    private final Path linkSource;
+    private final FileIndex.Scan unchangedFiles;
+    private final BackupCheckpoint checkpoint;
+    private final boolean throttled;
+    private final List<DirectoryScan.ScannedFile> queue;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
+    private final boolean shouldLogBackupProgress = interval > 0 && interval <= 100;
+    // Whether hard links are still being attempted
+    private volatile boolean linking;
+    private volatile boolean failed = false;
+
+    /**
+     * @param checkpoint Checkpoint of the staging folder the destination is in, or null to copy without checkpoints
+     */
+    DirectoryCopier(DirectoryScan source, Path destination, Path linkSource, FileIndex.Scan unchangedFiles, BackupCheckpoint checkpoint) {
+        this(source, destination, linkSource, unchangedFiles, checkpoint, true);
+    }
+
+    /**
+     * @param throttled Whether to go through the {@link BackupThrottle}
+     */
+    DirectoryCopier(DirectoryScan source, Path destination, Path linkSource, FileIndex.Scan unchangedFiles, BackupCheckpoint checkpoint,
+                    boolean throttled) {
+        this.source = source;
+        this.destination = destination;
+        this.linkSource = linkSource;
+        this.unchangedFiles = unchangedFiles;
+        this.checkpoint = checkpoint;
+        this.throttled = throttled;
+        this.linking = linkSource != null;
+        this.queue = new ArrayList<>(source.getFiles());
+        this.queue.sort(Comparator.comparingLong(DirectoryScan.ScannedFile::size).reversed());
+    }
+
+    /**
+     * @return Number of files hard linked instead of copied
+     * @throws Exception If any file could not be copied
+     */
+    long copy() throws Exception {
+        if (checkpoint != null && checkpoint.isResumed()) {
+            removeDeletedFiles();
+        }
+        for (DirectoryScan.ScannedDirectory dir : source.getDirectories()) {
+            Files.createDirectories(destination.resolve(dir.relPath()));
+        }
+
+        int numWorkers = Math.max(1, Math.min(ModConfig.getInstance().numThreads, queue.size()));
+        if (numWorkers == 1) {
+            copyFiles();
+            logResumed();
+            return linked.get();
+        }
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            workers.add(BackupExecutors.getIoExecutor().submit(() -> {
+                copyFiles();
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            failed = true;
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+        logResumed();
+        return linked.get();
+    }
+
+    private void logResumed() {
+        if (resumed.get() > 0) {
+            SimpleBackup.LOGGER.info("Kept {} unchanged files copied by the interrupted backup", resumed.get());
+        }
+    }
+
+    /**
+     * Deletes the files and folders an interrupted backup copied into the staging folder that were deleted from the
+     * source since.
+     */
+    private void removeDeletedFiles() throws IOException {
+        if (!Files.isDirectory(destination)) {
+            return;
+        }
+        Set<String> paths = new HashSet<>();
+        for (DirectoryScan.ScannedFile file : source.getFiles()) {
+            paths.add(file.relPath());
+        }
+        for (DirectoryScan.ScannedDirectory dir : source.getDirectories()) {
+            paths.add(dir.relPath());
+        }
+        Files.walkFileTree(destination, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!paths.contains(getRelPath(file))) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                // Already emptied, as the folders of every scanned file are in the scan
+                if (!dir.equals(destination) && !paths.contains(getRelPath(dir))) {
+                    Files.delete(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private String getRelPath(Path path) {
+        return destination.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private void copyFiles() throws IOException {
+        BackupCheckpoint.Batch batch = checkpoint != null ? checkpoint.newBatch() : null;
+        int i;
+        while (!failed && (i = next.getAndIncrement()) < queue.size()) {
+            DirectoryScan.ScannedFile file = queue.get(i);
+            if (throttled) {
+                BackupThrottle.beginWork();
+            }
+            try {
+                Outcome outcome = copyFile(file);
+                if (batch != null && (outcome == Outcome.COPIED || outcome == Outcome.LINKED)) {
+                    batch.add(new BackupCheckpoint.Entry(file.relPath(), file.size(), file.lastModified(), null, outcome.getName()),
+                            outcome == Outcome.COPIED ? destination.resolve(file.relPath()) : null);
+                    if (batch.isDue()) {
+                        batch.commit(null);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                if (throttled) {
+                    BackupThrottle.endWork();
+                }
+            }
+
+            long count = processed.incrementAndGet();
+            if (shouldLogBackupProgress) {
+                int prevPercent = (int) ((float) (count - 1) / queue.size() * 100);
+                int currPercent = (int) ((float) count / queue.size() * 100);
+                if (prevPercent / interval < currPercent / interval) {
+                    SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
+                }
+            }
+        }
+        // Flush the last files, so the finished copy is on disk before it is published
+        if (batch != null) {
+            batch.commit(null);
+        }
+    }
+
+    private Outcome copyFile(DirectoryScan.ScannedFile file) throws IOException {
+        Path dest = destination.resolve(file.relPath());
+        if (checkpoint != null && checkpoint.isResumed()) {
+            if (checkpoint.getCompleted(file) != null && Files.exists(dest)) {
+                resumed.incrementAndGet();
+                return Outcome.RESUMED;
+            }
+            // Partly copied, or changed since it was copied by the interrupted backup
+            Files.deleteIfExists(dest);
+        }
+        boolean unchanged = linking && (unchangedFiles != null
+                ? unchangedFiles.isUnchanged(file.relPath(), file.size(), file.lastModified())
+                : SimpleBackupUtil.isUnchanged(linkSource.resolve(file.relPath()), file));
+        try {
+            if (unchanged) {
+                try {
+                    Files.createLink(dest, linkSource.resolve(file.relPath()));
+                    linked.incrementAndGet();
+                    return Outcome.LINKED;
+                } catch (NoSuchFileException e) {
+                    // Missing from the previous backup, such as if it was edited by hand
+                    transfer(file.path(), dest);
+                } catch (FileAlreadyExistsException e) {
+                    throw e;
+                } catch (UnsupportedOperationException | IOException e) {
+                    // Hard links are not supported across file systems or on some file systems, so stop trying
+                    if (linking) {
+                        linking = false;
+                        SimpleBackup.LOGGER.warn("Could not hard link {}, copying the remaining files instead: {}", dest, e.toString());
+                    }
+                    Files.deleteIfExists(dest);
+                    transfer(file.path(), dest);
+                }
+            } else {
+                transfer(file.path(), dest);
+            }
+            return Outcome.COPIED;
+        } catch (FileAlreadyExistsException e) {
+            // Already copied
+            return Outcome.SKIPPED;
+        } catch (NoSuchFileException e) {
+            if (Files.exists(file.path())) {
+                throw e;
+            }
+            // Deleted since it was scanned
+            return Outcome.SKIPPED;
+        }
+    }
+
+    /**
+     * Copies a file's content and attributes, like {@link Files#copy} with {@link StandardCopyOption#COPY_ATTRIBUTES}.
+     */
+    private void transfer(Path from, Path to) throws IOException {
+        // Read before the content, so a file modified while copying is not marked as unchanged by the next backup
+        BasicFileAttributes attributes = readAttributes(from);
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long chunk = Math.min(TRANSFER_CHUNK_SIZE, size - position);
+                if (throttled) {
+                    BackupThrottle.acquire(chunk);
+                }
+                long transferred = in.transferTo(position, chunk, out);
+                if (transferred <= 0) {
+                    // The file was truncated while copying
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        copyAttributes(attributes, to);
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) throws IOException {
+        if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null) {
+            return Files.readAttributes(file, PosixFileAttributes.class);
+        } else if (Files.getFileAttributeView(file, DosFileAttributeView.class) != null) {
+            return Files.readAttributes(file, DosFileAttributes.class);
+        }
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static void copyAttributes(BasicFileAttributes attributes, Path to) throws IOException {
+        if (attributes instanceof PosixFileAttributes posix) {
+            PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+            view.setPermissions(posix.permissions());
+            try {
+                view.setGroup(posix.group());
+            } catch (IOException e) {
+                // Not a member of the group, the copy keeps the default group like Files.copy does
+            }
+        } else if (attributes instanceof DosFileAttributes dos) {
+            DosFileAttributeView view = Files.getFileAttributeView(to, DosFileAttributeView.class);
+            view.setArchive(dos.isArchive());
+            view.setHidden(dos.isHidden());
+            view.setSystem(dos.isSystem());
+            view.setReadOnly(dos.isReadOnly());
+        }
+        Files.getFileAttributeView(to, BasicFileAttributeView.class)
+                .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+    }
+
+    private enum Outcome {
+        COPIED,
+        LINKED,
+        // Kept from the interrupted backup
+        RESUMED,
+        SKIPPED;
+
+        String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.SimpleBackup;
+
+/**
+ * Immutable list of the folders and files in a world folder with their size and modified time, taken in a single walk.
+ * One scan is shared by the disk space check, progress reporting, balancing work between threads and the backup
+ * formats themselves, so the attributes of every file are only read once per backup.
+ *
+ * <p>Files in {@link SimpleBackupUtil#FILES_TO_SKIP_COPY} are left out.  Folders and files are in the order they were
+ * walked, with every folder before its contents.
+ */
+public final class DirectoryScan {
+    private final Path root;
+    private final List<ScannedDirectory> directories;
+    private final List<ScannedFile> files;
+    private final long totalSize;
+    private final boolean filtered;
+
+    private DirectoryScan(Path root, List<ScannedDirectory> directories, List<ScannedFile> files, long totalSize, boolean filtered) {
+        this.root = root;
+        this.directories = List.copyOf(directories);
+        this.files = List.copyOf(files);
+        this.totalSize = totalSize;
+        this.filtered = filtered;
+    }
+
+    /**
+     * Walks a folder once, reading the attributes of every file.
+     *
+     * @param root Folder to scan
+     * @return The scan
+     * @throws IOException If the folder can't be walked
+     */
+    public static DirectoryScan scan(Path root) throws IOException {
+        return scan(root, Map.of());
+    }
+
+    /**
+     * Walks a folder once, taking the size and modified time of files that are known to not have changed from
+     * {@code knownFiles} instead of reading them.  Folders holding known files are only listed, so their other files are
+     * the only ones whose attributes are read.
+     *
+     * @param root Folder to scan
+     * @param knownFiles Unchanged files by relative path
+     * @return The scan
+     * @throws IOException If the folder can't be walked
+     */
+    public static DirectoryScan scan(Path root, Map<String, ScannedFile> knownFiles) throws IOException {
+        Set<String> listedDirectories = new HashSet<>();
+        for (String relPath : knownFiles.keySet()) {
+            int slash = relPath.lastIndexOf('/');
+            listedDirectories.add(slash < 0 ? "" : relPath.substring(0, slash));
+        }
+
+        List<ScannedDirectory> directories = new ArrayList<>();
+        List<ScannedFile> files = new ArrayList<>();
+        long[] totalSize = {0};
+        long[] statted = {0};
+        long start = System.nanoTime();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String relDir = toRelPath(root, dir);
+                directories.add(new ScannedDirectory(dir, relDir, attrs.lastModifiedTime().toMillis()));
+                if (dir.equals(root) || !listedDirectories.contains(relDir)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                // Listing names doesn't read the attributes of every file
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        ScannedFile known = knownFiles.get(toRelPath(root, entry));
+                        if (known != null) {
+                            files.add(known);
+                            totalSize[0] += known.size();
+                            continue;
+                        }
+                        BasicFileAttributes entryAttrs;
+                        try {
+                            entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (entryAttrs.isDirectory()) {
+                            Files.walkFileTree(entry, this);
+                        } else {
+                            visitFile(entry, entryAttrs);
+                        }
+                    }
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                statted[0]++;
+                if (!SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())) {
+                    files.add(new ScannedFile(file, toRelPath(root, file), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    totalSize[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        SimpleBackup.LOGGER.debug("Scanned {} files in {} ms, reading the attributes of {}", files.size(),
+                (System.nanoTime() - start) / 1_000_000, statted[0]);
+        return new DirectoryScan(root, directories, files, totalSize[0], false);
+    }
+
+    /**
+     * @param filter Which files to keep, by relative path
+     * @return Scan with only the matching files, and the folders that contain them
+     */
+    public DirectoryScan filter(Predicate<String> filter) {
+        List<ScannedFile> matchingFiles = new ArrayList<>();
+        Set<String> neededDirectories = new HashSet<>();
+        neededDirectories.add("");
+        long matchingSize = 0;
+        for (ScannedFile file : files) {
+            if (filter.test(file.relPath())) {
+                matchingFiles.add(file);
+                matchingSize += file.size();
+                for (int slash = file.relPath().lastIndexOf('/'); slash > 0; slash = file.relPath().lastIndexOf('/', slash - 1)) {
+                    if (!neededDirectories.add(file.relPath().substring(0, slash))) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<ScannedDirectory> matchingDirectories = new ArrayList<>();
+        for (ScannedDirectory dir : directories) {
+            if (neededDirectories.contains(dir.relPath())) {
+                matchingDirectories.add(dir);
+            }
+        }
+        return new DirectoryScan(root, matchingDirectories, matchingFiles, matchingSize,
+                this.filtered || matchingFiles.size() < this.files.size());
+    }
+
+    private static String toRelPath(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return Folders in walk order, starting with the root folder itself which has an empty relative path
+     */
+    public List<ScannedDirectory> getDirectories() {
+        return directories;
+    }
+
+    /**
+     * @return Files in walk order
+     */
+    public List<ScannedFile> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return true if {@link #filter} left out some files, so formats that walk the folder on their own must not be used
+     */
+    public boolean isFiltered() {
+        return filtered;
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return Total size of all files in bytes
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Finds the file indexes that split the files evenly by size.  For balancing multi-threaded processing of the files.
+     *
+     * @param numIntervals Number of intervals
+     * @return Start index of each interval in {@link #getFiles()}, in increasing order.  The first is always 0
+     */
+    public int[] getFileCountIntervalsFromSize(int numIntervals) {
+        int[] res = new int[numIntervals];
+        // Avoid dividing by zero for tiny or empty folders
+        long sliceLength = Math.max(1, totalSize / numIntervals);
+        long size = 0;
+        int next = 1;
+        for (int i = 0; i < files.size() && next < numIntervals; i++) {
+            size += files.get(i).size;
+            // A file larger than a slice can cross several boundaries, the later intervals then start at the same index
+            while (next < numIntervals && size / sliceLength >= next) {
+                res[next++] = i;
+            }
+        }
+        for (; next < numIntervals; next++) {
+            res[next] = files.size();
+        }
+        return res;
+    }
+
+    /**
+     * @param path Absolute path of the folder
+     * @param relPath Path relative to the scanned folder, with '/' separators
+     * @param lastModified Modified time in millis
+     */
+    public record ScannedDirectory(Path path, String relPath, long lastModified) {
+    }
+
+    /**
+     * @param path Absolute path of the file
+     * @param relPath Path relative to the scanned folder, with '/' separators
+     * @param size Size in bytes when scanned
+     * @param lastModified Modified time in millis when scanned
+     */
+    public record ScannedFile(Path path, String relPath, long size, long lastModified) {
+    }
+}
@@ -0,0 +1,324 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.spoorn.simplebackup.SimpleBackup;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Compact binary index of every file in the world folder as of the last backup of a format, with its size, modified
+ * time and an xxHash64 of its content.  The index is stored next to the backups and read into memory for lookups, so
+ * detecting which files changed since the last backup only needs the file attributes from the {@link DirectoryScan}.
+ *
+ * <p>The index is read into the heap rather than memory-mapped, as it is replaced after every backup and Windows does
+ * not allow replacing a file that is still mapped, which stays mapped until the buffer is garbage collected.
+ *
+ * <p>Changed files are hashed to catch files that were saved again with the same content, which Minecraft does for
+ * many data files on every save.  Region files make up most of the world but are never hashed, as every chunk save
+ * also updates the timestamps in their header, so they have an unknown content hash in the index.
+ *
+ * <p>Layout, big endian:
+ * <pre>
+ * int magic, int version, int entryCount, int backupNameLength, byte[] backupName
+ * entryCount x (long pathHash, long size, long lastModified, long contentHash, int pathOffset, int pathLength), sorted by pathHash
+ * byte[] paths, UTF-8 relative paths with '/' separators
+ * </pre>
+ */
+public final class FileIndex {
+    public static final String INDEX_EXTENSION = ".index";
+    private static final int MAGIC = 0x53424958;  // SBIX
+    private static final int VERSION = 1;
+    private static final int ENTRY_SIZE = 40;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long UNKNOWN_HASH = 0;
+    private static final XXHashFactory XX_HASH_FACTORY = XXHashFactory.fastestInstance();
+    private static final XXHash64 PATH_HASH = XX_HASH_FACTORY.hash64();
+
+    private final String backupName;
+    private final int entryCount;
+    private final int tableOffset;
+    private final int pathsOffset;
+    private final ByteBuffer buffer;
+
+    private FileIndex(String backupName, int entryCount, int tableOffset, ByteBuffer buffer) {
+        this.backupName = backupName;
+        this.entryCount = entryCount;
+        this.tableOffset = tableOffset;
+        this.pathsOffset = tableOffset + entryCount * ENTRY_SIZE;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param backupFolder Folder the backups are stored in
+     * @param format Backup format the index is kept for
+     * @return Path of the index file for the format
+     */
+    public static Path getIndexFile(Path backupFolder, String format) {
+        return backupFolder.resolve("." + format.toLowerCase(Locale.ROOT) + INDEX_EXTENSION);
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @return The index, or an empty index if the file does not exist or is not a valid index
+     */
+    public static FileIndex load(Path indexFile) {
+        if (Files.notExists(indexFile)) {
+            return empty();
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Unrecognized file index");
+            }
+            int entryCount = buffer.getInt(8);
+            int backupNameLength = buffer.getInt(12);
+            byte[] backupName = new byte[backupNameLength];
+            buffer.get(16, backupName);
+            if ((long) 16 + backupNameLength + (long) entryCount * ENTRY_SIZE > buffer.capacity()) {
+                throw new IOException("Truncated file index");
+            }
+            return new FileIndex(new String(backupName, StandardCharsets.UTF_8), entryCount, 16 + backupNameLength, buffer);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.warn("Ignoring unreadable file index {}: {}", indexFile, e.toString());
+            return empty();
+        }
+    }
+
+    private static FileIndex empty() {
+        return new FileIndex(null, 0, 0, null);
+    }
+
+    /**
+     * @return Name of the backup this index describes, or null if the index is empty
+     */
+    public String getBackupName() {
+        return backupName;
+    }
+
+    /**
+     * @param relPath Path relative to the world folder, with '/' separators
+     * @return The indexed entry, or null if the file is not in the index
+     */
+    public Entry get(String relPath) {
+        if (this.entryCount == 0) {
+            return null;
+        }
+
+        byte[] path = relPath.getBytes(StandardCharsets.UTF_8);
+        long pathHash = hashPath(path);
+        int low = 0;
+        int high = this.entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midHash = this.buffer.getLong(this.tableOffset + mid * ENTRY_SIZE);
+            if (midHash < pathHash) {
+                low = mid + 1;
+            } else if (midHash > pathHash) {
+                high = mid - 1;
+            } else {
+                // Walk back to the first entry with this hash, then check every entry sharing it
+                while (mid > 0 && this.buffer.getLong(this.tableOffset + (mid - 1) * ENTRY_SIZE) == pathHash) {
+                    mid--;
+                }
+                for (int i = mid; i < this.entryCount && this.buffer.getLong(this.tableOffset + i * ENTRY_SIZE) == pathHash; i++) {
+                    if (pathEquals(i, path)) {
+                        int pos = this.tableOffset + i * ENTRY_SIZE;
+                        return new Entry(this.buffer.getLong(pos + 8), this.buffer.getLong(pos + 16), this.buffer.getLong(pos + 24));
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean pathEquals(int index, byte[] path) {
+        int pos = this.tableOffset + index * ENTRY_SIZE;
+        int pathOffset = this.buffer.getInt(pos + 32);
+        int pathLength = this.buffer.getInt(pos + 36);
+        if (pathLength != path.length) {
+            return false;
+        }
+        for (int i = 0; i < pathLength; i++) {
+            if (this.buffer.get(this.pathsOffset + pathOffset + i) != path[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares every scanned file against this index.  Files are only read to hash them if their size or modified time
+     * changed, and region files are never read.
+     *
+     * @param source Scan of the world folder
+     * @return The scan, which can be written as the index for the next backup
+     */
+    public Scan scan(DirectoryScan source) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        Map<String, Boolean> unchanged = new HashMap<>();
+        byte[] readBuffer = new byte[BUFFER_SIZE];
+        long hashed = 0;
+        long start = System.nanoTime();
+        for (DirectoryScan.ScannedFile file : source.getFiles()) {
+            String relPath = file.relPath();
+            long size = file.size();
+            long lastModified = file.lastModified();
+            Entry previous = get(relPath);
+            Entry entry;
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+                entry = previous;
+                unchanged.put(relPath, true);
+            } else if (!RegionFileHeader.isRegionFile(relPath)) {
+                // Possibly saved again with the same content
+                try {
+                    entry = new Entry(size, lastModified, hashFile(file.path(), readBuffer));
+                } catch (NoSuchFileException e) {
+                    // Deleted since it was scanned
+                    continue;
+                }
+                hashed++;
+                unchanged.put(relPath, previous != null && previous.size == size
+                        && previous.contentHash != UNKNOWN_HASH && previous.contentHash == entry.contentHash);
+            } else {
+                // Every chunk save updates the timestamps in the region header, so the content always changed
+                entry = new Entry(size, lastModified, UNKNOWN_HASH);
+                unchanged.put(relPath, false);
+            }
+            entries.put(relPath, entry);
+        }
+
+        Scan scan = new Scan(this.backupName, entries, unchanged);
+        SimpleBackup.LOGGER.info("Compared {} files against the file index in {} ms, {} changed since the last backup, {} hashed",
+                entries.size(), (System.nanoTime() - start) / 1_000_000, scan.getChangedCount(), hashed);
+        return scan;
+    }
+
+    static long hashFile(Path file, byte[] readBuffer) throws IOException {
+        StreamingXXHash64 hash = XX_HASH_FACTORY.newStreamingHash64(0);
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(readBuffer)) > 0) {
+                hash.update(readBuffer, 0, read);
+            }
+        }
+        return hash.getValue();
+    }
+
+    private static long hashPath(byte[] path) {
+        return PATH_HASH.hash(path, 0, path.length, 0);
+    }
+
+    public record Entry(long size, long lastModified, long contentHash) {
+    }
+
+    /**
+     * Result of scanning the world folder against an index.
+     */
+    public static final class Scan {
+        private final String previousBackupName;
+        private final Map<String, Entry> entries;
+        private final Map<String, Boolean> unchanged;
+
+        private Scan(String previousBackupName, Map<String, Entry> entries, Map<String, Boolean> unchanged) {
+            this.previousBackupName = previousBackupName;
+            this.entries = entries;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * @return Name of the backup the scan was compared against, or null if there was no index
+         */
+        public String getPreviousBackupName() {
+            return previousBackupName;
+        }
+
+        /**
+         * @param relPath Path relative to the world folder, with '/' separators
+         * @param size Current size of the file
+         * @param lastModified Current modified time of the file in millis
+         * @return True if the file has the same content as in the previous backup, and was not modified since the scan
+         */
+        public boolean isUnchanged(String relPath, long size, long lastModified) {
+            Entry entry = this.entries.get(relPath);
+            return entry != null && entry.size == size && entry.lastModified == lastModified && this.unchanged.getOrDefault(relPath, false);
+        }
+
+        public long getChangedCount() {
+            return this.unchanged.values().stream().filter(u -> !u).count();
+        }
+
+        /**
+         * Writes the scan as the index describing a backup, logging instead of failing the backup if it can't be written.
+         */
+        public void writeFailSafe(Path indexFile, String backupName) {
+            try {
+                write(indexFile, backupName);
+            } catch (Exception e) {
+                SimpleBackup.LOGGER.error("Could not write file index " + indexFile, e);
+            }
+        }
+
+        /**
+         * Writes the scan as the index describing a backup, replacing the previous index atomically.
+         */
+        public void write(Path indexFile, String backupName) throws IOException {
+            List<Map.Entry<String, Entry>> sorted = new ArrayList<>(this.entries.entrySet());
+            long[] pathHashes = new long[sorted.size()];
+            byte[][] paths = new byte[sorted.size()][];
+            Integer[] order = new Integer[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                paths[i] = sorted.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+                pathHashes[i] = hashPath(paths[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> pathHashes[i]));
+
+            Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            byte[] name = backupName.getBytes(StandardCharsets.UTF_8);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                out.writeInt(name.length);
+                out.write(name);
+                int pathOffset = 0;
+                for (int i : order) {
+                    Entry entry = sorted.get(i).getValue();
+                    out.writeLong(pathHashes[i]);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.contentHash);
+                    out.writeInt(pathOffset);
+                    out.writeInt(paths[i].length);
+                    pathOffset += paths[i].length;
+                }
+                for (int i : order) {
+                    out.write(paths[i]);
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The 8 KiB header at the start of an Anvil region file (.mca).  The first 4 KiB holds the location of each of the
+ * 1024 chunks as a 3 byte sector offset and a 1 byte sector count, and the second 4 KiB holds the last time each chunk
+ * was saved, in epoch seconds.
+ */
+public class RegionFileHeader {
+    public static final String REGION_EXTENSION = ".mca";
+    public static final int SECTOR_SIZE = 4096;
+    public static final int HEADER_SIZE = SECTOR_SIZE * 2;
+    public static final int CHUNK_COUNT = 1024;
+    // Each chunk starts with its length and compression type
+    public static final int CHUNK_HEADER_SIZE = 5;
+    public static final byte GZIP = 1;
+    public static final byte ZLIB = 2;
+    public static final byte UNCOMPRESSED = 3;
+    // Set on the compression type of chunks too large for the region file, which are in a .mcc file next to it
+    public static final int EXTERNAL_FLAG = 0x80;
+    public static final int MAX_CHUNK_SECTORS = 255;
+
+    private final byte[] raw;
+    private final int[] locations = new int[CHUNK_COUNT];
+    private final int[] timestamps = new int[CHUNK_COUNT];
+
+    private RegionFileHeader(byte[] raw) {
+        this.raw = raw;
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            this.locations[i] = buffer.getInt(i * 4);
+            this.timestamps[i] = buffer.getInt(SECTOR_SIZE + i * 4);
+        }
+    }
+
+    public static boolean isRegionFile(String fileName) {
+        return fileName.endsWith(REGION_EXTENSION);
+    }
+
+    /**
+     * Reads the header of a region file.
+     *
+     * @param channel Channel of the region file
+     * @return The header, or null if the file is too small or has chunk locations outside the file, in which case it
+     *          should be treated as an opaque file
+     * @throws IOException If reading the file fails
+     */
+    public static RegionFileHeader read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return null;
+            }
+        }
+
+        RegionFileHeader header = new RegionFileHeader(buffer.array());
+        long sectors = (size + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            if (header.hasChunk(i) && (header.getSectorOffset(i) < 2 || header.getSectorOffset(i) + header.getSectorCount(i) > sectors)) {
+                return null;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Finds the chunks stored compressed, which is all of them unless the server's region-file-compression is "none".
+     * Each chunk starts with its length and compression type, followed by the compressed data, then zeros to the end
+     * of its last sector.
+     *
+     * @param channel Channel of the region file
+     * @return Start and end offset of each compressed chunk's data in the file, including the length and compression
+     *          type, one after another and sorted by start offset.  Chunks that overlap earlier ones are left out
+     * @throws IOException If reading the file fails
+     */
+    public long[] readCompressedChunkRanges(FileChannel channel) throws IOException {
+        long[] starts = new long[CHUNK_COUNT];
+        int count = 0;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            if (hasChunk(i)) {
+                starts[count++] = (long) getSectorOffset(i) * SECTOR_SIZE;
+            }
+        }
+        Arrays.sort(starts, 0, count);
+
+        long[] ranges = new long[count * 2];
+        int rangeCount = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            long start = starts[i];
+            if (rangeCount > 0 && start < ranges[rangeCount * 2 - 1]) {
+                continue;
+            }
+            prefix.clear();
+            while (prefix.hasRemaining()) {
+                if (channel.read(prefix, start + prefix.position()) < 0) {
+                    break;
+                }
+            }
+            int length = prefix.getInt(0);
+            if (prefix.hasRemaining() || length <= 1 || prefix.get(4) == UNCOMPRESSED || start + 4 + length > channel.size()) {
+                continue;
+            }
+            ranges[rangeCount * 2] = start;
+            ranges[rangeCount * 2 + 1] = start + 4 + length;
+            rangeCount++;
+        }
+        return Arrays.copyOf(ranges, rangeCount * 2);
+    }
+
+    public byte[] getRaw() {
+        return this.raw;
+    }
+
+    public int getLocation(int index) {
+        return this.locations[index];
+    }
+
+    public int getTimestamp(int index) {
+        return this.timestamps[index];
+    }
+
+    public boolean hasChunk(int index) {
+        return this.locations[index] != 0;
+    }
+
+    public int getSectorOffset(int index) {
+        return this.locations[index] >>> 8;
+    }
+
+    public int getSectorCount(int index) {
+        return this.locations[index] & 0xFF;
+    }
+
+    public static int getSectorOffsetFromLocation(int location) {
+        return location >>> 8;
+    }
+}
@@ -0,0 +1,364 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Records which region files, and which chunks in them, the server writes, so scanning the world before a backup only
+ * reads the attributes of region files written since the previous scan.  Region files make up most of the files in a
+ * world, and most of them are not written between two backups.
+ *
+ * <p>Chunk writes are recorded in a lock-free map from region file to a bitmap of its 1024 chunks.  Each scan swaps in
+ * a new map, so writes made while the world is being scanned count towards the next scan.  The first write to a region
+ * file after a scan is also appended to a journal in the world folder and flushed to disk before the chunk is written,
+ * so neither a crash nor a power loss loses track of it.  That is one flush per region file per backup, on the thread
+ * writing the region file rather than the server thread.
+ *
+ * <p>The size and modified time of every region file as of the last scan are kept in the world folder as well.  If
+ * they are missing, or the world was saved by a server without this mod since, the world is scanned in full.  A server
+ * without this mod is noticed from level.dat, which every save writes.  Tools that edit region files without writing
+ * level.dat, such as MCA Selector, are not noticed, so delete {@value #LISTING_FILE} from the world folder after
+ * editing region files while the server is stopped, or the next backup keeps the sizes from before the edit.
+ */
+public final class RegionWriteTracker {
+    public static final String LISTING_FILE = "simplebackup-regions.dat";
+    public static final String JOURNAL_FILE = "simplebackup-regions.log";
+    private static final String OLD_JOURNAL_FILE = JOURNAL_FILE + ".old";
+    private static final String STOPPED_PREFIX = "#stopped\t";
+    private static final int MAGIC = 0x53425247;  // SBRG
+    private static final int VERSION = 1;
+    private static final int CHUNKS_PER_REGION = 32 * 32;
+    // Held for whole scans, while journal writes only wait for the journal to be swapped
+    private static final Object SCAN_LOCK = new Object();
+    private static final Object JOURNAL_LOCK = new Object();
+    private static final AtomicReference<Generation> current = new AtomicReference<>();
+    private static final Map<Path, String> folderRelPaths = new ConcurrentHashMap<>();
+    private static volatile Path worldRoot;
+    // Region files written before this session whose writes have not been picked up by a scan yet
+    private static Set<String> recovered = new HashSet<>();
+    private static Map<String, DirectoryScan.ScannedFile> listing;
+
+    private RegionWriteTracker() {
+    }
+
+    /**
+     * Starts tracking writes to a world, before its dimensions are loaded.
+     *
+     * @param world World folder
+     */
+    public static void start(Path world) {
+        synchronized (SCAN_LOCK) {
+            worldRoot = world.toAbsolutePath().normalize();
+            folderRelPaths.clear();
+            recovered = new HashSet<>();
+            listing = null;
+            if (!ModConfig.getInstance().trackRegionWrites) {
+                current.set(null);
+                return;
+            }
+
+            readJournal(worldRoot.resolve(OLD_JOURNAL_FILE), recovered);
+            String last = readJournal(worldRoot.resolve(JOURNAL_FILE), recovered);
+            // A journal that doesn't end with a stop line means the server crashed, and the journal has every write up to then
+            if (last != null && (last.isEmpty() || last.equals(STOPPED_PREFIX + getLevelDatModified()))) {
+                listing = readListing(worldRoot.resolve(LISTING_FILE));
+            }
+            if (listing == null) {
+                SimpleBackup.LOGGER.info("Region files of world {} are not tracked yet, the next backup scans every file", worldRoot);
+            }
+            current.set(new Generation(openJournal(worldRoot.resolve(JOURNAL_FILE))));
+        }
+    }
+
+    /**
+     * Stops tracking once the world is saved for the last time, noting the world as cleanly saved.
+     */
+    public static void stop() {
+        synchronized (SCAN_LOCK) {
+            synchronized (JOURNAL_LOCK) {
+                Generation generation = current.getAndSet(null);
+                if (generation != null && generation.journal != null) {
+                    appendLine(generation.journal, STOPPED_PREFIX + getLevelDatModified());
+                    closeQuietly(generation.journal);
+                }
+            }
+            worldRoot = null;
+        }
+    }
+
+    /**
+     * Records a chunk write to a region file.  Called before and after the chunk is written, so the write is journaled
+     * before it reaches the file, and counts towards a scan that starts after it finished.
+     *
+     * @param regionFolder Folder of the region file
+     */
+    public static void onChunkWrite(Path regionFolder, int regionX, int regionZ, int localX, int localZ) {
+        Path world = worldRoot;
+        if (world == null || current.get() == null) {
+            return;
+        }
+        String folder = folderRelPaths.computeIfAbsent(regionFolder, f -> {
+            Path absolute = f.toAbsolutePath().normalize();
+            return absolute.startsWith(world) ? world.relativize(absolute).toString().replace('\\', '/') : "";
+        });
+        if (folder.isEmpty()) {
+            return;
+        }
+
+        String relPath = folder + "/r." + regionX + "." + regionZ + ".mca";
+        int chunk = localZ * 32 + localX;
+        Generation generation;
+        // Marks again if a scan swapped the generation meanwhile, in case the scan already read the old one
+        while ((generation = current.get()) != null) {
+            if (generation.journaled.add(relPath)) {
+                journal(relPath);
+            }
+            generation.chunks.computeIfAbsent(relPath, p -> new AtomicLongArray(CHUNKS_PER_REGION / 64))
+                    .getAndUpdate(chunk / 64, bits -> bits | (1L << (chunk % 64)));
+            if (generation == current.get()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Scans a folder, reading only the attributes of region files written since the previous scan if the folder is the
+     * tracked world.
+     *
+     * @param root Folder to scan
+     * @return The scan
+     * @throws IOException If the folder can't be walked
+     */
+    public static DirectoryScan scan(Path root) throws IOException {
+        Path world = worldRoot;
+        if (world == null || current.get() == null || !world.equals(root.toAbsolutePath().normalize())) {
+            return DirectoryScan.scan(root);
+        }
+
+        synchronized (SCAN_LOCK) {
+            Generation previous = current.get();
+            if (previous == null) {
+                return DirectoryScan.scan(root);
+            }
+            synchronized (JOURNAL_LOCK) {
+                // Writes from now on count towards the next scan
+                closeQuietly(previous.journal);
+                try {
+                    Files.move(world.resolve(JOURNAL_FILE), world.resolve(OLD_JOURNAL_FILE), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    // Keeps appending to the journal, which only costs re-reading the attributes of its region files next time
+                }
+                current.set(new Generation(openJournal(world.resolve(JOURNAL_FILE))));
+            }
+
+            Set<String> written = new HashSet<>(recovered);
+            written.addAll(previous.chunks.keySet());
+            long chunkCount = 0;
+            for (AtomicLongArray bits : previous.chunks.values()) {
+                for (int i = 0; i < bits.length(); i++) {
+                    chunkCount += Long.bitCount(bits.get(i));
+                }
+            }
+
+            DirectoryScan scan;
+            try {
+                if (listing == null) {
+                    scan = DirectoryScan.scan(root);
+                } else {
+                    Map<String, DirectoryScan.ScannedFile> known = new HashMap<>(listing);
+                    known.keySet().removeAll(written);
+                    scan = DirectoryScan.scan(root, known);
+                    SimpleBackup.LOGGER.info("{} chunks in {} region files were written since the previous scan", chunkCount, written.size());
+                }
+            } catch (IOException e) {
+                recovered = written;
+                throw e;
+            }
+
+            Map<String, DirectoryScan.ScannedFile> regions = new HashMap<>();
+            for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+                if (RegionFileHeader.isRegionFile(file.relPath())) {
+                    regions.put(file.relPath(), file);
+                }
+            }
+            try {
+                writeListing(world.resolve(LISTING_FILE), regions.values());
+                Files.deleteIfExists(world.resolve(OLD_JOURNAL_FILE));
+                listing = regions;
+                recovered = new HashSet<>();
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.error("Could not save region file listing to " + world.resolve(LISTING_FILE), e);
+                recovered = written;
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * Forgets the tracked region files of a world whose files were replaced, such as by a restore.
+     */
+    public static void invalidate(Path world) {
+        try {
+            Files.deleteIfExists(world.resolve(LISTING_FILE));
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not delete region file listing in " + world, e);
+        }
+    }
+
+    private static void journal(String relPath) {
+        synchronized (JOURNAL_LOCK) {
+            Generation generation = current.get();
+            if (generation != null && generation.journal != null) {
+                appendLine(generation.journal, relPath);
+                // After a crash the journal is trusted to have every region file written, so it has to reach the disk first
+                try {
+                    generation.journal.force(false);
+                } catch (IOException e) {
+                    SimpleBackup.LOGGER.error("Could not flush region write journal", e);
+                }
+            }
+        }
+    }
+
+    private static FileChannel openJournal(Path journalFile) {
+        try {
+            return FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not open region write journal " + journalFile, e);
+            return null;
+        }
+    }
+
+    private static void appendLine(FileChannel journal, String line) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not write to region write journal", e);
+        }
+    }
+
+    /**
+     * Adds the region files in a journal to {@code written}.
+     *
+     * @return The last line if it marks a clean stop, an empty string otherwise, or null if there is no journal
+     */
+    private static String readJournal(Path journalFile, Set<String> written) {
+        if (Files.notExists(journalFile)) {
+            return null;
+        }
+        String last = "";
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(STOPPED_PREFIX)) {
+                    last = line;
+                } else if (!line.isEmpty()) {
+                    written.add(line);
+                    last = "";
+                }
+            }
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.warn("Could not read region write journal {}: {}", journalFile, e.toString());
+            return STOPPED_PREFIX;
+        }
+        return last;
+    }
+
+    private static Map<String, DirectoryScan.ScannedFile> readListing(Path listingFile) {
+        if (Files.notExists(listingFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(listingFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, DirectoryScan.ScannedFile> files = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String relPath = in.readUTF();
+                files.put(relPath, new DirectoryScan.ScannedFile(worldRoot.resolve(relPath), relPath, in.readLong(), in.readLong()));
+            }
+            return files;
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.warn("Ignoring unreadable region file listing {}: {}", listingFile, e.toString());
+            return null;
+        }
+    }
+
+    private static void writeListing(Path listingFile, Collection<DirectoryScan.ScannedFile> files) throws IOException {
+        Path tmp = listingFile.resolveSibling(LISTING_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (DirectoryScan.ScannedFile file : files) {
+                out.writeUTF(file.relPath());
+                out.writeLong(file.size());
+                out.writeLong(file.lastModified());
+            }
+        }
+        Files.move(tmp, listingFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * level.dat is written on every save, so a different modified time means another server saved the world.
+     */
+    private static long getLevelDatModified() {
+        try {
+            return Files.getLastModifiedTime(worldRoot.resolve("level.dat")).toMillis();
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.error("Could not close region write journal", e);
+            }
+        }
+    }
+
+    /**
+     * Chunk writes between two scans.
+     *
+     * @param chunks Bitmap of the written chunks of each region file, by path relative to the world folder
+     * @param journaled Region files already in the journal
+     * @param journal Journal file, or null if it can't be written
+     */
+    private record Generation(Map<String, AtomicLongArray> chunks, Set<String> journaled, FileChannel journal) {
+        private Generation(FileChannel journal) {
+            this(new ConcurrentHashMap<>(), ConcurrentHashMap.newKeySet(), journal);
+        }
+    }
+}
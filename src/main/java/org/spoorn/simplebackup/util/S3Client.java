@@ -0,0 +1,249 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * The multipart upload requests of the S3 API, signed with AWS Signature Version 4.  Works with AWS S3 and S3
+ * compatible stores such as MinIO, without pulling the AWS SDK into the mod.
+ */
+public class S3Client {
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final HexFormat HEX = HexFormat.of();
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>(.*?)</UploadId>");
+    private static final Pattern ERROR_CODE = Pattern.compile("<Code>(.*?)</Code>");
+    private static final int MAX_ATTEMPTS = 4;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+    private final URI endpoint;
+    private final String bucket;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+
+    public S3Client(URI endpoint, String bucket, String region, String accessKey, String secretKey, boolean pathStyle) {
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.pathStyle = pathStyle;
+    }
+
+    /**
+     * @return Client for the object store in the config, or null if backups aren't uploaded
+     */
+    public static S3Client fromConfig() {
+        ModConfig config = ModConfig.getInstance();
+        if (config.s3Endpoint == null || config.s3Endpoint.isBlank()) {
+            return null;
+        }
+        String accessKey = config.s3AccessKey.isEmpty() ? System.getenv("AWS_ACCESS_KEY_ID") : config.s3AccessKey;
+        String secretKey = config.s3SecretKey.isEmpty() ? System.getenv("AWS_SECRET_ACCESS_KEY") : config.s3SecretKey;
+        if (config.s3Bucket.isBlank() || accessKey == null || secretKey == null) {
+            SimpleBackup.LOGGER.error("SimpleBackup config 's3Endpoint' is set, but 's3Bucket' or the access keys are missing, backups will not be uploaded");
+            return null;
+        }
+        String endpoint = config.s3Endpoint.endsWith("/") ? config.s3Endpoint.substring(0, config.s3Endpoint.length() - 1) : config.s3Endpoint;
+        return new S3Client(URI.create(endpoint), config.s3Bucket, config.s3Region, accessKey, secretKey, config.s3PathStyle);
+    }
+
+    /**
+     * @return s3://bucket/key, for logs
+     */
+    public String describe(String key) {
+        return "s3://" + this.bucket + "/" + key;
+    }
+
+    /**
+     * @return Upload ID of the new multipart upload
+     */
+    public String createMultipartUpload(String key) throws IOException {
+        String body = send("POST", key, Map.of("uploads", ""), new byte[0], 0);
+        Matcher matcher = UPLOAD_ID.matcher(body);
+        if (!matcher.find()) {
+            throw new IOException("No upload ID in the response to creating a multipart upload of " + describe(key));
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * @param partNumber From 1 to 10000
+     * @return ETag of the part, needed to complete the upload
+     */
+    public String uploadPart(String key, String uploadId, int partNumber, byte[] data, int length) throws IOException {
+        HttpResponse<String> response = sendForResponse("PUT", key, Map.of("partNumber", Integer.toString(partNumber), "uploadId", uploadId), data, length);
+        return response.headers().firstValue("ETag")
+                .orElseThrow(() -> new IOException("No ETag in the response to uploading part " + partNumber + " of " + describe(key)));
+    }
+
+    public void completeMultipartUpload(String key, String uploadId, List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(etags.get(i)).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        String response = send("POST", key, Map.of("uploadId", uploadId), body, body.length);
+        // Completing can fail after the 200 status was sent, in which case the body is an error
+        if (response.contains("<Error>")) {
+            throw new IOException("Could not complete multipart upload of " + describe(key) + ": " + getErrorCode(response));
+        }
+    }
+
+    public void abortMultipartUpload(String key, String uploadId) throws IOException {
+        send("DELETE", key, Map.of("uploadId", uploadId), new byte[0], 0);
+    }
+
+    private String send(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        return sendForResponse(method, key, query, body, length).body();
+    }
+
+    /**
+     * Sends a request, retrying with backoff on connection errors, throttling and server errors.
+     */
+    private HttpResponse<String> sendForResponse(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        String payloadHash = HEX.formatHex(sha256(body, length));
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                try {
+                    Thread.sleep(500L << attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while uploading " + describe(key), e);
+                }
+            }
+
+            HttpResponse<String> response;
+            try {
+                response = this.http.send(buildRequest(method, key, query, body, length, payloadHash), HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                failure = e;
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading " + describe(key), e);
+            }
+
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                return response;
+            }
+            failure = new IOException(method + " " + describe(key) + " failed with status " + status + ": " + getErrorCode(response.body()));
+            if (status != 429 && status / 100 != 5) {
+                break;
+            }
+        }
+        throw failure;
+    }
+
+    private HttpRequest buildRequest(String method, String key, Map<String, String> query, byte[] body, int length, String payloadHash) {
+        String host = this.pathStyle ? this.endpoint.getRawAuthority() : this.bucket + "." + this.endpoint.getRawAuthority();
+        String path = (this.pathStyle ? "/" + encode(this.bucket, false) : "") + "/" + encode(key, true);
+        StringBuilder queryString = new StringBuilder();
+        for (Map.Entry<String, String> param : new TreeMap<>(query).entrySet()) {
+            queryString.append(queryString.isEmpty() ? "" : "&").append(encode(param.getKey(), false)).append('=').append(encode(param.getValue(), false));
+        }
+
+        String amzDate = AMZ_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + this.region + "/" + SERVICE + "/aws4_request";
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = method + "\n" + path + "\n" + queryString + "\n"
+                + "host:" + host + "\n" + "x-amz-content-sha256:" + payloadHash + "\n" + "x-amz-date:" + amzDate + "\n\n"
+                + signedHeaders + "\n" + payloadHash;
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + HEX.formatHex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8), -1));
+        String signature = HEX.formatHex(hmac(getSigningKey(date), stringToSign));
+
+        URI uri = URI.create(this.endpoint.getScheme() + "://" + host + path + (queryString.isEmpty() ? "" : "?" + queryString));
+        return HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", ALGORITHM + " Credential=" + this.accessKey + "/" + scope
+                        + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature)
+                .method(method, length > 0 ? HttpRequest.BodyPublishers.ofByteArray(body, 0, length) : HttpRequest.BodyPublishers.noBody())
+                .build();
+    }
+
+    private byte[] getSigningKey(String date) {
+        byte[] key = hmac(("AWS4" + this.secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, this.region);
+        key = hmac(key, SERVICE);
+        return hmac(key, "aws4_request");
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * @param length Number of bytes to hash, or -1 for all of them
+     */
+    private static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length < 0 ? data.length : length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * URI encodes everything except the unreserved characters, as required by Signature Version 4.
+     */
+    static String encode(String value, boolean keepSlashes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(HEX.withUpperCase().toHexDigits(b));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String getErrorCode(String body) {
+        Matcher matcher = ERROR_CODE.matcher(body);
+        return matcher.find() ? matcher.group(1) : body.length() > 200 ? body.substring(0, 200) : body;
+    }
+}
@@ -0,0 +1,191 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Streams a backup into a multipart upload.  Written data fills a part sized buffer, and each full buffer is uploaded
+ * on its own virtual thread while the next one fills, so compression and uploading overlap.  Only a fixed number of
+ * buffers exist, so writes block while that many parts are still uploading.
+ *
+ * <p>{@link #complete()} finishes the upload.  Closing the stream without completing it aborts the upload, so the
+ * store doesn't keep the parts of a failed backup.
+ */
+public class S3MultipartUpload extends OutputStream {
+    private static final int MIN_PART_SIZE = 5 << 20;
+    private static final int MAX_PARTS = 10000;
+
+    private final S3Client client;
+    private final String key;
+    private final String uploadId;
+    private final int partSize;
+    private final int maxBuffers;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final List<Future<String>> parts = new ArrayList<>();
+    private int allocatedBuffers = 0;
+    private byte[] buffer;
+    private int position = 0;
+    private long size = 0;
+    private boolean completed = false;
+    private boolean closed = false;
+
+    private S3MultipartUpload(S3Client client, String key, String uploadId, int partSize, int maxInFlightParts) {
+        this.client = client;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.partSize = partSize;
+        // One buffer is filled while the others upload
+        this.maxBuffers = maxInFlightParts + 1;
+        this.freeBuffers = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    /**
+     * Starts a multipart upload with the part size and number of parts in flight from the config.
+     */
+    public static S3MultipartUpload start(S3Client client, String key) throws IOException {
+        int partSize = (int) Math.max(MIN_PART_SIZE, Math.min(Integer.MAX_VALUE - 8, (long) ModConfig.getInstance().s3PartSizeMB << 20));
+        int maxInFlightParts = Math.max(1, ModConfig.getInstance().s3MaxInFlightParts);
+        return new S3MultipartUpload(client, key, client.createMultipartUpload(key), partSize, maxInFlightParts);
+    }
+
+    /**
+     * @return Number of bytes written so far
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        this.buffer[this.position++] = (byte) b;
+        this.size++;
+        if (this.position == this.partSize) {
+            uploadBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureBuffer();
+            int n = Math.min(len, this.partSize - this.position);
+            System.arraycopy(b, off, this.buffer, this.position, n);
+            this.position += n;
+            this.size += n;
+            off += n;
+            len -= n;
+            if (this.position == this.partSize) {
+                uploadBuffer();
+            }
+        }
+    }
+
+    /**
+     * Uploads the last part and completes the upload, waiting for every part to finish uploading.
+     */
+    public void complete() throws IOException {
+        if (this.closed || this.completed) {
+            throw new IOException("Upload of " + this.client.describe(this.key) + " is already closed");
+        }
+        // An empty backup is still uploaded as one empty part
+        if (this.position > 0 || this.parts.isEmpty()) {
+            ensureBuffer();
+            uploadBuffer();
+        }
+        List<String> etags = new ArrayList<>(this.parts.size());
+        for (Future<String> part : this.parts) {
+            etags.add(await(part));
+        }
+        this.client.completeMultipartUpload(this.key, this.uploadId, etags);
+        this.completed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (!this.completed) {
+            for (Future<String> part : this.parts) {
+                part.cancel(true);
+            }
+            try {
+                this.client.abortMultipartUpload(this.key, this.uploadId);
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.error("Could not abort the upload of " + this.client.describe(this.key)
+                        + ", its parts stay in the bucket until a lifecycle rule removes incomplete multipart uploads", e);
+            }
+        }
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (this.closed || this.completed) {
+            throw new IOException("Upload of " + this.client.describe(this.key) + " is already closed");
+        }
+        if (this.buffer != null) {
+            return;
+        }
+        this.buffer = this.freeBuffers.poll();
+        if (this.buffer == null && this.allocatedBuffers < this.maxBuffers) {
+            this.allocatedBuffers++;
+            this.buffer = new byte[this.partSize];
+        } else if (this.buffer == null) {
+            // Every buffer is uploading, so wait for one to finish
+            try {
+                this.buffer = this.freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for parts of " + this.client.describe(this.key) + " to upload");
+            }
+        }
+        this.position = 0;
+    }
+
+    private void uploadBuffer() throws IOException {
+        // Stop compressing as soon as a part failed, instead of after the whole backup
+        for (Future<String> part : this.parts) {
+            if (part.isDone()) {
+                await(part);
+            }
+        }
+        int partNumber = this.parts.size() + 1;
+        if (partNumber > MAX_PARTS) {
+            throw new IOException("Backup is larger than " + MAX_PARTS + " parts, increase s3PartSizeMB to upload it");
+        }
+
+        byte[] data = this.buffer;
+        int length = this.position;
+        this.buffer = null;
+        this.parts.add(BackupExecutors.getIoExecutor().submit(() -> {
+            try {
+                return this.client.uploadPart(this.key, this.uploadId, partNumber, data, length);
+            } finally {
+                this.freeBuffers.add(data);
+            }
+        }));
+    }
+
+    private String await(Future<String> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parts of " + this.client.describe(this.key) + " to upload");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException("Could not upload part of " + this.client.describe(this.key), e.getCause());
+        }
+    }
+}
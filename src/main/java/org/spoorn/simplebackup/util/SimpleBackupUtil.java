@@ -1,27 +1,24 @@
 package org.spoorn.simplebackup.util;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
 
-import org.apache.commons.io.filefilter.NotFileFilter;
-import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.spoorn.simplebackup.BackupExecutors;
 import org.spoorn.simplebackup.SimpleBackup;
-import org.spoorn.simplebackup.compressors.LZ4Compressor;
-import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.compressors.Compressor;
+import org.spoorn.simplebackup.compressors.Compressors;
 import org.spoorn.simplebackup.config.ModConfig;
 
 import net.fabricmc.loader.api.FabricLoader;
@@ -32,10 +29,15 @@ public class SimpleBackupUtil {
     public static final String ZIP_FORMAT = "ZIP";
     public static final String DIRECTORY_FORMAT = "DIRECTORY";
     public static final String LZ4_FORMAT = "LZ4";
+    public static final String INCREMENTAL_FORMAT = "INCREMENTAL";
+    public static final String ZSTD_FORMAT = "ZSTD";
+    public static final String NBT_FORMAT = "NBT";
     public static final Set<String> FILES_TO_SKIP_COPY = Set.of(
-        "session.lock"
+        "session.lock",
+        RegionWriteTracker.LISTING_FILE,
+        RegionWriteTracker.JOURNAL_FILE,
+        RegionWriteTracker.JOURNAL_FILE + ".old"
     );
-    private static final NotFileFilter EXCLUDE_FILES = new NotFileFilter(new SuffixFileFilter(".tmp"));
 
     public static void createDirectoryFailSafe(Path path) {
         try {
@@ -62,224 +64,298 @@ public class SimpleBackupUtil {
         }
     }
 
-    public static long fileCount(Path path) throws IOException {
-        return Files.walk(path)
-                .filter(p -> !p.toFile().isDirectory())
-                .count();
+    public static boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat) {
+        return backup(source, worldFolderName, timeStr, backupFormat, Set.of());
     }
 
-    public static long getDirectorySize(Path path) throws IOException {
-        AtomicLong size = new AtomicLong();
-
-        // Ignores failed files, should be fine for our use case
-        Files.walkFileTree(path, new SimpleFileVisitor<>() {
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                size.addAndGet(attrs.size());
-                return FileVisitResult.CONTINUE;
-            }
-        });
-
-        return size.get();
+    /**
+     * @param skippedDimensions Dimensions to leave out of the backup, from {@link BackupPolicy#getDimensionsNotDue}
+     */
+    public static boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat, Set<String> skippedDimensions) {
+        return backup(source, worldFolderName, timeStr, backupFormat, skippedDimensions, new BackupMetrics.Run(timeStr, backupFormat));
     }
 
     /**
-     * Scans through a directory and finds the file count intervals, meaning the file number while walking through the
-     * path, that split all the files evenly by size.  For balancing multi-threaded processing of a directory recursively.
-     *
-     * @param path Path to process
-     * @param numIntervals Number of intervals
-     * @return long[] that holds the file number indexes to split at
-     * @throws IOException If processing files fail
+     * @param skippedDimensions Dimensions to leave out of the backup, from {@link BackupPolicy#getDimensionsNotDue}.  They
+     *                          are recorded in the catalog, so retention and restores know the backup doesn't have them
+     * @param metrics Records the time of the scan and compress phases, and the sizes of the world and the backup
      */
-    public static long[] getFileCountIntervalsFromSize(Path path, int numIntervals) throws IOException {
-        long[] res = new long[numIntervals];
-        // index of res, file count, current size, previous size
-        long[] state = {1, 0, 0, 0};
-        long sliceLength = getDirectorySize(path) / numIntervals;
-
-        Files.walkFileTree(path, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (state[0] < res.length) {
-                    state[2] += attrs.size();
-                    if (state[3] / sliceLength < state[2] / sliceLength) {
-                        res[(int) state[0]] = state[1];
-                        state[0]++;
-                    }
-                    state[3] = state[2];
-                    state[1]++;
-                    return FileVisitResult.CONTINUE;
-                } else {
-                    return FileVisitResult.TERMINATE;
-                }
+    public static boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat, Set<String> skippedDimensions,
+                                 BackupMetrics.Run metrics) {
+        long start = System.nanoTime();
+        Predicate<String> filter = BackupPolicy.createFilter(skippedDimensions);
+        // Walk the world folder once, the scan is shared by the space check and the backup format
+        DirectoryScan scan;
+        try {
+            scan = RegionWriteTracker.scan(source);
+            if (filter != null) {
+                scan = scan.filter(filter);
             }
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not scan world folder " + source, e);
+            return false;
+        } finally {
+            metrics.addPhase(BackupMetrics.Phase.SCAN, start);
+        }
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                state[1]++;
-                return super.visitFileFailed(file, exc);
+        Compressor compressor = Compressors.get(backupFormat);
+        if (compressor == null) {
+            SimpleBackup.LOGGER.error("SimpleBackup config 'backupFormat'={} is not supported!", backupFormat);
+            return false;
+        }
+
+        S3Client s3 = S3Client.fromConfig();
+        if (s3 != null) {
+            if (compressor.supportsStreaming()) {
+                return upload(s3, compressor, scan, timeStr, metrics);
             }
-        });
-        return res;
-    }
+            SimpleBackup.LOGGER.warn("{} backups can't be uploaded while they are compressed, writing the backup to {} instead", compressor.getFormat(), getBackupPath());
+        }
 
-    public static boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat) {
-        if (!checkAvailableSpace(source)) {
+        if (!SpaceEstimator.checkAvailableSpace(SpaceEstimator.estimateBackupSize(backupFormat, scan.getTotalSize()))) {
             return false;
         }
 
-        if (ZIP_FORMAT.equals(backupFormat)) {
-            Path destination = getBackupPath().resolve(timeStr);
-            String destinationFile = destination + ZipCompressor.ZIP_EXTENSION;
-            SimpleBackup.LOGGER.info("Backing up world [{}] to {}", source, destinationFile);
-            if (Files.exists(Path.of(destinationFile))) {
-                SimpleBackup.LOGGER.error("Backup at {} already exists!  Skipping...", destinationFile);
-            }
-            return ZipCompressor.zip(source.toString(), destination.toString());
-        } else if (LZ4_FORMAT.equals(backupFormat)) {
-            Path destination = getBackupPath().resolve(timeStr);
-            String destinationFile = destination + LZ4Compressor.TAR_LZ4_EXTENSION;
-            SimpleBackup.LOGGER.info("Backing up world [{}] to {}", source, destinationFile);
-            if (Files.exists(Path.of(destinationFile))) {
-                SimpleBackup.LOGGER.error("Backup at {} already exists!  Skipping...", destinationFile);
+        Path destination = compressor.getBackupFile(getBackupPath(), timeStr);
+        SimpleBackup.LOGGER.info("Backing up world [{}] to {}", source, destination);
+        if (Files.exists(destination)) {
+            SimpleBackup.LOGGER.error("Backup at {} already exists!  Skipping...", destination);
+        }
+        File partition = getBackupPath().toFile();
+        long usableSpaceBefore = partition.getUsableSpace();
+        // A resumed backup only writes what the interrupted one didn't, so it says little about how big backups are
+        boolean resuming = BackupCheckpoint.hasInterrupted(getBackupPath(), compressor.getFormat());
+        boolean success;
+        BackupManifest manifest = new BackupManifest();
+        long compressStart = System.nanoTime();
+        long fsyncNanos = metrics.getPhaseNanos(BackupMetrics.Phase.FSYNC);
+        BackupPruner.SHARED_DATA_LOCK.readLock().lock();
+        try {
+            // The compressor publishes the backup itself, which adds to the fsync phase of the current run
+            DirectoryScan files = scan;
+            Callable<Boolean> compress = () -> metrics.call(() -> compressor.compress(files, getBackupPath(), timeStr, manifest));
+            success = compressor.compressesOnCallingThread(files) ? BackupExecutors.compute(compress) : compress.call();
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not back up world [" + source + "] to " + destination, e);
+            success = false;
+        } finally {
+            BackupPruner.SHARED_DATA_LOCK.readLock().unlock();
+            // Publishing is counted in the fsync phase instead
+            metrics.addPhase(BackupMetrics.Phase.COMPRESS, compressStart + metrics.getPhaseNanos(BackupMetrics.Phase.FSYNC) - fsyncNanos);
+        }
+        if (success) {
+            long bytesUsed = usableSpaceBefore - partition.getUsableSpace();
+            long size = recordInCatalog(destination, compressor.getFormat(), scan, bytesUsed, (System.nanoTime() - start) / 1_000_000, manifest,
+                    skippedDimensions);
+            if (!resuming) {
+                SpaceEstimator.recordBackup(backupFormat, scan.getTotalSize(), size, hasExactSize(destination, compressor.getFormat()));
             }
-            return LZ4Compressor.compress(source.toString(), destination.getParent().toString(), timeStr);
-        } else if (DIRECTORY_FORMAT.equals(backupFormat)) {
-            Path destination = getBackupPath().resolve(Path.of(timeStr, worldFolderName));
-            SimpleBackup.LOGGER.info("Backing up world [{}] to {}", source, destination);
-            if (Files.exists(destination)) {
-                SimpleBackup.LOGGER.error("Backup at {} already exists!  Skipping...", destination);
+            metrics.setSizes(scan.getTotalSize(), scan.getFileCount(), size);
+        }
+        return success;
+    }
+
+    /**
+     * Streams the backup into a multipart upload, so it is never written to the local disk.  Uploaded backups are not
+     * in the catalog, as they aren't in the backup folder.
+     */
+    private static boolean upload(S3Client s3, Compressor compressor, DirectoryScan scan, String timeStr, BackupMetrics.Run metrics) {
+        String key = ModConfig.getInstance().s3Prefix + timeStr + compressor.getExtension();
+        SimpleBackup.LOGGER.info("Backing up world [{}] to {}", scan.getRoot(), s3.describe(key));
+        long compressStart = System.nanoTime();
+        try (S3MultipartUpload upload = S3MultipartUpload.start(s3, key)) {
+            if (!BackupExecutors.compute(() -> compressor.compress(scan, upload))) {
+                return false;
             }
-            createDirectoryFailSafe(destination);
-            return copyDirectoriesFailSafe(source, destination);
-        } else {
-            SimpleBackup.LOGGER.error("SimpleBackup config 'backupFormat'={} is not supported!", backupFormat);
+            upload.complete();
+            metrics.setSizes(scan.getTotalSize(), scan.getFileCount(), upload.getSize());
+            SimpleBackup.LOGGER.info("Uploaded {} bytes to {}", upload.getSize(), s3.describe(key));
+            return true;
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not upload backup to " + s3.describe(key), e);
             return false;
+        } finally {
+            metrics.addPhase(BackupMetrics.Phase.COMPRESS, compressStart);
         }
     }
 
-    private static boolean checkAvailableSpace(Path source) {
-        File partition = getBackupPath().toFile();
-        double availableDiskSpace = ((double) partition.getUsableSpace()) / partition.getTotalSpace() * 100;
-        if (availableDiskSpace < ModConfig.getInstance().percentageAvailableDiskSpaceRequirement) {
-            SimpleBackup.LOGGER.error(String.format("Not enough available disk space to create backup! Disk space available: %.2f%%.  " +
-                    "Config's percentageAvailableDiskSpaceRequirement: %d", availableDiskSpace, ModConfig.getInstance().percentageAvailableDiskSpaceRequirement));
-            return false;
+    /**
+     * @return true if the backup is a single file whose size is the disk space it takes, rather than a folder or an
+     *         incremental manifest sharing data with other backups
+     */
+    private static boolean hasExactSize(Path backupFile, String format) {
+        return Files.isRegularFile(backupFile) && !INCREMENTAL_FORMAT.equals(format);
+    }
+
+    /**
+     * Records the backup in the catalog and writes its checksums next to it.
+     *
+     * @param manifest Checksums computed while the backup was written
+     * @param skippedDimensions Dimensions the backup left out
+     * @return Size of the backup as recorded in the catalog
+     */
+    private static long recordInCatalog(Path backupFile, String format, DirectoryScan scan, long bytesUsed, long durationMillis,
+                                        BackupManifest manifest, Set<String> skippedDimensions) {
+        String name = backupFile.getFileName().toString();
+        // Folders and incremental manifests share data with earlier backups, so they only take the space of what they added
+        long size = Math.max(0, bytesUsed);
+        if (hasExactSize(backupFile, format)) {
+            try {
+                size = Files.size(backupFile);
+            } catch (IOException e) {
+                SimpleBackup.LOGGER.warn("Could not read the size of backup {}: {}", backupFile, e.toString());
+            }
         }
+        BackupManifest.FileChecksum archive = manifest.getArchive();
+        BackupCatalog.put(new BackupCatalog.Entry(name, format, BackupCatalog.parseCreatedMillis(name, System.currentTimeMillis()), size,
+                scan.getTotalSize(), scan.getFileCount(), durationMillis, archive != null ? BackupManifest.toHex(archive.hash()) : null,
+                Set.copyOf(skippedDimensions)));
 
-        File sourceFile = source.toFile();
-        // Make sure we have enough space for the backup itself.  Adds a buffer of 5% as ZIP files could be larger in size
-        if (sourceFile.length() > (partition.getTotalSpace() - partition.getUsableSpace()) * 1.05) {
-            SimpleBackup.LOGGER.error(String.format("Backup size may exceed the available disk space!  Please clear out your disk space before generating\n" +
-                    "another backup.  Disk space available: %.2f%%.  You need at least %d bytes free before we can make more backups.",
-                    availableDiskSpace, sourceFile.length()));
-            return false;
+        if (!manifest.isEmpty()) {
+            manifest.writeFailSafe(backupFile);
         }
-        return true;
+        return size;
     }
 
-    public static boolean deleteStaleBackupFiles() {
-        File[] backupFiles = getBackupPath().toFile().listFiles((FilenameFilter) EXCLUDE_FILES);
-        if (backupFiles != null) {
-            int numBackupFiles = backupFiles.length;
-            AtomicBoolean errorWhileSorting = new AtomicBoolean(false);
-            int maxBackupsTokeep = ModConfig.getInstance().maxBackupsToKeep;
-            if (numBackupFiles >= maxBackupsTokeep) {
-                Arrays.sort(backupFiles, Comparator.comparingLong(file -> {
-                    try {
-                        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
-                    } catch (IOException e) {
-                        SimpleBackup.LOGGER.error("Error while sorting backup files by creationTime", e);
-                        errorWhileSorting.set(true);
-                        return 0;
-                    }
-                }));
+    /**
+     * Deletes a file, or a directory and everything in it.
+     *
+     * @param path File or directory to delete
+     * @throws IOException If a file could not be deleted
+     */
+    public static void deleteRecursively(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
 
-                if (errorWhileSorting.get()) {
-                    return false;
-                }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
             }
-            while (numBackupFiles > maxBackupsTokeep) {
-                try {
-                    Path fileToDelete = backupFiles[backupFiles.length - numBackupFiles].toPath();
-                    SimpleBackup.LOGGER.info("Deleting backup at [{}] as we have more backups than maxBackupsToKeep={}", fileToDelete, maxBackupsTokeep);
-                    Files.walkFileTree(fileToDelete, new SimpleFileVisitor<>() {
 
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            Files.delete(file);
-                            return FileVisitResult.CONTINUE;
-                        }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
 
-                        @Override
-                        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                            Files.delete(file);
-                            return FileVisitResult.CONTINUE;
-                        }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 
-                        @Override
-                        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                            Files.delete(dir);
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                    numBackupFiles--;
-                } catch (Exception e) {
-                    SimpleBackup.LOGGER.error("Could not check if number of backup files exceeds the maxBackupsToKeep", e);
-                    return false;
+    /**
+     * Renames a finished backup from its temporary name to its final name, after flushing it to disk, so a backup under
+     * its final name is always complete even if the server or machine dies while it is written.  Folders are not
+     * flushed here, their files are flushed as they are copied.
+     *
+     * @param tmp Backup file or folder under its temporary name, on the same file system as the destination
+     * @param destination Final path of the backup
+     */
+    public static void publish(Path tmp, Path destination) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (Files.isRegularFile(tmp)) {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
                 }
             }
+            Files.move(tmp, destination, StandardCopyOption.ATOMIC_MOVE);
+            // Make the rename itself durable.  Folders can't be opened on Windows, where the rename is already durable
+            try (FileChannel folder = FileChannel.open(destination.getParent(), StandardOpenOption.READ)) {
+                folder.force(true);
+            } catch (IOException e) {
+                // Not supported on this platform
+            }
+        } finally {
+            BackupMetrics.addToCurrentRun(BackupMetrics.Phase.FSYNC, start);
         }
-        return true;
     }
 
-    private static boolean copyDirectoriesFailSafe(Path source, Path destination) {
+    /**
+     * Copies a directory recursively.
+     *
+     * @param source Directory to copy
+     * @param destination Directory to copy to
+     * @param linkSource If not null, files in this directory with the same relative path, size and last modified time
+     *                   as the source file are hard linked into the destination instead of copied
+     * @return true if the copy was successful
+     */
+    public static boolean copyDirectoriesFailSafe(Path source, Path destination, Path linkSource) {
         try {
-            final long fileCount = fileCount(source);
-            final int interval = ModConfig.getInstance().intervalPercentageToLogBackupProgress;
-            AtomicReference<Integer> atomicCount = new AtomicReference<>(0);
-            Files.walkFileTree(source, new SimpleFileVisitor<>() {
-
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                        throws IOException {
-                    Files.createDirectories(destination.resolve(source.relativize(dir)));
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                        throws IOException {
-                    Path dest = destination.resolve(source.relativize(file));
-                    if (!FILES_TO_SKIP_COPY.contains(file.getFileName().toString()) && Files.notExists(dest)) {
-                        Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES);
+            return copyDirectoriesFailSafe(DirectoryScan.scan(source), destination, linkSource, null);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error(String.format("Could not copy directory from source=%s to destination=%s", source, destination), e);
+            return false;
+        }
+    }
 
-                        int count = atomicCount.get();  // Not thread safe
-                        int prevPercent = (int) ((float) count / fileCount * 100);
-                        count++;
-                        int currPercent = (int) ((float) count / fileCount * 100);
-                        if (prevPercent / interval < currPercent / interval) {
-                            SimpleBackup.LOGGER.info("Backup progress: {}%", currPercent);
-                        }
-                        atomicCount.set(count);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-            });
+    /**
+     * Copies a scanned directory recursively, using up to {@code numThreads} files in flight at once.
+     *
+     * @param source Scan of the directory to copy
+     * @param destination Directory to copy to
+     * @param linkSource If not null, files in this directory that are unchanged are hard linked into the destination
+     *                   instead of copied
+     * @param unchangedFiles If not null, a scan of the source against the file index describing linkSource, used to
+     *                       find unchanged files without reading the attributes of every file in linkSource.  Otherwise
+     *                       files with the same relative path, size and last modified time are unchanged
+     * @return true if the copy was successful
+     */
+    public static boolean copyDirectoriesFailSafe(DirectoryScan source, Path destination, Path linkSource, FileIndex.Scan unchangedFiles) {
+        return copyDirectoriesFailSafe(source, destination, linkSource, unchangedFiles, null);
+    }
 
+    /**
+     * Copies a scanned directory recursively into a backup's staging folder, checkpointing the files as they are
+     * copied and keeping those an interrupted backup already copied.
+     *
+     * @param checkpoint Checkpoint of the staging folder the destination is in, or null to copy without checkpoints
+     * @return true if the copy was successful
+     * @see #copyDirectoriesFailSafe(DirectoryScan, Path, Path, FileIndex.Scan)
+     */
+    public static boolean copyDirectoriesFailSafe(DirectoryScan source, Path destination, Path linkSource, FileIndex.Scan unchangedFiles,
+                                                  BackupCheckpoint checkpoint) {
+        try {
+            long linked = new DirectoryCopier(source, destination, linkSource, unchangedFiles, checkpoint).copy();
+            if (linkSource != null) {
+                SimpleBackup.LOGGER.info("Hard linked {} unchanged files out of {}", linked, source.getFileCount());
+            }
             return true;
         } catch (Exception e) {
-            SimpleBackup.LOGGER.error(String.format("Could not copy directory from source=%s to destination=%s", source, destination), e);
+            SimpleBackup.LOGGER.error(String.format("Could not copy directory from source=%s to destination=%s", source.getRoot(), destination), e);
+            return false;
+        }
+    }
+
+    static boolean isUnchanged(Path previousFile, DirectoryScan.ScannedFile file) {
+        try {
+            BasicFileAttributes previousAttrs = Files.readAttributes(previousFile, BasicFileAttributes.class);
+            return previousAttrs.isRegularFile() && previousAttrs.size() == file.size()
+                    // Copied files may keep a less precise modified time than the original, so only compare millis
+                    && previousAttrs.lastModifiedTime().toMillis() == file.lastModified();
+        } catch (IOException e) {
             return false;
         }
     }
 
+    /**
+     * Deletes what a backup interrupted by the server stopping left behind.  Backups are only renamed to their final
+     * name once complete, so this deletes the temporary file or folder next to it.  ZIP and DIRECTORY backups keep their
+     * staging folder, so the next backup resumes from their {@link BackupCheckpoint}.
+     *
+     * @param backupPath Final path of the interrupted backup
+     */
     public static void cleanupFailedBackup(Path backupPath) {
+        Path tmp = backupPath.resolveSibling(backupPath.getFileName() + ".tmp");
+        if (!Files.exists(tmp)) {
+            return;
+        }
         try {
-            SimpleBackup.LOGGER.info("Attempting to cleanup interrupted backup at {}", backupPath);
-            Files.deleteIfExists(backupPath);
+            SimpleBackup.LOGGER.info("Attempting to cleanup interrupted backup at {}", tmp);
+            deleteRecursively(tmp);
         } catch (Exception e) {
             SimpleBackup.LOGGER.error("Could not cleanup interrupted backup process", e);
         }
@@ -0,0 +1,185 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Estimates how much disk space a backup will take before it is created, so a backup fails or old backups are pruned
+ * up front instead of the disk filling up part way through.
+ *
+ * <p>Each format's estimate is the world size times a ratio learned from the disk space its previous backups actually
+ * used, which accounts for compression, hard links and deduplication.  Backups that are a single file are measured by
+ * their size.  Folders and incremental backups share data with earlier backups, so they are measured by the drop in
+ * free space while they were created, which other writes to the disk can skew.  Until a format has created a backup,
+ * it is assumed to take as much space as the world.  The ratios are kept in a file in the backup folder.
+ */
+public final class SpaceEstimator {
+    private static final String RATIOS_FILE = ".compression-ratios";
+    // Room on top of the estimate, as backups are first written to temporary files and the world may grow meanwhile
+    private static final double SAFETY_MARGIN = 1.1;
+    // Weight of the newest backup in the learned ratio, so it follows the world as it changes without jumping around
+    private static final double LEARNING_RATE = 0.5;
+    // Small worlds are dominated by noise from other writes to the disk
+    private static final long MIN_WORLD_SIZE_TO_LEARN = 1 << 20;
+    // Lowest ratio learned from the drop in free space, so a drop hidden by files deleted meanwhile can't make the
+    // estimate vanish
+    private static final double MIN_MEASURED_RATIO = 0.01;
+    private static Properties ratios;
+
+    private SpaceEstimator() {
+    }
+
+    /**
+     * @param format Backup format
+     * @param worldSize Total size of the world files in bytes
+     * @return Estimated disk space in bytes the backup will use, including a safety margin
+     */
+    public static long estimateBackupSize(String format, long worldSize) {
+        return (long) Math.ceil(worldSize * getRatio(format) * SAFETY_MARGIN);
+    }
+
+    /**
+     * @return Fraction of the world size backups in the format use on disk
+     */
+    public static synchronized double getRatio(String format) {
+        try {
+            return Math.max(0, Double.parseDouble(getRatios().getProperty(format.toUpperCase(Locale.ROOT), "1")));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Updates the learned ratio of a format after a successful backup.
+     *
+     * @param format Backup format
+     * @param worldSize Total size of the world files in bytes
+     * @param bytesUsed Disk space the backup used
+     * @param exact True if bytesUsed is the size of the backup file, false if it is the drop in usable space while the
+     *              backup was created
+     */
+    public static synchronized void recordBackup(String format, long worldSize, long bytesUsed, boolean exact) {
+        if (worldSize < MIN_WORLD_SIZE_TO_LEARN) {
+            return;
+        }
+        if (!exact && bytesUsed <= 0) {
+            SimpleBackup.LOGGER.debug("Not learning the {} backup size, free space did not drop while it was created", format);
+            return;
+        }
+
+        double ratio = (double) bytesUsed / worldSize;
+        if (!exact) {
+            ratio = Math.max(MIN_MEASURED_RATIO, ratio);
+        }
+        Properties properties = getRatios();
+        String key = format.toUpperCase(Locale.ROOT);
+        if (properties.containsKey(key)) {
+            ratio = LEARNING_RATE * ratio + (1 - LEARNING_RATE) * getRatio(format);
+        }
+        properties.setProperty(key, String.format(Locale.ROOT, "%.4f", ratio));
+        SimpleBackup.LOGGER.info("Backup used {} bytes for {} bytes of world files, {} backups are now estimated at {}% of the world size",
+                bytesUsed, worldSize, key, String.format(Locale.ROOT, "%.1f", ratio * 100));
+
+        Path ratiosFile = SimpleBackupUtil.getBackupPath().resolve(RATIOS_FILE);
+        Path tmp = ratiosFile.resolveSibling(RATIOS_FILE + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, "Disk space used by each backup format, as a fraction of the world size");
+            }
+            Files.move(tmp, ratiosFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            SimpleBackup.LOGGER.error("Could not save backup compression ratios to " + ratiosFile, e);
+        }
+    }
+
+    private static Properties getRatios() {
+        if (ratios == null) {
+            ratios = new Properties();
+            Path ratiosFile = SimpleBackupUtil.getBackupPath().resolve(RATIOS_FILE);
+            if (Files.exists(ratiosFile)) {
+                try (InputStream in = Files.newInputStream(ratiosFile)) {
+                    ratios.load(in);
+                } catch (IOException e) {
+                    SimpleBackup.LOGGER.error("Could not load backup compression ratios from " + ratiosFile, e);
+                }
+            }
+        }
+        return ratios;
+    }
+
+    /**
+     * Checks there is enough disk space for a backup, pruning the oldest backups first if that frees enough space and
+     * {@code pruneBackupsWhenLowOnSpace} is enabled.
+     *
+     * @param requiredBytes Estimated disk space the backup needs
+     * @return true if there is enough space to create the backup
+     */
+    public static boolean checkAvailableSpace(long requiredBytes) {
+        File partition = SimpleBackupUtil.getBackupPath().toFile();
+        long minFreeBytes = (long) (partition.getTotalSpace() * (ModConfig.getInstance().percentageAvailableDiskSpaceRequirement / 100.0));
+        long shortfall = Math.max(minFreeBytes, requiredBytes) - partition.getUsableSpace();
+        if (shortfall > 0 && ModConfig.getInstance().pruneBackupsWhenLowOnSpace) {
+            pruneOldestBackups(partition, Math.max(minFreeBytes, requiredBytes));
+        }
+
+        double availableDiskSpace = ((double) partition.getUsableSpace()) / partition.getTotalSpace() * 100;
+        if (availableDiskSpace < ModConfig.getInstance().percentageAvailableDiskSpaceRequirement) {
+            SimpleBackup.LOGGER.error(String.format("Not enough available disk space to create backup! Disk space available: %.2f%%.  " +
+                    "Config's percentageAvailableDiskSpaceRequirement: %d", availableDiskSpace, ModConfig.getInstance().percentageAvailableDiskSpaceRequirement));
+            return false;
+        }
+
+        if (requiredBytes > partition.getUsableSpace()) {
+            SimpleBackup.LOGGER.error(String.format("Backup size may exceed the available disk space!  Please clear out your disk space before generating\n" +
+                    "another backup.  Disk space available: %.2f%%.  You need at least %d bytes free before we can make more backups.",
+                    availableDiskSpace, requiredBytes));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the oldest backups that free enough space to reach the target going by their sizes in the catalog, but
+     * only if deleting every backup other than the newest would.  The newest backup and those a scheduled restore needs
+     * are never deleted.
+     */
+    private static void pruneOldestBackups(File partition, long targetUsableBytes) {
+        List<BackupCatalog.Entry> backups = new ArrayList<>(BackupCatalog.getBackups());
+        Set<String> restoring = BackupRestorer.getScheduledBackupNames();
+        backups.removeIf(backup -> restoring.contains(backup.name()));
+        if (backups.size() < 2) {
+            return;
+        }
+
+        long shortfall = targetUsableBytes - partition.getUsableSpace();
+        long prunableBytes = 0;
+        int numToDelete = 0;
+        while (numToDelete < backups.size() - 1 && prunableBytes < shortfall) {
+            prunableBytes += backups.get(numToDelete++).sizeBytes();
+        }
+        if (prunableBytes < shortfall) {
+            SimpleBackup.LOGGER.warn("Low on disk space, but deleting old backups would only free about {} of the {} bytes needed, so keeping them",
+                    prunableBytes, shortfall);
+            return;
+        }
+
+        List<BackupCatalog.Entry> toDelete = backups.subList(0, numToDelete);
+        for (BackupCatalog.Entry backup : toDelete) {
+            SimpleBackup.LOGGER.info("Deleting backup at [{}] early to make room for the next backup", backup.getPath());
+        }
+        BackupPruner.delete(toDelete);
+    }
+}
@@ -0,0 +1,186 @@
+package org.spoorn.simplebackup.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.mixin.EntityStorageAccessor;
+import org.spoorn.simplebackup.mixin.PersistentEntitySectionManagerAccessor;
+import org.spoorn.simplebackup.mixin.SectionStorageAccessor;
+import org.spoorn.simplebackup.mixin.ServerLevelAccessor;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.chunk.storage.EntityStorage;
+import net.minecraft.world.level.chunk.storage.SimpleRegionStorage;
+import net.minecraft.world.level.entity.EntityPersistentStorage;
+
+/**
+ * Captures a copy of the world folder into a staging folder, so a backup can be created from files that no longer
+ * change.  Optionally the copy is made consistent, like running /save-all then /save-off before the backup and
+ * /save-on after it.
+ *
+ * <p>When pausing saving, the server thread is only blocked to queue a save of everything and to disable saving.  Waiting for the queued
+ * chunk, entity and point of interest writes and copying the world into a staging folder happen on the calling thread
+ * while the server keeps ticking, and saving is re-enabled as soon as the copy is done.  The backup is then created
+ * from the staging folder.  Queuing the save still serializes every chunk changed since the last save on the server
+ * thread, so the stall grows with how much of the world changed, and a warning is logged when it takes longer than a
+ * tick.  Waits give up if the server stops meanwhile.
+ *
+ * <p>Files are copied rather than hard linked, as region files are written in place, so a hard link would pick up
+ * chunk writes made after saving is re-enabled.
+ */
+public record WorldSnapshot(Path path, long tickStallMillis) {
+    public static final String STAGING_FOLDER = ".staging";
+    private static final long TICK_MILLIS = 50;
+    private static final long POLL_SECONDS = 1;
+
+    /**
+     * Captures the world folder into a staging folder in the backup folder.  Must not be called from the server thread.
+     *
+     * @param server The running server
+     * @param worldSavePath World folder to capture
+     * @param backupName Name of the backup the snapshot is for
+     * @param backupFormat Format of the backup that will be created from the snapshot
+     * @param pauseSaving True to save the world and pause saving while it is copied
+     * @param filter Which files to capture by path relative to the world folder, or null to capture every file
+     * @return The snapshot, or null if the world could not be captured
+     */
+    public static WorldSnapshot capture(MinecraftServer server, Path worldSavePath, String backupName, String backupFormat, boolean pauseSaving,
+                                        Predicate<String> filter) {
+        Path stagingPath = SimpleBackupUtil.getBackupPath().resolve(STAGING_FOLDER).resolve(backupName).resolve(worldSavePath.getFileName());
+        List<ServerLevel> levels = new ArrayList<>();
+        List<Boolean> previousNoSave = new ArrayList<>();
+        List<SimpleRegionStorage> storages = new ArrayList<>();
+        boolean[] abandoned = {false};
+        long[] stallNanos = {0};
+        try {
+            long tickStallMillis = 0;
+            if (pauseSaving) {
+                CompletableFuture<Void> save = server.submit(() -> {
+                    synchronized (levels) {
+                        // The capture gave up waiting, so saving must not be paused anymore
+                        if (abandoned[0]) {
+                            return;
+                        }
+                        long start = System.nanoTime();
+                        // Queue all dirty chunks, entities and data to be written without waiting for the writes on the server thread
+                        server.saveEverything(true, false, true);
+                        for (ServerLevel level : server.getAllLevels()) {
+                            levels.add(level);
+                            previousNoSave.add(level.noSave);
+                            level.noSave = true;
+                            // Points of interest are only queued for chunks that were saved
+                            level.getChunkSource().getPoiManager().flushAll();
+                            storages.addAll(getRegionStorages(level));
+                        }
+                        stallNanos[0] = System.nanoTime() - start;
+                    }
+                });
+                try {
+                    await(server, save);
+                } finally {
+                    synchronized (levels) {
+                        abandoned[0] = !save.isDone();
+                    }
+                }
+
+                // Wait for the queued writes to reach the region files.  Entities and points of interest have their own
+                // region files, written by their own workers
+                for (ServerLevel level : levels) {
+                    await(server, level.getChunkSource().chunkMap.synchronize(true));
+                }
+                for (SimpleRegionStorage storage : storages) {
+                    await(server, storage.synchronize(true));
+                }
+
+                tickStallMillis = stallNanos[0] / 1_000_000;
+                if (tickStallMillis > TICK_MILLIS) {
+                    SimpleBackup.LOGGER.warn("Saving the world for the backup blocked the server thread for {} ms, longer than a tick.  "
+                            + "The stall grows with the number of chunks changed since the last save", tickStallMillis);
+                } else {
+                    SimpleBackup.LOGGER.info("Saved the world and paused saving for the backup, the server thread was blocked for {} ms", tickStallMillis);
+                }
+            }
+
+            // The staging copy takes as much space as the world, on top of the backup created from it
+            DirectoryScan scan = RegionWriteTracker.scan(worldSavePath);
+            if (filter != null) {
+                scan = scan.filter(filter);
+            }
+            long worldSize = scan.getTotalSize();
+            if (!SpaceEstimator.checkAvailableSpace(worldSize + SpaceEstimator.estimateBackupSize(backupFormat, worldSize))) {
+                return null;
+            }
+
+            // Not throttled while saving is paused, so it is re-enabled as soon as possible
+            SimpleBackupUtil.createDirectoryFailSafe(stagingPath);
+            new DirectoryCopier(scan, stagingPath, null, null, null, !pauseSaving).copy();
+            return new WorldSnapshot(stagingPath, tickStallMillis);
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not capture a snapshot of world [" + worldSavePath + "]", e);
+            cleanup(stagingPath);
+            return null;
+        } finally {
+            if (!levels.isEmpty()) {
+                server.execute(() -> {
+                    // Restore the previous flags rather than always enabling, in case saving was turned off with /save-off
+                    for (int i = 0; i < levels.size(); i++) {
+                        levels.get(i).noSave = previousNoSave.get(i);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return Storages of the level's entities and points of interest, which are written apart from the chunks
+     */
+    private static List<SimpleRegionStorage> getRegionStorages(ServerLevel level) {
+        List<SimpleRegionStorage> storages = new ArrayList<>();
+        EntityPersistentStorage<?> entities = ((PersistentEntitySectionManagerAccessor) ((ServerLevelAccessor) level).getEntityManager()).getPermanentStorage();
+        if (entities instanceof EntityStorage entityStorage) {
+            storages.add(((EntityStorageAccessor) entityStorage).getSimpleRegionStorage());
+        }
+        storages.add(((SectionStorageAccessor) level.getChunkSource().getPoiManager()).getSimpleRegionStorage());
+        return storages;
+    }
+
+    /**
+     * Waits for a future, giving up if the server stops meanwhile, as the server thread and the storage workers stop
+     * running tasks once the server is stopped.
+     */
+    private static <T> T await(MinecraftServer server, CompletableFuture<T> future) throws ExecutionException, InterruptedException, IOException {
+        while (true) {
+            try {
+                return future.get(POLL_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (!server.isRunning()) {
+                    throw new IOException("The server stopped while the world was being saved for the backup");
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the staging folder of a snapshot.
+     */
+    public static void cleanup(Path snapshotPath) {
+        Path backupStagingPath = snapshotPath.getParent();
+        try {
+            if (Files.exists(backupStagingPath)) {
+                SimpleBackupUtil.deleteRecursively(backupStagingPath);
+            }
+        } catch (Exception e) {
+            SimpleBackup.LOGGER.error("Could not delete backup staging folder " + backupStagingPath, e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.spoorn.simplebackup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.spoorn.simplebackup.config.ModConfig;
+
+/**
+ * Sets up the mod outside of Minecraft for the tests, and creates small worlds to back up.
+ */
+public final class TestSupport {
+    private static final int SECTOR_SIZE = 4096;
+
+    private TestSupport() {
+    }
+
+    /**
+     * Replaces the config with the defaults, backing up to the given folder.
+     *
+     * @return The config, to change any settings a test needs
+     */
+    public static ModConfig configure(Path backupFolder, int numThreads) {
+        ModConfig config = new ModConfig();
+        // Relative backup paths are resolved against the game folder, which doesn't exist here
+        config.backupPath = backupFolder.toString();
+        config.numThreads = numThreads;
+        config.intervalPercentageToLogBackupProgress = 0;
+        ModConfig.INSTANCE = config;
+        return config;
+    }
+
+    /**
+     * Creates a world folder named "world" with a region file, gzipped data, text files, a file larger than an
+     * incremental chunk, empty files and an empty folder.
+     *
+     * @return The world folder
+     */
+    public static Path createWorld(Path parent) throws IOException {
+        Random random = new Random(42);
+        Path world = parent.resolve("world");
+        Files.createDirectories(world.resolve("region"));
+        Files.createDirectories(world.resolve("data"));
+        Files.createDirectories(world.resolve("DIM-1/region"));
+        Files.createDirectories(world.resolve("empty"));
+
+        writeRegionFile(world.resolve("region/r.0.0.mca"), random, 8);
+        writeRegionFile(world.resolve("DIM-1/region/r.-1.0.mca"), random, 3);
+        Files.write(world.resolve("level.dat"), gzip(randomText(random, 2000)));
+        for (int i = 0; i < 20; i++) {
+            Files.writeString(world.resolve("data/map_" + i + ".dat"), new String(randomText(random, 100 + i * 50), StandardCharsets.UTF_8));
+        }
+        byte[] large = new byte[(3 << 20) + 12345];
+        random.nextBytes(large);
+        Files.write(world.resolve("data/large.bin"), large);
+        Files.write(world.resolve("data/empty.dat"), new byte[0]);
+        return world;
+    }
+
+    /**
+     * Writes an Anvil region file with zlib compressed chunks at sector aligned offsets.
+     */
+    public static void writeRegionFile(Path file, Random random, int chunks) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_SIZE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int sector = 2;
+        for (int i = 0; i < chunks; i++) {
+            byte[] compressed = deflate(randomText(random, 20_000));
+            ByteBuffer chunk = ByteBuffer.allocate(5 + compressed.length);
+            chunk.putInt(compressed.length + 1).put((byte) 2).put(compressed);
+            int sectors = (chunk.capacity() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            header.putInt(i * 7 * 4, sector << 8 | sectors);
+            header.putInt(SECTOR_SIZE + i * 7 * 4, 1_700_000_000 + i);
+            data.write(chunk.array());
+            data.write(new byte[sectors * SECTOR_SIZE - chunk.capacity()]);
+            sector += sectors;
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(header.array());
+            data.writeTo(out);
+        }
+    }
+
+    /**
+     * @return Text from a small vocabulary, which compresses about as well as Minecraft data
+     */
+    public static byte[] randomText(Random random, int length) {
+        String[] words = {"minecraft:stone", "minecraft:dirt", "minecraft:air", "{", "}", "[", "]", "0", "1", "level", "\n"};
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED))) {
+            deflater.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Asserts that two folders hold the same files with the same content, ignoring empty folders.
+     */
+    public static void assertSameFiles(Path expected, Path actual) throws IOException {
+        Map<String, Path> expectedFiles = listFiles(expected);
+        Map<String, Path> actualFiles = listFiles(actual);
+        assertEquals(expectedFiles.keySet(), actualFiles.keySet());
+        for (Map.Entry<String, Path> file : expectedFiles.entrySet()) {
+            assertArrayEquals(Files.readAllBytes(file.getValue()), Files.readAllBytes(actualFiles.get(file.getKey())), file.getKey());
+        }
+    }
+
+    /**
+     * @return Regular files in a folder by path relative to it, with '/' separators
+     */
+    public static Map<String, Path> listFiles(Path folder) throws IOException {
+        Map<String, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                files.put(folder.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"), path);
+            }
+        }
+        return files;
+    }
+}
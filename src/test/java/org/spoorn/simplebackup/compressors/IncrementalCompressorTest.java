@@ -0,0 +1,126 @@
+package org.spoorn.simplebackup.compressors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+class IncrementalCompressorTest {
+    private static final String FIRST_BACKUP = "2020-01-01_00-00-00";
+    private static final String SECOND_BACKUP = "2020-01-01_01-00-00";
+
+    @TempDir
+    Path temp;
+    private Path world;
+    private Path backups;
+    private IncrementalCompressor compressor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.world = TestSupport.createWorld(this.temp);
+        this.backups = this.temp.resolve("backups");
+        TestSupport.configure(this.backups, 2);
+        Files.createDirectories(this.backups);
+        this.compressor = new IncrementalCompressor();
+        this.compressor.init();
+    }
+
+    @AfterAll
+    static void tearDown() {
+        BackupExecutors.shutdown();
+    }
+
+    @Test
+    void restoresEachBackup() throws IOException {
+        assertTrue(backup(FIRST_BACKUP));
+        Path firstWorld = this.temp.resolve("first");
+        assertTrue(SimpleBackupUtil.copyDirectoriesFailSafe(this.world, firstWorld, null));
+        changeWorld();
+        assertTrue(backup(SECOND_BACKUP));
+
+        assertRestores(FIRST_BACKUP, firstWorld);
+        assertRestores(SECOND_BACKUP, this.world);
+    }
+
+    @Test
+    void storesUnchangedChunksOnce() throws IOException {
+        assertTrue(backup(FIRST_BACKUP));
+        long chunks = countChunks();
+        assertTrue(backup(SECOND_BACKUP));
+        assertEquals(chunks, countChunks());
+        assertRestores(SECOND_BACKUP, this.world);
+    }
+
+    @Test
+    void deletesUnreferencedChunks() throws IOException {
+        assertTrue(backup(FIRST_BACKUP));
+        changeWorld();
+        assertTrue(backup(SECOND_BACKUP));
+        long chunks = countChunks();
+
+        Files.delete(this.compressor.getBackupFile(this.backups, FIRST_BACKUP));
+        this.compressor.onBackupsDeleted(this.backups);
+        assertTrue(countChunks() < chunks, "chunks only referenced by the deleted backup were kept");
+        assertRestores(SECOND_BACKUP, this.world);
+
+        // The remaining backup keeps all of its chunks
+        this.compressor.onBackupsDeleted(this.backups);
+        assertRestores(SECOND_BACKUP, this.world);
+    }
+
+    private boolean backup(String backupName) throws IOException {
+        return this.compressor.compress(DirectoryScan.scan(this.world), this.backups, backupName, new BackupManifest());
+    }
+
+    /**
+     * Rewrites part of a large file in place, deletes a file and adds one, moving the modified times forward so the
+     * changes are seen even within the file system's time resolution.
+     */
+    private void changeWorld() throws IOException {
+        Path large = this.world.resolve("data/large.bin");
+        FileTime modified = FileTime.fromMillis(Files.getLastModifiedTime(large).toMillis() + 10_000);
+        byte[] changed = new byte[1000];
+        new Random(7).nextBytes(changed);
+        try (FileChannel channel = FileChannel.open(large, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(changed), 1 << 20);
+        }
+        Files.setLastModifiedTime(large, modified);
+
+        Files.delete(this.world.resolve("data/map_3.dat"));
+        Files.writeString(this.world.resolve("data/added.dat"), "added since the first backup");
+        Files.setLastModifiedTime(this.world.resolve("data/added.dat"), modified);
+    }
+
+    private void assertRestores(String backupName, Path expected) throws IOException {
+        Path restored = this.temp.resolve("restored-" + backupName);
+        if (Files.exists(restored)) {
+            SimpleBackupUtil.deleteRecursively(restored);
+        }
+        assertTrue(this.compressor.restore(this.compressor.getBackupFile(this.backups, backupName), restored, relPath -> true, 2));
+        TestSupport.assertSameFiles(expected, restored);
+    }
+
+    private long countChunks() throws IOException {
+        try (Stream<Path> chunks = Files.walk(this.backups.resolve(IncrementalCompressor.CHUNK_STORE_FOLDER))) {
+            return chunks.filter(Files::isRegularFile).count();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.spoorn.simplebackup.compressors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+import org.spoorn.simplebackup.util.RegionFileHeader;
+
+class NbtArchiveCompressorTest {
+    private static final String BACKUP_NAME = "2020-01-01_00-00-00";
+    private static final int SECTOR_SIZE = RegionFileHeader.SECTOR_SIZE;
+    // Largest chunk payload that fits in the 255 sectors a region file can give a chunk
+    private static final int MAX_PAYLOAD = RegionFileHeader.MAX_CHUNK_SECTORS * SECTOR_SIZE - RegionFileHeader.CHUNK_HEADER_SIZE;
+    private static final int OVERSIZED_INDEX = 2;
+
+    @TempDir
+    Path temp;
+
+    @AfterAll
+    static void tearDown() {
+        BackupExecutors.shutdown();
+    }
+
+    @Test
+    void restoresEveryChunk() throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        Path region = world.resolve("region/r.1.1.mca");
+        writeMixedRegionFile(region);
+        Path backups = this.temp.resolve("backups");
+        TestSupport.configure(backups, 2);
+        Files.createDirectories(backups);
+
+        NbtArchiveCompressor compressor = new NbtArchiveCompressor();
+        compressor.init();
+        assertTrue(compressor.compress(DirectoryScan.scan(world), backups, BACKUP_NAME, new BackupManifest()));
+        Path restored = this.temp.resolve("restored");
+        assertTrue(compressor.restore(compressor.getBackupFile(backups, BACKUP_NAME), restored, relPath -> true, 2));
+
+        Map<String, Path> files = TestSupport.listFiles(world);
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            Path restoredFile = restored.resolve(file.getKey());
+            if (RegionFileHeader.isRegionFile(file.getKey())) {
+                assertSameChunks(file.getValue(), restoredFile);
+            } else {
+                assertArrayEquals(Files.readAllBytes(file.getValue()), Files.readAllBytes(restoredFile), file.getKey());
+            }
+            assertEquals(Files.getLastModifiedTime(file.getValue()).toMillis(), Files.getLastModifiedTime(restoredFile).toMillis(), file.getKey());
+        }
+
+        // Deflated at the default level, the oversized chunk no longer fits in the region file.  As Minecraft does, it
+        // is written to an external file, which assertSameChunks read it from
+        assertTrue(Files.notExists(world.resolve("region/c.34.32.mcc")));
+        assertTrue(Files.exists(restored.resolve("region/c.34.32.mcc")));
+        assertEquals(files.size() + 1, TestSupport.listFiles(restored).size());
+    }
+
+    /**
+     * Writes a region file with a zlib chunk, a gzip chunk, a chunk that only fits as it was compressed, a zlib chunk
+     * that can't be inflated and an uncompressed chunk.
+     */
+    private static void writeMixedRegionFile(Path file) throws IOException {
+        Random random = new Random(7);
+        byte[] oversized = new byte[MAX_PAYLOAD - 200];
+        random.nextBytes(oversized);
+        byte[] stored = deflate(oversized, Deflater.NO_COMPRESSION);
+        // Stored deflate blocks are larger than the default level's, which only fall back to storing in smaller blocks
+        assertTrue(stored.length <= MAX_PAYLOAD && deflate(oversized, Deflater.DEFAULT_COMPRESSION).length > MAX_PAYLOAD);
+        byte[] corrupt = new byte[3000];
+        random.nextBytes(corrupt);
+
+        byte[][] payloads = {
+                deflate(TestSupport.randomText(random, 30_000), Deflater.DEFAULT_COMPRESSION),
+                gzip(TestSupport.randomText(random, 30_000)),
+                stored,
+                corrupt,
+                TestSupport.randomText(random, 10_000)
+        };
+        byte[] types = {RegionFileHeader.ZLIB, RegionFileHeader.GZIP, RegionFileHeader.ZLIB, RegionFileHeader.ZLIB, RegionFileHeader.UNCOMPRESSED};
+
+        ByteBuffer header = ByteBuffer.allocate(RegionFileHeader.HEADER_SIZE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int sector = 2;
+        // Chunks out of index order, as Minecraft moves chunks around when they grow
+        int[] indexes = {40, 3, OVERSIZED_INDEX, 1023, 0};
+        for (int i = 0; i < payloads.length; i++) {
+            ByteBuffer chunk = ByteBuffer.allocate(RegionFileHeader.CHUNK_HEADER_SIZE + payloads[i].length);
+            chunk.putInt(payloads[i].length + 1).put(types[i]).put(payloads[i]);
+            int sectors = (chunk.capacity() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            header.putInt(indexes[i] * 4, sector << 8 | sectors);
+            header.putInt(SECTOR_SIZE + indexes[i] * 4, 1_700_000_000 + i);
+            data.write(chunk.array());
+            data.write(new byte[sectors * SECTOR_SIZE - chunk.capacity()]);
+            sector += sectors;
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(header.array());
+            data.writeTo(out);
+        }
+    }
+
+    /**
+     * Asserts that two region files have the same timestamps and chunks, comparing the chunk NBT rather than how it
+     * was compressed.
+     */
+    private static void assertSameChunks(Path expected, Path actual) throws IOException {
+        byte[] expectedHeader = Arrays.copyOfRange(Files.readAllBytes(expected), SECTOR_SIZE, RegionFileHeader.HEADER_SIZE);
+        byte[] actualHeader = Arrays.copyOfRange(Files.readAllBytes(actual), SECTOR_SIZE, RegionFileHeader.HEADER_SIZE);
+        assertArrayEquals(expectedHeader, actualHeader, "timestamps of " + expected);
+
+        Map<Integer, byte[]> expectedChunks = readChunks(expected);
+        Map<Integer, byte[]> actualChunks = readChunks(actual);
+        assertEquals(expectedChunks.keySet(), actualChunks.keySet(), expected.toString());
+        for (Map.Entry<Integer, byte[]> chunk : expectedChunks.entrySet()) {
+            assertArrayEquals(chunk.getValue(), actualChunks.get(chunk.getKey()), "chunk " + chunk.getKey() + " of " + expected);
+        }
+    }
+
+    /**
+     * @return The compression type followed by the chunk NBT of every chunk, or by the stored data if it can't be
+     *         inflated, by chunk index
+     */
+    private static Map<Integer, byte[]> readChunks(Path regionFile) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(regionFile));
+        String[] parts = regionFile.getFileName().toString().split("\\.");
+        Map<Integer, byte[]> chunks = new TreeMap<>();
+        for (int index = 0; index < RegionFileHeader.CHUNK_COUNT; index++) {
+            int location = file.getInt(index * 4);
+            if (location == 0) {
+                continue;
+            }
+            int position = (location >>> 8) * SECTOR_SIZE;
+            int length = file.getInt(position);
+            byte type = file.get(position + 4);
+            byte[] data = Arrays.copyOfRange(file.array(), position + RegionFileHeader.CHUNK_HEADER_SIZE, position + 4 + length);
+            if ((type & RegionFileHeader.EXTERNAL_FLAG) != 0) {
+                type &= ~RegionFileHeader.EXTERNAL_FLAG;
+                int chunkX = Integer.parseInt(parts[1]) * 32 + (index & 31);
+                int chunkZ = Integer.parseInt(parts[2]) * 32 + (index >> 5);
+                data = Files.readAllBytes(regionFile.resolveSibling("c." + chunkX + "." + chunkZ + ".mcc"));
+            }
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            chunk.write(type);
+            chunk.write(decompress(type, data));
+            chunks.put(index, chunk.toByteArray());
+        }
+        return chunks;
+    }
+
+    private static byte[] decompress(byte type, byte[] data) {
+        if (type != RegionFileHeader.GZIP && type != RegionFileHeader.ZLIB) {
+            return data;
+        }
+        try (InputStream in = type == RegionFileHeader.GZIP ? new GZIPInputStream(new ByteArrayInputStream(data))
+                : new InflaterInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            return data;
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(level))) {
+            deflater.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+}
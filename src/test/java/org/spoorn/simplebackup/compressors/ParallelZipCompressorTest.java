@@ -0,0 +1,231 @@
+package org.spoorn.simplebackup.compressors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.util.BackupManifest;
+import org.spoorn.simplebackup.util.DirectoryScan;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+
+class ParallelZipCompressorTest {
+    private static final String BACKUP_NAME = "2020-01-01_00-00-00";
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+
+    @TempDir
+    Path temp;
+
+    @AfterAll
+    static void tearDown() {
+        BackupExecutors.shutdown();
+    }
+
+    @ParameterizedTest
+    @CsvSource({"1, true", "1, false", "4, true", "4, false"})
+    void zipsWorld(int numThreads, boolean perFileCompression) throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        Path backups = this.temp.resolve("backups");
+        TestSupport.configure(backups, numThreads).perFileCompression = perFileCompression;
+        Files.createDirectories(backups);
+
+        ZipCompressor compressor = new ZipCompressor();
+        BackupManifest manifest = new BackupManifest();
+        DirectoryScan scan = DirectoryScan.scan(world);
+        assertTrue(compressor.compress(scan, backups, BACKUP_NAME, manifest));
+
+        Path archive = compressor.getBackupFile(backups, BACKUP_NAME);
+        assertExtractsTo(world, archive);
+        assertStreamsTo(world, archive);
+
+        // The archive is checksummed as it is written, and every file as it is read
+        BackupManifest.FileChecksum checksum = manifest.getArchive();
+        assertNotNull(checksum);
+        assertEquals(Files.size(archive), checksum.size());
+        assertEquals(hash(archive), checksum.hash());
+        assertEquals(scan.getFileCount(), manifest.getFiles().size());
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            assertEquals(hash(file.path()), manifest.getFiles().get(file.relPath()).hash(), file.relPath());
+        }
+
+        // Only the backup is left, not its staging folder or parts
+        try (var files = Files.list(backups)) {
+            assertTrue(files.noneMatch(path -> path.getFileName().toString().endsWith(".partial")));
+        }
+    }
+
+    @Test
+    void zipsWorldWithZip4j() throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        Path backups = this.temp.resolve("backups");
+        TestSupport.configure(backups, 4).useZip4j = true;
+        Files.createDirectories(backups);
+
+        ZipCompressor compressor = new ZipCompressor();
+        BackupManifest manifest = new BackupManifest();
+        DirectoryScan scan = DirectoryScan.scan(world);
+        assertTrue(compressor.compressesOnCallingThread(scan));
+        assertTrue(compressor.compress(scan, backups, BACKUP_NAME, manifest));
+
+        Path archive = compressor.getBackupFile(backups, BACKUP_NAME);
+        assertExtractsTo(world, archive);
+        assertStreamsTo(world, archive);
+        assertEquals(hash(archive), manifest.getArchive().hash());
+        assertEquals(scan.getFileCount(), manifest.getFiles().size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(compressor.compress(scan, out));
+        Path streamed = this.temp.resolve("streamed.zip");
+        Files.write(streamed, out.toByteArray());
+        assertExtractsTo(world, streamed);
+    }
+
+    @Test
+    void streamsWithDataDescriptors() throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        TestSupport.configure(this.temp.resolve("backups"), 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ParallelZipCompressor.zip(DirectoryScan.scan(world), out));
+        Path archive = this.temp.resolve("streamed.zip");
+        Files.write(archive, out.toByteArray());
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            for (FileHeader header : zip.getFileHeaders()) {
+                if (!header.isDirectory()) {
+                    assertTrue(header.isDataDescriptorExists(), header.getFileName());
+                }
+            }
+        }
+        assertExtractsTo(world, archive);
+        assertStreamsTo(world, archive);
+    }
+
+    @ParameterizedTest
+    @CsvSource({"1", "4"})
+    void writesZip64ForManyEntries(int numThreads) throws IOException {
+        Path world = this.temp.resolve("world");
+        int fileCount = 0xFFFF + 100;
+        for (int i = 0; i < fileCount; i++) {
+            Path folder = world.resolve("folder" + i / 1000);
+            if (i % 1000 == 0) {
+                Files.createDirectories(folder);
+            }
+            Files.write(folder.resolve("file" + i), new byte[i % 7]);
+        }
+        Path backups = this.temp.resolve("backups");
+        TestSupport.configure(backups, numThreads);
+        Files.createDirectories(backups);
+        DirectoryScan scan = DirectoryScan.scan(world);
+
+        ZipCompressor compressor = new ZipCompressor();
+        assertTrue(compressor.compress(scan, backups, BACKUP_NAME, new BackupManifest()));
+        assertZip64Entries(scan, compressor.getBackupFile(backups, BACKUP_NAME));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ParallelZipCompressor.zip(scan, out));
+        Path streamed = this.temp.resolve("streamed.zip");
+        Files.write(streamed, out.toByteArray());
+        assertZip64Entries(scan, streamed);
+    }
+
+    private static void assertZip64Entries(DirectoryScan scan, Path archive) throws IOException {
+        byte[] bytes = Files.readAllBytes(archive);
+        assertTrue(containsSignature(bytes, ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE), "no zip64 end of central directory");
+
+        Set<String> expected = new HashSet<>();
+        String rootName = scan.getRoot().getFileName().toString();
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            expected.add(rootName + "/" + file.relPath());
+        }
+        Set<String> actual = new HashSet<>();
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertTrue(zip.isValidZipFile());
+            List<FileHeader> headers = zip.getFileHeaders();
+            assertEquals(scan.getFileCount() + scan.getDirectories().size(), headers.size());
+            for (FileHeader header : headers) {
+                if (!header.isDirectory()) {
+                    actual.add(header.getFileName());
+                }
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Asserts that zip4j extracts the archive into the same files as the world.
+     */
+    static void assertExtractsTo(Path world, Path archive) throws IOException {
+        Path extracted = archive.resolveSibling(archive.getFileName() + ".extracted");
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertTrue(zip.isValidZipFile());
+            zip.extractAll(extracted.toString());
+        }
+        TestSupport.assertSameFiles(world, extracted.resolve(world.getFileName().toString()));
+    }
+
+    /**
+     * Asserts that the archive can be read front to back as a stream, as it is when downloaded and extracted at once.
+     */
+    private static void assertStreamsTo(Path world, Path archive) throws IOException {
+        Map<String, Path> files = TestSupport.listFiles(world);
+        String prefix = world.getFileName() + "/";
+        int read = 0;
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                Path file = files.get(entry.getName().substring(prefix.length()));
+                assertNotNull(file, entry.getName());
+                assertArrayEquals(Files.readAllBytes(file), zip.readAllBytes(), entry.getName());
+                read++;
+            }
+        }
+        assertEquals(files.size(), read);
+    }
+
+    private static long hash(Path file) throws IOException {
+        StreamingXXHash64 hash = BackupManifest.newHash();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                hash.update(buffer, 0, read);
+            }
+        }
+        return hash.getValue();
+    }
+
+    private static boolean containsSignature(byte[] bytes, int signature) {
+        for (int i = bytes.length - 4; i >= 0; i--) {
+            if ((bytes[i] & 0xFF | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | (bytes[i + 3] & 0xFF) << 24) == signature) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,240 @@
+package org.spoorn.simplebackup.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.compressors.DirectoryCompressor;
+import org.spoorn.simplebackup.compressors.ParallelZipCompressor;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.config.ModConfig;
+
+import net.lingala.zip4j.ZipFile;
+
+class BackupCheckpointTest {
+    private static final String ZIP = SimpleBackupUtil.ZIP_FORMAT;
+    private static final String INTERRUPTED_BACKUP = "2020-01-01_00-00-00";
+    private static final String NEXT_BACKUP = "2020-01-01_01-00-00";
+
+    @TempDir
+    Path temp;
+    private Path world;
+    private Path backups;
+    private ModConfig config;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.world = TestSupport.createWorld(this.temp);
+        this.backups = this.temp.resolve("backups");
+        this.config = TestSupport.configure(this.backups, 1);
+        Files.createDirectories(this.backups);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        BackupExecutors.shutdown();
+    }
+
+    @Test
+    void resumesUnchangedFiles() throws IOException {
+        DirectoryScan scan = DirectoryScan.scan(this.world);
+        DirectoryScan.ScannedFile unchanged = scan.getFiles().get(0);
+        DirectoryScan.ScannedFile changed = scan.getFiles().get(1);
+        Path folder;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, INTERRUPTED_BACKUP, "world")) {
+            assertFalse(checkpoint.isResumed());
+            folder = checkpoint.getFolder();
+            BackupCheckpoint.Batch batch = checkpoint.newBatch();
+            batch.add(new BackupCheckpoint.Entry(unchanged.relPath(), unchanged.size(), unchanged.lastModified(), 42L, "data"), null);
+            batch.add(new BackupCheckpoint.Entry(changed.relPath(), changed.size(), changed.lastModified() - 1000, null, "data"), null);
+            batch.commit(null);
+        }
+        // A line cut short by a crash
+        Files.writeString(folder.resolve("checkpoint"), "12\t34\t-\tda", StandardOpenOption.APPEND);
+        assertTrue(BackupCheckpoint.hasInterrupted(this.backups, ZIP));
+        assertFalse(BackupCheckpoint.hasInterrupted(this.backups, SimpleBackupUtil.DIRECTORY_FORMAT));
+
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "world")) {
+            assertTrue(checkpoint.isResumed());
+            assertEquals(folder, checkpoint.getFolder());
+            BackupCheckpoint.Entry entry = checkpoint.getCompleted(unchanged);
+            assertNotNull(entry);
+            assertEquals(Long.valueOf(42), entry.hash());
+            assertEquals("data", entry.data());
+            assertNull(checkpoint.getCompleted(changed));
+
+            // Lines appended after the dropped line are read by the next backup
+            BackupCheckpoint.Batch batch = checkpoint.newBatch();
+            batch.add(new BackupCheckpoint.Entry(changed.relPath(), changed.size(), changed.lastModified(), null, "again"), null);
+            batch.commit(null);
+        }
+
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "world")) {
+            assertTrue(checkpoint.isResumed());
+            assertEquals("again", checkpoint.getCompleted(changed).data());
+            assertNotNull(checkpoint.getCompleted(unchanged));
+        }
+    }
+
+    @Test
+    void startsOverForAnotherWorld() throws IOException {
+        Path interrupted;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, INTERRUPTED_BACKUP, "world")) {
+            interrupted = checkpoint.getFolder();
+        }
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "another world")) {
+            assertFalse(checkpoint.isResumed());
+            assertNotEquals(interrupted, checkpoint.getFolder());
+        }
+        assertFalse(Files.exists(interrupted));
+    }
+
+    @Test
+    void startsOverWithoutCheckpoints() throws IOException {
+        Path interrupted;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, INTERRUPTED_BACKUP, "world")) {
+            interrupted = checkpoint.getFolder();
+        }
+        this.config.checkpointIntervalInSeconds = 0;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "world")) {
+            assertFalse(checkpoint.isResumed());
+        }
+        assertFalse(Files.exists(interrupted));
+    }
+
+    @Test
+    void resumesOnlyTheNewestInterruptedBackup() throws IOException {
+        Path older;
+        Path newer;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, "2020-01-01_00-00-00", "world")) {
+            older = checkpoint.getFolder();
+        }
+        // Opened while the older one is in use, so it gets its own staging folder
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, "2020-01-01_00-30-00", "world");
+             BackupCheckpoint other = BackupCheckpoint.open(this.backups, ZIP, "2020-01-01_00-40-00", "world")) {
+            assertEquals(older, checkpoint.getFolder());
+            assertFalse(other.isResumed());
+            newer = other.getFolder();
+        }
+
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "world")) {
+            assertTrue(checkpoint.isResumed());
+            assertEquals(newer, checkpoint.getFolder());
+        }
+        assertFalse(Files.exists(older));
+    }
+
+    @Test
+    void doesNotShareStagingFolderWithRunningBackup() throws IOException {
+        try (BackupCheckpoint running = BackupCheckpoint.open(this.backups, ZIP, INTERRUPTED_BACKUP, "world")) {
+            assertFalse(BackupCheckpoint.hasInterrupted(this.backups, ZIP));
+            Path staged;
+            try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, NEXT_BACKUP, "world")) {
+                assertFalse(checkpoint.isResumed());
+                assertNotEquals(running.getFolder(), checkpoint.getFolder());
+                staged = checkpoint.getFolder().resolve("backup.zip");
+                Files.writeString(staged, "backup");
+                checkpoint.publish(staged, this.backups.resolve("backup.zip"));
+                assertFalse(Files.exists(checkpoint.getFolder()));
+            }
+            // Publishing one backup leaves the other's staging folder alone
+            assertTrue(Files.exists(running.getFolder().resolve("checkpoint")));
+            assertEquals("backup", Files.readString(this.backups.resolve("backup.zip"), StandardCharsets.UTF_8));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"1", "4"})
+    void resumesZipBackup(int numThreads) throws IOException {
+        this.config.numThreads = numThreads;
+        // Interrupted right before it was renamed into place
+        ZipCompressor compressor = new ZipCompressor();
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, ZIP, INTERRUPTED_BACKUP, "world")) {
+            Path archive = checkpoint.getFolder().resolve(compressor.getBackupFile(this.backups, INTERRUPTED_BACKUP).getFileName());
+            assertTrue(ParallelZipCompressor.zip(DirectoryScan.scan(this.world), archive, numThreads, new BackupManifest(), checkpoint));
+        }
+        changeWorld();
+
+        BackupManifest manifest = new BackupManifest();
+        DirectoryScan scan = DirectoryScan.scan(this.world);
+        assertTrue(compressor.compress(scan, this.backups, NEXT_BACKUP, manifest));
+
+        Path archive = compressor.getBackupFile(this.backups, NEXT_BACKUP);
+        Path extracted = this.temp.resolve("extracted");
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertTrue(zip.isValidZipFile());
+            zip.extractAll(extracted.toString());
+        }
+        TestSupport.assertSameFiles(this.world, extracted.resolve("world"));
+        // Kept files have their checksums from the checkpoint
+        assertEquals(scan.getFileCount(), manifest.getFiles().size());
+        assertEquals(List.of(archive.getFileName().toString()), listBackups());
+    }
+
+    @Test
+    void resumesDirectoryBackup() throws IOException {
+        String format = SimpleBackupUtil.DIRECTORY_FORMAT;
+        DirectoryScan scan = DirectoryScan.scan(this.world);
+        FileTime copiedTime = FileTime.fromMillis(1_000_000_000_000L);
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(this.backups, format, INTERRUPTED_BACKUP, "world")) {
+            Path staged = checkpoint.getFolder().resolve("backup").resolve("world");
+            assertTrue(SimpleBackupUtil.copyDirectoriesFailSafe(scan, staged, null, null, checkpoint));
+            // Marks the copies kept by the next backup, as copying a file again gives it the world file's modified time
+            for (Path copy : TestSupport.listFiles(staged).values()) {
+                Files.setLastModifiedTime(copy, copiedTime);
+            }
+        }
+        changeWorld();
+
+        DirectoryScan next = DirectoryScan.scan(this.world);
+        assertTrue(new DirectoryCompressor().compress(next, this.backups, NEXT_BACKUP, new BackupManifest()));
+
+        Path backup = this.backups.resolve(NEXT_BACKUP).resolve("world");
+        TestSupport.assertSameFiles(this.world, backup);
+        assertEquals(copiedTime, Files.getLastModifiedTime(backup.resolve("level.dat")));
+        assertNotEquals(copiedTime, Files.getLastModifiedTime(backup.resolve("data/map_1.dat")));
+        assertEquals(List.of(NEXT_BACKUP), listBackups());
+    }
+
+    /**
+     * Changes, deletes and adds a file, moving the modified times forward so the changes are seen even within the file
+     * system's time resolution.
+     */
+    private void changeWorld() throws IOException {
+        FileTime modified = FileTime.fromMillis(System.currentTimeMillis() + 10_000);
+        Files.writeString(this.world.resolve("data/map_1.dat"), "changed since the interrupted backup");
+        Files.setLastModifiedTime(this.world.resolve("data/map_1.dat"), modified);
+        Files.delete(this.world.resolve("data/map_2.dat"));
+        Files.writeString(this.world.resolve("data/added.dat"), "added since the interrupted backup");
+        Files.setLastModifiedTime(this.world.resolve("data/added.dat"), modified);
+    }
+
+    /**
+     * @return Backups in the backup folder, without hidden files such as staging folders
+     */
+    private List<String> listBackups() throws IOException {
+        try (Stream<Path> paths = Files.list(this.backups)) {
+            return paths.map(path -> path.getFileName().toString()).filter(name -> !name.startsWith(".")).sorted().toList();
+        }
+    }
+}
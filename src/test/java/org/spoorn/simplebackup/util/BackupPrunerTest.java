@@ -0,0 +1,47 @@
+package org.spoorn.simplebackup.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.config.ModConfig;
+
+class BackupPrunerTest {
+    private static final String NETHER = "minecraft:the_nether";
+    private static final String END = "minecraft:the_end";
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void keepsNewestBackupWithEachDimension() {
+        ModConfig config = TestSupport.configure(this.temp, 1);
+        config.maxBackupsToKeep = 10;
+        // The overworld every 15 minutes, the Nether hourly and the End only in the first backup
+        List<BackupCatalog.Entry> backups = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Set<String> skipped = i == 0 ? Set.of() : i % 4 == 0 ? Set.of(END) : Set.of(NETHER, END);
+            backups.add(new BackupCatalog.Entry("backup" + i, SimpleBackupUtil.DIRECTORY_FORMAT, i * 15 * 60_000L, 1, 1, 1, 1, null, skipped));
+        }
+
+        Set<BackupCatalog.Entry> keep = BackupPruner.selectBackupsToKeep(backups, config, ZoneOffset.UTC);
+        assertEquals(11, keep.size());
+        assertTrue(keep.contains(backups.get(0)));
+        for (int i = 10; i < 20; i++) {
+            assertTrue(keep.contains(backups.get(i)));
+        }
+
+        // The Nether is in one of the newest backups, so only the End keeps an old one
+        config.maxBackupsToKeep = 2;
+        keep = BackupPruner.selectBackupsToKeep(backups, config, ZoneOffset.UTC);
+        assertEquals(Set.of(backups.get(0), backups.get(16), backups.get(18), backups.get(19)), keep);
+    }
+}
@@ -0,0 +1,76 @@
+package org.spoorn.simplebackup.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.BackupExecutors;
+import org.spoorn.simplebackup.TestSupport;
+import org.spoorn.simplebackup.compressors.Compressors;
+import org.spoorn.simplebackup.config.ModConfig;
+
+class BackupRestorerTest {
+    private static final String NETHER = "minecraft:the_nether";
+    private static final String END = "minecraft:the_end";
+
+    @TempDir
+    Path temp;
+
+    @AfterAll
+    static void tearDown() {
+        BackupExecutors.shutdown();
+    }
+
+    @Test
+    void fullRestoreFillsInLeftOutDimensions() throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        Path backupFolder = this.temp.resolve("backups");
+        Files.createDirectories(backupFolder);
+        TestSupport.configure(backupFolder, 1);
+        Compressors.init();
+        Files.createDirectories(world.resolve("DIM1/region"));
+        TestSupport.writeRegionFile(world.resolve("DIM1/region/r.0.0.mca"), new Random(1), 2);
+        byte[] nether = Files.readAllBytes(world.resolve("DIM-1/region/r.-1.0.mca"));
+
+        // No backup has the End, and only the first one has the Nether
+        String format = SimpleBackupUtil.DIRECTORY_FORMAT;
+        assertTrue(SimpleBackupUtil.backup(world, "world", "2020-01-01_00-00-00", format, Set.of(END)));
+        TestSupport.writeRegionFile(world.resolve("DIM-1/region/r.-1.0.mca"), new Random(2), 3);
+        assertTrue(SimpleBackupUtil.backup(world, "world", "2020-01-01_01-00-00", format, Set.of(NETHER, END)));
+        assertEquals(Set.of(NETHER, END), BackupCatalog.get("2020-01-01_01-00-00").skippedDimensions());
+        byte[] end = Files.readAllBytes(world.resolve("DIM1/region/r.0.0.mca"));
+
+        assertTrue(BackupRestorer.restore(backupFolder.resolve("2020-01-01_01-00-00"), world, null, 1));
+        assertArrayEquals(nether, Files.readAllBytes(world.resolve("DIM-1/region/r.-1.0.mca")));
+        assertArrayEquals(end, Files.readAllBytes(world.resolve("DIM1/region/r.0.0.mca")));
+        assertArrayEquals(Files.readAllBytes(backupFolder.resolve("2020-01-01_01-00-00/world/level.dat")), Files.readAllBytes(world.resolve("level.dat")));
+
+        // The catalog is shared by every test, so pruning before a scheduled restore is checked here too.  A newer
+        // backup with every dimension would otherwise leave only itself under the retention policy
+        ModConfig config = ModConfig.getInstance();
+        config.maxBackupsToKeep = 1;
+        config.keepHourlyBackups = 0;
+        config.keepDailyBackups = 0;
+        config.keepWeeklyBackups = 0;
+        BackupRestorer.schedule(backupFolder.resolve("2020-01-01_01-00-00"), List.of());
+        assertTrue(SimpleBackupUtil.backup(world, "world", "2020-01-01_02-00-00", format, Set.of()));
+        BackupPruner.prune();
+        assertTrue(Files.isDirectory(backupFolder.resolve("2020-01-01_00-00-00")));
+        assertTrue(Files.isDirectory(backupFolder.resolve("2020-01-01_01-00-00")));
+
+        BackupRestorer.runScheduled(world, 1);
+        assertArrayEquals(nether, Files.readAllBytes(world.resolve("DIM-1/region/r.-1.0.mca")));
+        BackupPruner.prune();
+        assertEquals(List.of("2020-01-01_02-00-00"), BackupCatalog.getBackups().stream().map(BackupCatalog.Entry::name).toList());
+    }
+}
@@ -0,0 +1,60 @@
+package org.spoorn.simplebackup.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.TestSupport;
+
+class FileIndexTest {
+    private static final String FIRST_BACKUP = "2020-01-01_00-00-00";
+    private static final String SECOND_BACKUP = "2020-01-01_01-00-00";
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void rewritesIndexWhileLoaded() throws IOException {
+        Path world = TestSupport.createWorld(this.temp);
+        Path indexFile = FileIndex.getIndexFile(this.temp, SimpleBackupUtil.DIRECTORY_FORMAT);
+        DirectoryScan scan = DirectoryScan.scan(world);
+
+        FileIndex empty = FileIndex.load(indexFile);
+        assertNull(empty.getBackupName());
+        empty.scan(scan).write(indexFile, FIRST_BACKUP);
+
+        // The loaded index is still in use when the next backup replaces the file it was read from
+        FileIndex first = FileIndex.load(indexFile);
+        assertEquals(FIRST_BACKUP, first.getBackupName());
+        FileIndex.Scan unchanged = first.scan(scan);
+        assertEquals(0, unchanged.getChangedCount());
+        for (DirectoryScan.ScannedFile file : scan.getFiles()) {
+            assertEquals(file.size(), first.get(file.relPath()).size(), file.relPath());
+        }
+
+        // Saved again with the same content, so only its modified time changed
+        Path level = world.resolve("level.dat");
+        Files.setLastModifiedTime(level, FileTime.fromMillis(Files.getLastModifiedTime(level).toMillis() + 2000));
+        Files.writeString(world.resolve("new.txt"), "new file", StandardCharsets.UTF_8);
+        DirectoryScan changed = DirectoryScan.scan(world);
+        FileIndex.Scan next = first.scan(changed);
+        next.write(indexFile, SECOND_BACKUP);
+        assertFalse(Files.exists(indexFile.resolveSibling(indexFile.getFileName() + ".tmp")));
+
+        FileIndex second = FileIndex.load(indexFile);
+        assertEquals(SECOND_BACKUP, second.getBackupName());
+        assertEquals(1, next.getChangedCount());
+        DirectoryScan.ScannedFile saved = changed.getFiles().stream().filter(file -> file.relPath().equals("level.dat")).findFirst().orElseThrow();
+        assertTrue(next.isUnchanged("level.dat", saved.size(), saved.lastModified()));
+        assertEquals(0, second.scan(changed).getChangedCount());
+    }
+}